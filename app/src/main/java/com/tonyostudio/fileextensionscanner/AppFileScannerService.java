@@ -1,8 +1,15 @@
 package com.tonyostudio.fileextensionscanner;
 
+import android.content.Intent;
+import android.os.SystemClock;
+import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
 import com.tonyostudio.library.FileExtSearchService;
+import com.tonyostudio.library.ScanListener;
+
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Created by tonyofrancis on 11/15/16.
@@ -12,18 +19,89 @@ public class AppFileScannerService extends FileExtSearchService {
 
     public static final String TAG = "AppFileScannerService";
 
+    /** Action of the local broadcasts that carry the files matched by a running scan */
+    public static final String ACTION_SCAN_PROGRESS = "com.tonyostudio.fileextensionscanner.SCAN_PROGRESS";
+
+    /** Field used to retrieve the array of matched files from a ACTION_SCAN_PROGRESS broadcast */
+    public static final String EXTRA_BATCH = "batch";
+
+    /** Maximum number of files per batch */
+    private static final int BATCH_SIZE = 500;
+
+    /** Minimum time in milliseconds between two batches, so the UI is not flooded with small updates */
+    private static final long BATCH_INTERVAL = 250;
+
+    /** Listener of the running scan. Only accessed on the background thread of the service */
+    private BatchingScanListener scanListener;
+
     public AppFileScannerService() {
         super(TAG);
     }
 
+    @Override
+    public ScanListener getScanListener() {
+
+        scanListener = new BatchingScanListener();
+        return scanListener;
+    }
+
     @Override
     public void onResultsDelivered(String[] filePaths) {
         super.onResultsDelivered(filePaths);
 
+        // The files matched since the last batch were not sent yet
+        if(scanListener != null) {
+            scanListener.flush();
+            scanListener = null;
+        }
+
         if (filePaths != null && filePaths.length > 0) {
             Log.i(TAG, filePaths.length +" files found");
         } else {
             Log.i(TAG, "No Files found");
         }
     }
+
+    /** Listener sending the matched files of a running scan in batches, see ACTION_SCAN_PROGRESS */
+    private class BatchingScanListener implements ScanListener {
+
+        private final List<String> batch = new ArrayList<>();
+        private long lastBatch = SystemClock.elapsedRealtime();
+
+        @Override
+        public void onFileMatched(String filePath, long size, long lastModified) {
+
+            batch.add(filePath);
+
+            if(batch.size() >= BATCH_SIZE) {
+                sendBatch();
+            }
+        }
+
+        @Override
+        public void onDirectoryScanned(String dirPath, int matchedFiles) {
+
+            if(!batch.isEmpty() && SystemClock.elapsedRealtime() - lastBatch >= BATCH_INTERVAL) {
+                sendBatch();
+            }
+        }
+
+        /** Method used to send the files matched since the last batch */
+        void flush() {
+
+            if(!batch.isEmpty()) {
+                sendBatch();
+            }
+        }
+
+        private void sendBatch() {
+
+            Intent intent = new Intent(ACTION_SCAN_PROGRESS);
+            intent.putExtra(EXTRA_BATCH,batch.toArray(new String[batch.size()]));
+            LocalBroadcastManager.getInstance(AppFileScannerService.this).sendBroadcast(intent);
+
+            batch.clear();
+            lastBatch = SystemClock.elapsedRealtime();
+        }
+    }
 }
@@ -7,8 +7,11 @@ import android.content.IntentFilter;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.support.v4.content.LocalBroadcastManager;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
@@ -19,6 +22,14 @@ import android.widget.TextView;
 
 import com.tonyostudio.library.FileExtSearchService;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 
 public class MainActivity extends AppCompatActivity {
 
@@ -95,12 +106,22 @@ public class MainActivity extends AppCompatActivity {
 
         IntentFilter intentFilter = FileExtSearchService.newReceiverIntentFilter();
         registerReceiver(receiver,intentFilter);
+
+        LocalBroadcastManager.getInstance(this).registerReceiver(progressReceiver,
+                new IntentFilter(AppFileScannerService.ACTION_SCAN_PROGRESS));
     }
 
     @Override
     protected void onPause() {
         super.onPause();
         unregisterReceiver(receiver);
+        LocalBroadcastManager.getInstance(this).unregisterReceiver(progressReceiver);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        adapter.release();
     }
 
 
@@ -110,16 +131,64 @@ public class MainActivity extends AppCompatActivity {
 
             if(intent.getAction().equals(FileExtSearchService.ACTION_SEARCH_COMPLETE)) {
 
+                String resultsFile = intent.getStringExtra(FileExtSearchService.EXTRA_RESULTS_FILE);
                 String[] filePaths = intent.getStringArrayExtra(FileExtSearchService.EXTRA_RESULTS);
-                adapter.setFilePaths(filePaths);
+                String[] added = intent.getStringArrayExtra(FileExtSearchService.EXTRA_ADDED);
+                String[] removed = intent.getStringArrayExtra(FileExtSearchService.EXTRA_REMOVED);
+
+                // Broadcasts of unchanged or rejected scans carry no paths, the shown paths are kept for them
+                if(resultsFile != null) {
+                    adapter.setResultsFile(new File(resultsFile));
+                } else if(filePaths != null) {
+                    adapter.setFilePaths(filePaths);
+                } else if(added != null || removed != null) {
+                    adapter.applyChanges(added,removed);
+                }
+
+                boolean stale = intent.getBooleanExtra(FileExtSearchService.EXTRA_STALE,false);
+                setTitle(stale ? R.string.app_name_stale : R.string.app_name);
+            }
+        }
+    };
+
+    private BroadcastReceiver progressReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+
+            String[] batch = intent.getStringArrayExtra(AppFileScannerService.EXTRA_BATCH);
+
+            if(batch != null) {
+                adapter.appendFilePaths(batch);
             }
         }
     };
 
 
+    /**
+     * Adapter that keeps the shown paths sorted. Streamed batches and scan results are merged and
+     * diffed on a background thread, so the UI thread only swaps the list and rebinds the rows that
+     * changed. Results that were delivered as a file are paged from the file instead of being loaded into memory.
+     */
     public static class Adapter extends RecyclerView.Adapter<ViewHolder> {
 
-        private String[] filePaths;
+        /** Paths shown by the adapter. Only accessed on the UI thread */
+        private List<String> filePaths = Collections.emptyList();
+
+        /** Pager of a results file. Only accessed on the UI thread, set while a results file is shown */
+        private ResultsFilePager pager;
+
+        /** Paths the adapter will show once the queued updates were applied. Only accessed on the diff thread,
+         *  null when a results file will be shown */
+        private List<String> latestFilePaths = Collections.emptyList();
+
+        /** Pager opened on the diff thread that was not handed to the UI thread yet. Closed by release if it never is */
+        private volatile ResultsFilePager openingPager;
+
+        /** Set once release was called. Updates posted afterwards are dropped */
+        private volatile boolean released;
+
+        private final ExecutorService diffExecutor = Executors.newSingleThreadExecutor();
+        private final Handler handler = new Handler(Looper.getMainLooper());
 
         @Override
         public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
@@ -130,23 +199,175 @@ public class MainActivity extends AppCompatActivity {
         @Override
         public void onBindViewHolder(ViewHolder holder, int position) {
 
-            String path = filePaths[position];
+            String path = pager != null ? pager.get(position) : filePaths.get(position);
             holder.textView.setText(path);
         }
 
         @Override
         public int getItemCount() {
 
-            if(filePaths == null) {
-                return 0;
+            if(pager != null) {
+                return pager.size();
+            }
+
+            return filePaths.size();
+        }
+
+        /** Method used to replace the shown paths with the results of a scan. Only the rows that changed are rebound
+         * @param filePaths matched files. Null clears the list */
+        public void setFilePaths(@Nullable final String[] filePaths) {
+
+            diffExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    update(sortedCopy(filePaths),false);
+                }
+            });
+        }
+
+        /** Method used to add a batch of paths streamed by a running scan. The batch is merged into the shown paths
+         * @param batch matched files */
+        public void appendFilePaths(@NonNull final String[] batch) {
+
+            diffExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    update(sortedCopy(batch),true);
+                }
+            });
+        }
+
+        /** Method used to add and remove the paths that changed since the previous scan, see FileExtSearchService.EXTRA_CHANGES_ONLY.
+         * Changes that arrive while a results file is shown are dropped, the service delivers the full results after a results file
+         * @param added files found by the scan. Null if none were
+         * @param removed files no longer found by the scan. Null if none were */
+        public void applyChanges(@Nullable final String[] added, @Nullable final String[] removed) {
+
+            diffExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+
+                    if(latestFilePaths == null) {
+                        return;
+                    }
+
+                    update(SortedPathDiff.apply(latestFilePaths,sortedCopy(added),sortedCopy(removed)),false);
+                }
+            });
+        }
+
+        /** Method used to show the paths of a results file, see FileExtSearchService.EXTRA_RESULTS_FILE
+         * @param resultsFile file holding one path per line */
+        public void setResultsFile(@NonNull final File resultsFile) {
+
+            diffExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+
+                    final ResultsFilePager newPager = new ResultsFilePager(resultsFile,Adapter.this);
+                    newPager.open();
+                    latestFilePaths = null;
+
+                    // Either release sees the pager or the pager sees the released flag
+                    openingPager = newPager;
+
+                    if(released) {
+                        newPager.close();
+                        return;
+                    }
+
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+
+                            openingPager = null;
+
+                            if(released) {
+                                newPager.close();
+                                return;
+                            }
+
+                            if(pager != null) {
+                                pager.close();
+                            }
+
+                            pager = newPager;
+                            filePaths = Collections.emptyList();
+                            notifyDataSetChanged();
+                        }
+                    });
+                }
+            });
+        }
+
+        /** Method used to stop the background threads of the adapter. Must be called on the UI thread */
+        public void release() {
+
+            released = true;
+            handler.removeCallbacksAndMessages(null);
+            diffExecutor.shutdownNow();
+
+            ResultsFilePager unshownPager = openingPager;
+
+            if(unshownPager != null) {
+                unshownPager.close();
+            }
+
+            if(pager != null) {
+                pager.close();
+                pager = null;
+            }
+        }
+
+        /** Method executed on the diff thread to compute the next list and its difference to the list the UI will show */
+        private void update(List<String> paths, boolean merge) {
+
+            List<String> previous = latestFilePaths != null ? latestFilePaths : Collections.<String>emptyList();
+            final List<String> next = merge ? SortedPathDiff.merge(previous,paths) : paths;
+
+            // Leaving a results file changes every row
+            final SortedPathDiff diff = latestFilePaths != null ? SortedPathDiff.calculate(previous,next) : null;
+            latestFilePaths = next;
+
+            if(diff != null && diff.isEmpty()) {
+                return;
             }
 
-            return filePaths.length;
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+
+                    if(released) {
+                        return;
+                    }
+
+                    filePaths = next;
+
+                    if(diff == null) {
+
+                        if(pager != null) {
+                            pager.close();
+                            pager = null;
+                        }
+
+                        notifyDataSetChanged();
+                    } else {
+                        diff.dispatchUpdatesTo(Adapter.this);
+                    }
+                }
+            });
         }
 
-        public void setFilePaths(@Nullable String[] filePaths) {
-            this.filePaths = filePaths;
-            notifyDataSetChanged();
+        private static List<String> sortedCopy(String[] paths) {
+
+            if(paths == null) {
+                return Collections.emptyList();
+            }
+
+            List<String> sorted = new ArrayList<>(Arrays.asList(paths));
+            Collections.sort(sorted);
+
+            return sorted;
         }
     }
 
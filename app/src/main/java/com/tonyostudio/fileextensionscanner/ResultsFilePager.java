@@ -0,0 +1,219 @@
+package com.tonyostudio.fileextensionscanner;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v7.widget.RecyclerView;
+import android.util.LruCache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Pages through the results file the FileExtSearchService writes when the matched files exceed its
+ * memory budget, see FileExtSearchService.EXTRA_RESULTS_FILE. Only the byte offset of every PAGE_SIZE-th
+ * line is kept in memory, together with the last MAX_CACHED_PAGES pages that were shown. Pages that are
+ * not cached are read on a background thread, after which their rows are rebound.
+ */
+public class ResultsFilePager {
+
+    private static final int PAGE_SIZE = 256;
+    private static final int MAX_CACHED_PAGES = 8;
+
+    private final File file;
+    private final RecyclerView.Adapter adapter;
+    private final LruCache<Integer,String[]> pages = new LruCache<>(MAX_CACHED_PAGES);
+    private final Set<Integer> loadingPages = new HashSet<>();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    /** Byte offset of the first line of each page */
+    private long[] pageOffsets = new long[16];
+    private int count;
+
+    /** Set on the UI thread, read by the page loads so they stop early */
+    private volatile boolean closed;
+
+    /**
+     * @param file results file holding one path per line
+     * @param adapter adapter showing the paths. Notified when a page was read
+     */
+    public ResultsFilePager(File file, RecyclerView.Adapter adapter) {
+        this.file = file;
+        this.adapter = adapter;
+    }
+
+    /**
+     * Method used to index the lines of the results file. Reads the whole file once, so call it off of the UI thread.
+     * @return false if the file could not be read
+     */
+    public boolean open() {
+
+        InputStream inputStream = null;
+
+        try {
+
+            inputStream = new BufferedInputStream(new FileInputStream(file),64 * 1024);
+
+            long offset = 0;
+            boolean lineStart = true;
+            int b;
+
+            while((b = inputStream.read()) != -1) {
+
+                if(lineStart) {
+
+                    if(count % PAGE_SIZE == 0) {
+
+                        int page = count / PAGE_SIZE;
+
+                        if(page == pageOffsets.length) {
+                            pageOffsets = Arrays.copyOf(pageOffsets,pageOffsets.length * 2);
+                        }
+
+                        pageOffsets[page] = offset;
+                    }
+
+                    count++;
+                    lineStart = false;
+                }
+
+                if(b == '\n') {
+                    lineStart = true;
+                }
+
+                offset++;
+            }
+
+            return true;
+        } catch (IOException e) {
+            count = 0;
+            return false;
+        } finally {
+            close(inputStream);
+        }
+    }
+
+    /** @return number of paths in the results file */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Method used to get a path. Must be called on the UI thread.
+     * @param position position of the path
+     * @return the path or null if its page is not read yet, in which case the page is read
+     * and its rows are rebound once it was read
+     */
+    public String get(int position) {
+
+        int page = position / PAGE_SIZE;
+        String[] paths = pages.get(page);
+
+        // Read ahead once the second half of a page is shown
+        if(position % PAGE_SIZE >= PAGE_SIZE / 2 && (page + 1) * PAGE_SIZE < count) {
+            loadPage(page + 1);
+        }
+
+        if(paths == null) {
+            loadPage(page);
+            return null;
+        }
+
+        int index = position % PAGE_SIZE;
+
+        return index < paths.length ? paths[index] : null;
+    }
+
+    /** Method used to stop reading pages. Must be called on the UI thread once the adapter no longer shows the results file.
+     *  A page that is being read stops at its next line */
+    public void close() {
+        closed = true;
+        executor.shutdownNow();
+    }
+
+    private void loadPage(final int page) {
+
+        if(closed || pages.get(page) != null || !loadingPages.add(page)) {
+            return;
+        }
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+
+                if(closed) {
+                    return;
+                }
+
+                final String[] paths = readPage(page);
+
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+
+                        loadingPages.remove(page);
+
+                        if(closed || paths == null) {
+                            return;
+                        }
+
+                        pages.put(page,paths);
+                        adapter.notifyItemRangeChanged(page * PAGE_SIZE,paths.length);
+                    }
+                });
+            }
+        });
+    }
+
+    /** Method executed on the background thread to read the lines of a single page */
+    private String[] readPage(int page) {
+
+        int size = Math.min(PAGE_SIZE,count - page * PAGE_SIZE);
+        String[] paths = new String[size];
+        FileInputStream inputStream = null;
+
+        try {
+
+            inputStream = new FileInputStream(file);
+            inputStream.getChannel().position(pageOffsets[page]);
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream,"UTF-8"));
+
+            for (int i = 0; i < size; i++) {
+
+                if(closed) {
+                    return null;
+                }
+
+                paths[i] = reader.readLine();
+            }
+
+            return paths;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            close(inputStream);
+        }
+    }
+
+    private static void close(InputStream inputStream) {
+
+        if(inputStream != null) {
+
+            try {
+                inputStream.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package com.tonyostudio.fileextensionscanner;
+
+import android.support.v7.util.ListUpdateCallback;
+import android.support.v7.widget.RecyclerView;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Difference between two lists of file paths that are both sorted and free of duplicates.
+ * Because both lists are sorted, the difference is found with a single merge pass in O(n + m),
+ * where DiffUtil needs O(n + d^2) and becomes too slow for tens of thousands of paths with
+ * many changes. Calculate it off of the UI thread and dispatch it to the adapter on the UI thread,
+ * which then only rebinds the rows that were inserted or removed.
+ */
+public class SortedPathDiff {
+
+    private static final int REMOVE = 0;
+    private static final int INSERT = 1;
+
+    /** Operations as triples of type, adapter position and item count, in the order they are dispatched */
+    private int[] operations = new int[3 * 16];
+    private int operationCount;
+
+    private SortedPathDiff() {
+    }
+
+    /**
+     * Method used to calculate the difference between two sorted lists of paths.
+     * @param oldPaths paths currently shown by the adapter
+     * @param newPaths paths the adapter will show
+     * @return the difference, ready to be dispatched
+     */
+    public static SortedPathDiff calculate(List<String> oldPaths, List<String> newPaths) {
+
+        SortedPathDiff diff = new SortedPathDiff();
+
+        int oldIndex = 0;
+        int newIndex = 0;
+
+        // Position in the list the adapter shows while the operations are applied in order
+        int position = 0;
+
+        while(oldIndex < oldPaths.size() || newIndex < newPaths.size()) {
+
+            int order;
+
+            if(oldIndex == oldPaths.size()) {
+                order = 1;
+            } else if(newIndex == newPaths.size()) {
+                order = -1;
+            } else {
+                order = oldPaths.get(oldIndex).compareTo(newPaths.get(newIndex));
+            }
+
+            if(order == 0) {
+                oldIndex++;
+                newIndex++;
+                position++;
+            } else if(order < 0) {
+                diff.add(REMOVE,position);
+                oldIndex++;
+            } else {
+                diff.add(INSERT,position);
+                newIndex++;
+                position++;
+            }
+        }
+
+        return diff;
+    }
+
+    /**
+     * Method used to merge a sorted batch of paths into a sorted list. Paths already in the list are not added again.
+     * @param paths sorted paths
+     * @param batch sorted paths to add
+     * @return a new sorted list holding the paths of both lists
+     */
+    public static List<String> merge(List<String> paths, List<String> batch) {
+
+        List<String> merged = new ArrayList<>(paths.size() + batch.size());
+
+        int index = 0;
+        int batchIndex = 0;
+
+        while(index < paths.size() && batchIndex < batch.size()) {
+
+            int order = paths.get(index).compareTo(batch.get(batchIndex));
+
+            if(order <= 0) {
+                merged.add(paths.get(index++));
+
+                if(order == 0) {
+                    batchIndex++;
+                }
+            } else {
+                merged.add(batch.get(batchIndex++));
+            }
+        }
+
+        merged.addAll(paths.subList(index,paths.size()));
+        merged.addAll(batch.subList(batchIndex,batch.size()));
+
+        return merged;
+    }
+
+    /**
+     * Method used to apply the changes of a rescan to a sorted list.
+     * @param paths sorted paths
+     * @param added sorted paths to add, paths already in the list are not added again
+     * @param removed sorted paths to remove
+     * @return a new sorted list holding the paths of the list and of the added paths, without the removed paths
+     */
+    public static List<String> apply(List<String> paths, List<String> added, List<String> removed) {
+
+        List<String> merged = merge(paths,added);
+        List<String> applied = new ArrayList<>(merged.size());
+
+        int removedIndex = 0;
+
+        for (String path : merged) {
+
+            while(removedIndex < removed.size() && removed.get(removedIndex).compareTo(path) < 0) {
+                removedIndex++;
+            }
+
+            if(removedIndex == removed.size() || !removed.get(removedIndex).equals(path)) {
+                applied.add(path);
+            }
+        }
+
+        return applied;
+    }
+
+    /** @return true if the lists hold the same paths */
+    public boolean isEmpty() {
+        return operationCount == 0;
+    }
+
+    /**
+     * Method used to notify an adapter of the inserted and removed rows.
+     * Must be called on the UI thread, right after the adapter switched to the new list.
+     * @param adapter adapter showing the paths
+     */
+    public void dispatchUpdatesTo(final RecyclerView.Adapter adapter) {
+
+        dispatchUpdatesTo(new ListUpdateCallback() {
+            @Override
+            public void onInserted(int position, int count) {
+                adapter.notifyItemRangeInserted(position,count);
+            }
+
+            @Override
+            public void onRemoved(int position, int count) {
+                adapter.notifyItemRangeRemoved(position,count);
+            }
+
+            @Override
+            public void onMoved(int fromPosition, int toPosition) {
+                adapter.notifyItemMoved(fromPosition,toPosition);
+            }
+
+            @Override
+            public void onChanged(int position, int count, Object payload) {
+                adapter.notifyItemRangeChanged(position,count,payload);
+            }
+        });
+    }
+
+    /**
+     * Method used to dispatch the inserted and removed rows to a callback, in the order they have to be applied.
+     * @param callback callback receiving the row ranges
+     */
+    public void dispatchUpdatesTo(ListUpdateCallback callback) {
+
+        for (int i = 0; i < operationCount; i++) {
+
+            int type = operations[i * 3];
+            int position = operations[i * 3 + 1];
+            int count = operations[i * 3 + 2];
+
+            if(type == REMOVE) {
+                callback.onRemoved(position,count);
+            } else {
+                callback.onInserted(position,count);
+            }
+        }
+    }
+
+    /** Utility method used to add a single row operation, extending the last operation if it is part of the same range */
+    private void add(int type, int position) {
+
+        if(operationCount > 0) {
+
+            int last = (operationCount - 1) * 3;
+
+            // Removed rows shift the following rows up, so a removal range stays at its start position
+            if(operations[last] == type && type == REMOVE && operations[last + 1] == position) {
+                operations[last + 2]++;
+                return;
+            }
+
+            if(operations[last] == type && type == INSERT && operations[last + 1] + operations[last + 2] == position) {
+                operations[last + 2]++;
+                return;
+            }
+        }
+
+        if(operationCount * 3 == operations.length) {
+            operations = Arrays.copyOf(operations,operations.length * 2);
+        }
+
+        operations[operationCount * 3] = type;
+        operations[operationCount * 3 + 1] = position;
+        operations[operationCount * 3 + 2] = 1;
+        operationCount++;
+    }
+}
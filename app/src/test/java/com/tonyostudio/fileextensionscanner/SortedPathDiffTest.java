@@ -0,0 +1,156 @@
+package com.tonyostudio.fileextensionscanner;
+
+import android.support.v7.util.ListUpdateCallback;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of the difference and merge of sorted path lists.
+ */
+public class SortedPathDiffTest {
+
+    @Test
+    public void calculate_equalListsAreEmpty() throws Exception {
+
+        List<String> paths = Arrays.asList("/a","/b");
+
+        assertTrue(SortedPathDiff.calculate(paths,paths).isEmpty());
+        assertTrue(SortedPathDiff.calculate(Collections.<String>emptyList(),Collections.<String>emptyList()).isEmpty());
+    }
+
+    @Test
+    public void calculate_groupsConsecutiveRows() throws Exception {
+
+        List<String> operations = new ArrayList<>();
+        SortedPathDiff.calculate(Arrays.asList("/a","/b","/c","/f"),Arrays.asList("/a","/d","/e","/f","/g"))
+                .dispatchUpdatesTo(new RecordingCallback(operations));
+
+        assertEquals(Arrays.asList("remove 1 2","insert 1 2","insert 4 1"),operations);
+    }
+
+    @Test
+    public void calculate_turnsOldListIntoNewList() throws Exception {
+
+        Random random = new Random(42);
+
+        for (int run = 0; run < 200; run++) {
+
+            List<String> oldPaths = randomPaths(random);
+            List<String> newPaths = randomPaths(random);
+
+            ReplayingCallback replay = new ReplayingCallback(oldPaths,newPaths);
+            SortedPathDiff.calculate(oldPaths,newPaths).dispatchUpdatesTo(replay);
+
+            assertEquals(newPaths,replay.rows);
+        }
+    }
+
+    @Test
+    public void merge_keepsOrderAndDropsDuplicates() throws Exception {
+
+        assertEquals(Arrays.asList("/a","/b","/c","/d","/e"),
+                SortedPathDiff.merge(Arrays.asList("/a","/c","/e"),Arrays.asList("/b","/c","/d")));
+        assertEquals(Arrays.asList("/a","/b"),SortedPathDiff.merge(Collections.<String>emptyList(),Arrays.asList("/a","/b")));
+        assertEquals(Arrays.asList("/a","/b"),SortedPathDiff.merge(Arrays.asList("/a","/b"),Collections.<String>emptyList()));
+    }
+
+    @Test
+    public void apply_addsAndRemovesPaths() throws Exception {
+
+        assertEquals(Arrays.asList("/a","/b","/d"),
+                SortedPathDiff.apply(Arrays.asList("/a","/c","/d"),Arrays.asList("/b","/d"),Arrays.asList("/c","/x")));
+        assertEquals(Arrays.asList("/a"),
+                SortedPathDiff.apply(Collections.<String>emptyList(),Arrays.asList("/a"),Collections.<String>emptyList()));
+        assertEquals(Collections.<String>emptyList(),
+                SortedPathDiff.apply(Arrays.asList("/a","/b"),Collections.<String>emptyList(),Arrays.asList("/a","/b")));
+    }
+
+    /** Utility method used to get a sorted list of distinct paths out of a small set, so two lists share some */
+    private static List<String> randomPaths(Random random) {
+
+        List<String> paths = new ArrayList<>();
+
+        for (int i = 0; i < 30; i++) {
+
+            if(random.nextBoolean()) {
+                paths.add("/storage/" + (char) ('a' + i));
+            }
+        }
+
+        return paths;
+    }
+
+    /** Callback recording the dispatched operations as text */
+    private static final class RecordingCallback implements ListUpdateCallback {
+
+        private final List<String> operations;
+
+        RecordingCallback(List<String> operations) {
+            this.operations = operations;
+        }
+
+        @Override
+        public void onInserted(int position, int count) {
+            operations.add("insert " + position + " " + count);
+        }
+
+        @Override
+        public void onRemoved(int position, int count) {
+            operations.add("remove " + position + " " + count);
+        }
+
+        @Override
+        public void onMoved(int fromPosition, int toPosition) {
+            fail("unexpected move");
+        }
+
+        @Override
+        public void onChanged(int position, int count, Object payload) {
+            fail("unexpected change");
+        }
+    }
+
+    /** Callback applying the dispatched operations to a copy of the old list, like an adapter would */
+    private static final class ReplayingCallback implements ListUpdateCallback {
+
+        final List<String> rows;
+        private final List<String> newPaths;
+
+        ReplayingCallback(List<String> oldPaths, List<String> newPaths) {
+            this.rows = new ArrayList<>(oldPaths);
+            this.newPaths = newPaths;
+        }
+
+        @Override
+        public void onInserted(int position, int count) {
+
+            // Rows before the position already match the new list, so the inserted rows are found at the same position
+            for (int i = 0; i < count; i++) {
+                rows.add(position + i,newPaths.get(position + i));
+            }
+        }
+
+        @Override
+        public void onRemoved(int position, int count) {
+            rows.subList(position,position + count).clear();
+        }
+
+        @Override
+        public void onMoved(int fromPosition, int toPosition) {
+            fail("unexpected move");
+        }
+
+        @Override
+        public void onChanged(int position, int count, Object payload) {
+            fail("unexpected change");
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.tonyostudio.library;
+
+import android.content.Intent;
+import android.support.annotation.NonNull;
+
+/**
+ * Predicates on the attributes of a file that are passed to the FileExtSearchService next to the
+ * file extensions. They are evaluated during the scan against the FileAttributes that were read
+ * while listing each directory, so filtering does not cost any additional call per file.
+ * */
+class AttributeFilter {
+
+    /** Value of a predicate that is not set */
+    static final long UNSET = -1;
+
+    /** Minimum size in bytes of a regular file. UNSET if there is no minimum */
+    private final long minSize;
+
+    /** Maximum size in bytes of a regular file. UNSET if there is no maximum */
+    private final long maxSize;
+
+    /** Maximum time in milliseconds since a file was last modified. UNSET if there is no maximum */
+    private final long maxAge;
+
+    /** Indicates if files and directories whose name starts with a dot are scanned */
+    private final boolean includeHidden;
+
+    /** Indicates if only readable files are matched */
+    private final boolean readableOnly;
+
+    /** Files modified before this time in milliseconds do not match. Computed once when the filter is created */
+    private final long modifiedAfter;
+
+    AttributeFilter(long minSize, long maxSize, long maxAge, boolean includeHidden, boolean readableOnly) {
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.maxAge = maxAge;
+        this.includeHidden = includeHidden;
+        this.readableOnly = readableOnly;
+        this.modifiedAfter = maxAge != UNSET ? System.currentTimeMillis() - maxAge : UNSET;
+    }
+
+    /** Method used to create a filter from the extras of the intent that started the service.
+     * @param intent intent that started the service
+     * @return the filter. A filter without predicates is returned if none were passed in */
+    @NonNull
+    static AttributeFilter fromIntent(@NonNull Intent intent) {
+
+        return new AttributeFilter(intent.getLongExtra(FileExtSearchService.EXTRA_MIN_SIZE,UNSET),
+                intent.getLongExtra(FileExtSearchService.EXTRA_MAX_SIZE,UNSET),
+                intent.getLongExtra(FileExtSearchService.EXTRA_MAX_AGE,UNSET),
+                intent.getBooleanExtra(FileExtSearchService.EXTRA_INCLUDE_HIDDEN,true),
+                intent.getBooleanExtra(FileExtSearchService.EXTRA_READABLE_ONLY,false));
+    }
+
+    /** @param name name of a file or directory
+     *  @return false if the file or directory, and everything below it, must be skipped without reading its attributes */
+    boolean acceptsName(@NonNull String name) {
+        return includeHidden || !name.startsWith(".");
+    }
+
+    /** @param attributes attributes of a file or directory
+     *  @return true if the file or directory matches all predicates. Size predicates only match regular files */
+    boolean accepts(@NonNull FileAttributes attributes) {
+
+        if(minSize != UNSET || maxSize != UNSET) {
+
+            if(!attributes.isRegularFile()) {
+                return false;
+            }
+
+            if(minSize != UNSET && attributes.getSize() < minSize) {
+                return false;
+            }
+
+            if(maxSize != UNSET && attributes.getSize() > maxSize) {
+                return false;
+            }
+        }
+
+        if(modifiedAfter != UNSET && attributes.getLastModified() < modifiedAfter) {
+            return false;
+        }
+
+        return !readableOnly || attributes.isReadable();
+    }
+
+    /** Method used to append the predicates to the key of a query. Nothing is appended for a filter without predicates
+     * @param key key of the query */
+    void appendKey(@NonNull StringBuilder key) {
+
+        if(minSize == UNSET && maxSize == UNSET && maxAge == UNSET && includeHidden && !readableOnly) {
+            return;
+        }
+
+        key.append('|').append(minSize).append(',').append(maxSize).append(',').append(maxAge)
+                .append(',').append(includeHidden).append(',').append(readableOnly);
+    }
+}
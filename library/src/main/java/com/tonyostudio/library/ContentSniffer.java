@@ -0,0 +1,329 @@
+package com.tonyostudio.library;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Detects the type of files that did not match by extension from their first bytes, see FileSignatures.
+ * Files are submitted by the DirectoryScanner while it walks the watched directories and are read on a
+ * small pool of worker threads, so reading headers overlaps with listing directories. At most MAX_PENDING
+ * files are queued or being read at a time, after which submit blocks the scanner. Headers are read through
+ * a FileChannel into direct buffers that are pooled between the workers.
+ *
+ * Detected types are cached in the FileExtSearchDatabase by path, size and last modified time, so
+ * each file is only read again after it changed. The cached types of a directory are loaded with a single
+ * query by the first worker that needs them. Matches and new cache entries are queued by the workers
+ * and handed over on the scanner thread, which is the only thread that touches the collector.
+ * */
+class ContentSniffer {
+
+    /** Type cached for files that did not match any signature */
+    static final String UNKNOWN_TYPE = "";
+
+    /** Number of worker threads reading headers */
+    private static final int THREADS = 2;
+
+    /** Maximum number of files queued or being read */
+    private static final int MAX_PENDING = 64;
+
+    /** A file whose type was detected */
+    static final class SniffedFile {
+
+        final int directory;
+        final File file;
+        final long size;
+        final long lastModified;
+        String type;
+
+        SniffedFile(int directory, File file, long size, long lastModified) {
+            this.directory = directory;
+            this.file = file;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /** Cached type of a file together with the size and last modified time it was detected for */
+    static final class CachedType {
+
+        final long size;
+        final long lastModified;
+        final String type;
+
+        CachedType(long size, long lastModified, String type) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.type = type;
+        }
+    }
+
+    /** Cached types of the files of a single directory. Loaded lazily on a worker, so the scanner never waits for the database */
+    private final class DirectoryCache {
+
+        final int directory;
+        private final String dirPath;
+
+        /** Cached types by file name. Null until the first file of the directory is looked up */
+        private Map<String,CachedType> types;
+
+        DirectoryCache(int directory, String dirPath) {
+            this.directory = directory;
+            this.dirPath = dirPath;
+        }
+
+        /** @return the cached type of the file or null if it was not detected yet or changed since */
+        synchronized String get(SniffedFile sniffedFile) {
+
+            if(types == null) {
+                types = database.getContentTypes(dirPath);
+            }
+
+            CachedType cached = types.get(sniffedFile.file.getName());
+
+            if(cached == null || cached.size != sniffedFile.size || cached.lastModified != sniffedFile.lastModified) {
+                return null;
+            }
+
+            return cached.type;
+        }
+    }
+
+    private final Set<String> contentTypes;
+    private final FileExtSearchDatabase database;
+    private final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    private final Semaphore pendingPermits = new Semaphore(MAX_PENDING);
+    private final BlockingQueue<ByteBuffer> buffers = new ArrayBlockingQueue<>(THREADS);
+
+    /** Files that matched one of the content types, waiting to be added to the collector */
+    private final Queue<SniffedFile> matches = new ConcurrentLinkedQueue<>();
+
+    /** Files that were read, waiting to be saved to the cache */
+    private final Queue<SniffedFile> cacheUpdates = new ConcurrentLinkedQueue<>();
+
+    /** Cached types of the directory the last file was submitted from. Only accessed on the scanner thread */
+    private DirectoryCache directoryCache;
+
+    /**
+     * @param contentTypes types a file must have to match, see normalizeTypes
+     * @param database database holding the cached types. May be null, in which case nothing is cached
+     * */
+    ContentSniffer(@NonNull Set<String> contentTypes, @Nullable FileExtSearchDatabase database) {
+        this.contentTypes = contentTypes;
+        this.database = database;
+
+        for (int i = 0; i < THREADS; i++) {
+            buffers.add(ByteBuffer.allocateDirect(FileSignatures.HEADER_LENGTH));
+        }
+    }
+
+    /**
+     * Utility method used to turn the content types passed to the service into a set of types.
+     * Types are lower cased and a leading dot is removed, so ".JPG" and "jpg" are the same type.
+     * @param contentTypes content types passed to the service. May be null
+     * @return the sorted set of types or null if no types were passed in
+     * */
+    static Set<String> normalizeTypes(String[] contentTypes) {
+
+        if(contentTypes == null) {
+            return null;
+        }
+
+        Set<String> types = new TreeSet<>();
+
+        for (String contentType : contentTypes) {
+
+            if(contentType == null) {
+                continue;
+            }
+
+            String type = contentType.toLowerCase(Locale.US);
+
+            if(type.startsWith(".")) {
+                type = type.substring(1);
+            }
+
+            if(type.length() > 0) {
+                types.add(type);
+            }
+        }
+
+        return types.isEmpty() ? null : types;
+    }
+
+    /**
+     * Method used to queue a regular file for detection. Blocks while MAX_PENDING files are pending.
+     * @param directory id of the directory of the file in the collector
+     * @param file the file
+     * @param size size of the file in bytes
+     * @param lastModified last modified time of the file in milliseconds
+     * */
+    void submit(int directory, File file, long size, long lastModified) {
+
+        // Empty files have no signature
+        if(size <= 0) {
+            return;
+        }
+
+        // Files of a directory are submitted one after another, so they share the cache of their directory
+        if(database != null && (directoryCache == null || directoryCache.directory != directory)) {
+            directoryCache = new DirectoryCache(directory,file.getParent());
+        }
+
+        final SniffedFile sniffedFile = new SniffedFile(directory,file,size,lastModified);
+        final DirectoryCache cache = directoryCache;
+
+        pendingPermits.acquireUninterruptibly();
+
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+
+                    try {
+                        sniff(sniffedFile,cache);
+                    } finally {
+                        pendingPermits.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pendingPermits.release();
+        }
+    }
+
+    /** Method used to block until all submitted files were processed */
+    void awaitIdle() {
+        pendingPermits.acquireUninterruptibly(MAX_PENDING);
+        pendingPermits.release(MAX_PENDING);
+    }
+
+    /**
+     * Method used to add the files that matched since the last call to a collector.
+     * Must be called on the scanner thread.
+     * @param collector collector of the scan
+     * @param listener listener the added files are reported to. May be null
+     * */
+    void drainTo(@NonNull ResultCollector collector, @Nullable ScanListener listener) {
+
+        SniffedFile match;
+
+        while((match = matches.poll()) != null) {
+
+            if(collector.add(match.directory,match.file.getName(),match.size,match.lastModified) && listener != null) {
+                listener.onFileMatched(match.file.getPath(),match.size,match.lastModified);
+            }
+        }
+    }
+
+    /** Method used to save the types detected since the last call to the cache */
+    void saveCache() {
+
+        if(database == null) {
+            cacheUpdates.clear();
+            return;
+        }
+
+        List<SniffedFile> updates = new ArrayList<>();
+        SniffedFile update;
+
+        while((update = cacheUpdates.poll()) != null) {
+            updates.add(update);
+        }
+
+        if(!updates.isEmpty()) {
+            database.saveContentTypes(updates);
+        }
+    }
+
+    /** Method used to stop the worker threads. Files that are still pending are dropped */
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /** Method executed on a worker thread to get the type of a file from the cache of its directory or its header.
+     *  The cache is null if nothing is cached */
+    private void sniff(SniffedFile sniffedFile, DirectoryCache cache) {
+
+        String type = cache != null ? cache.get(sniffedFile) : null;
+
+        if(type == null) {
+
+            type = readType(sniffedFile.file);
+
+            // Files that could not be read are tried again on the next scan
+            if(type == null) {
+                return;
+            }
+
+            sniffedFile.type = type;
+            cacheUpdates.add(sniffedFile);
+        }
+
+        if(contentTypes.contains(type)) {
+            matches.add(sniffedFile);
+        }
+    }
+
+    /**
+     * Method used to read the header of a file into a pooled buffer and detect its type.
+     * @param file file to read
+     * @return the type of the file, UNKNOWN_TYPE if no signature matched or null if the file could not be read
+     * */
+    private String readType(File file) {
+
+        ByteBuffer buffer = buffers.poll();
+
+        if(buffer == null) {
+            buffer = ByteBuffer.allocateDirect(FileSignatures.HEADER_LENGTH);
+        }
+
+        try {
+
+            FileInputStream inputStream = new FileInputStream(file);
+
+            try {
+
+                FileChannel channel = inputStream.getChannel();
+                buffer.clear();
+
+                int read;
+
+                do {
+                    read = channel.read(buffer);
+                } while(read > 0 && buffer.hasRemaining());
+
+                buffer.flip();
+            } finally {
+                inputStream.close();
+            }
+
+            String type = FileSignatures.detect(buffer);
+
+            return type != null ? type : UNKNOWN_TYPE;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            buffers.offer(buffer);
+        }
+    }
+}
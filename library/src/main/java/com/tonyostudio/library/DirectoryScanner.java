@@ -0,0 +1,715 @@
+package com.tonyostudio.library;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Walks the watched directories of a FileExtSearchService and adds the matching files to a
+ * ResultCollector. The watched directories are grouped by the volume they are stored on and every
+ * volume scans its watched directories one after another, while different volumes are scanned at the
+ * same time. Directories are listed on the VolumeWorkers of their volume, which adapt the number of
+ * parallel listings to the measured latency of the volume, and can be throttled by an IoThrottle.
+ * Each listed entry has its attributes read once on the worker, which are shared by the type check,
+ * the AttributeFilter and the collected size and last modified time.
+ *
+ * Listings are handed back to the scanner thread, which is the only thread that matches files,
+ * touches the collector and owns the traversal frontier. The directories that still need to be
+ * scanned are kept on an explicit stack per volume, so the frontier can be saved as a ScanCheckpoint
+ * at intervals and a later scan can resume from it. When a PathPattern is set, every pending directory
+ * carries the state of the pattern at that directory. Directories that can not lead to a match are
+ * never pushed, and directories where only literal names can match are not listed at all.
+ * Regular files that do not match by extension can be handed to a ContentSniffer, whose matches are
+ * collected between directories. Matched files can be streamed to a ScanListener on the scanner thread,
+ * which holds back the workers while the listener is busy. A RescanScheduler can record how the subtrees
+ * near the watched directories change and skip the ones that are not due.
+ * */
+class DirectoryScanner {
+
+    /** Minimum time in milliseconds between two checkpoints */
+    static final long CHECKPOINT_INTERVAL = 5000;
+
+    /** Callback used to save the frontier of a running scan */
+    interface Checkpointer {
+
+        /**
+         * Method called when the frontier of the scan should be saved. The files added to the collector
+         * since the last checkpoint should be saved with it, after which the collector must be marked.
+         * @param checkpoint frontier of the scan
+         * @param collector the collector of the scan
+         * @throws IOException if the checkpoint could not be saved
+         * */
+        void saveCheckpoint(ScanCheckpoint checkpoint, ResultCollector collector) throws IOException;
+    }
+
+    /** Directory waiting to be scanned together with its id in the collector */
+    private static final class PendingDirectory {
+
+        final File dir;
+        final int id;
+
+        /** State of the path pattern at the directory. Null if no pattern is set */
+        final long[] matchState;
+
+        /** Number of directories between the directory and its watched directory */
+        final int depth;
+
+        /** Innermost tracked subtree the directory is located in. Null if subtrees are not tracked
+         *  or the directory was resumed from a checkpoint */
+        final RescanScheduler.Subtree subtree;
+
+        /** Indicates if the directory was resumed from a checkpoint or is located below such a directory */
+        final boolean resumed;
+
+        PendingDirectory(File dir, int id, long[] matchState, int depth, RescanScheduler.Subtree subtree, boolean resumed) {
+            this.dir = dir;
+            this.id = id;
+            this.matchState = matchState;
+            this.depth = depth;
+            this.subtree = subtree;
+            this.resumed = resumed;
+        }
+    }
+
+    /** Entry of a listed directory that passed the name and pattern checks, with its attributes */
+    private static final class Entry {
+
+        final File file;
+        final long[] matchState;
+        final FileAttributes attributes;
+
+        Entry(File file, long[] matchState, FileAttributes attributes) {
+            this.file = file;
+            this.matchState = matchState;
+            this.attributes = attributes;
+        }
+    }
+
+    /** Directory listed by a worker thread */
+    private static final class Listing {
+
+        final VolumeScan volume;
+        final PendingDirectory directory;
+
+        /** Entries of the directory. Null if the directory could not be listed */
+        List<Entry> entries;
+
+        /** Time the listing took in nanoseconds */
+        long nanos;
+
+        /** Set if the worker was interrupted while throttled */
+        IOException error;
+
+        Listing(VolumeScan volume, PendingDirectory directory) {
+            this.volume = volume;
+            this.directory = directory;
+        }
+    }
+
+    /** Watched directories of a single volume and their frontier */
+    private static final class VolumeScan {
+
+        final VolumeWorkers workers;
+
+        /** Watched directories of the volume that were not started yet, in the order they are scanned */
+        final List<String> roots = new ArrayList<>();
+        int nextRoot;
+
+        /** Watched directory being scanned. Null if none was started yet or all were scanned */
+        String currentRoot;
+
+        /** Directories of the current root that still need to be listed. The head is listed next */
+        final Deque<PendingDirectory> pending = new ArrayDeque<>();
+
+        /** Directories of the current root being listed by the workers */
+        final Set<PendingDirectory> inFlight = new LinkedHashSet<>();
+
+        VolumeScan(VolumeWorkers workers) {
+            this.workers = workers;
+        }
+    }
+
+    private final String[] fileExtensions;
+    private final PathPattern pathPattern;
+    private final AttributeFilter attributeFilter;
+    private final ResultCollector matchedFiles;
+    private final Checkpointer checkpointer;
+
+    /** Sniffer the files that do not match by extension are submitted to. Null if no content types were requested */
+    private final ContentSniffer contentSniffer;
+
+    /** Throttle the workers of all volumes share. Null if the scan is not throttled */
+    private final IoThrottle throttle;
+
+    /** Listener the matched files are streamed to. Null if nobody listens */
+    private final ScanListener listener;
+
+    /** Scheduler that tracks the changes of subtrees and decides which ones are skipped. Null if subtrees are not tracked */
+    private final RescanScheduler scheduler;
+
+    /** Listings completed by the workers, waiting to be processed on the scanner thread */
+    private final BlockingQueue<Listing> completedListings = new LinkedBlockingQueue<>();
+
+    private final List<VolumeScan> volumes = new ArrayList<>();
+    private final Set<String> completedRoots = new HashSet<>();
+
+    private long lastCheckpoint;
+
+    /**
+     * @param fileExtensions file extensions that each file is matched against. If null, all files and
+     *                       sub directories are matched.
+     * @param pathPattern pattern the path of each file relative to its watched directory is matched against.
+     *                    May be null. Files must match both the file extensions and the pattern
+     * @param attributeFilter predicates on the attributes of each file
+     * @param matchedFiles collector the matched files are added to
+     * @param checkpointer callback used to save the frontier at intervals. May be null
+     * @param contentSniffer sniffer that regular files not matching the file extensions are submitted to. May be null
+     * @param throttle throttle that caps the number of entries read per second. May be null
+     * @param listener listener the matched files are reported to as they are found. May be null
+     * @param scheduler scheduler that records the changes of subtrees and skips the ones that are not due. May be null
+     * */
+    DirectoryScanner(@Nullable String[] fileExtensions, @Nullable PathPattern pathPattern, @NonNull AttributeFilter attributeFilter,
+                     @NonNull ResultCollector matchedFiles, @Nullable Checkpointer checkpointer,
+                     @Nullable ContentSniffer contentSniffer, @Nullable IoThrottle throttle,
+                     @Nullable ScanListener listener, @Nullable RescanScheduler scheduler) {
+        this.fileExtensions = fileExtensions;
+        this.pathPattern = pathPattern;
+        this.attributeFilter = attributeFilter;
+        this.matchedFiles = matchedFiles;
+        this.checkpointer = checkpointer;
+        this.contentSniffer = contentSniffer;
+        this.throttle = throttle;
+        this.listener = listener;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Method used to scan the watched directories and their sub folders for matching files.
+     *
+     * @param watchedDirectories absolute paths of the watched directories
+     * @param resumeFrom checkpoint of a previous scan of the same watched directories to resume from. May be null.
+     *                   The files saved with the checkpoint must already be part of the collector
+     * @throws IOException if matched files could not be spilled to disk, a checkpoint could not be saved
+     * or the scan was interrupted
+     * */
+    void scan(@NonNull String[] watchedDirectories, @Nullable ScanCheckpoint resumeFrom) throws IOException {
+
+        String roots = ScanCheckpoint.joinRoots(watchedDirectories);
+
+        if(resumeFrom != null) {
+            completedRoots.addAll(resumeFrom.completedRoots);
+        }
+
+        groupByVolume(watchedDirectories);
+
+        try {
+
+            if(resumeFrom != null) {
+                resumeCurrentRoots(resumeFrom);
+            }
+
+            lastCheckpoint = SystemClock.elapsedRealtime();
+
+            while(dispatchListings()) {
+
+                process(takeListing());
+
+                if(contentSniffer != null) {
+                    contentSniffer.drainTo(matchedFiles,listener);
+                }
+
+                long now = SystemClock.elapsedRealtime();
+
+                // Files are checkpointed before they are spilled, spilled files are no longer in memory
+                if(checkpointer != null && (matchedFiles.needsSpill() || now - lastCheckpoint >= CHECKPOINT_INTERVAL)) {
+                    awaitContentSniffer();
+                    checkpointer.saveCheckpoint(createCheckpoint(roots),matchedFiles);
+                    lastCheckpoint = now;
+                }
+
+                matchedFiles.spillIfNeeded();
+            }
+
+            awaitContentSniffer();
+        } finally {
+
+            for (VolumeScan volume : volumes) {
+                volume.workers.shutdown();
+            }
+        }
+    }
+
+    /** Utility method used to group the watched directories that were not completed yet by their volume.
+     *  Watched directories of an unknown volume are grouped together. With a path pattern, watched directories
+     *  inside of another watched directory are left out, their files are matched relative to the outer one */
+    private void groupByVolume(String[] watchedDirectories) {
+
+        Map<Long,VolumeScan> volumesByDevice = new HashMap<>();
+
+        for (String watchedDirectory : watchedDirectories) {
+
+            if(watchedDirectory == null || completedRoots.contains(watchedDirectory)) {
+                continue;
+            }
+
+            if(pathPattern != null && isNested(watchedDirectory,watchedDirectories)) {
+                continue;
+            }
+
+            long device = FileAttributes.getDevice(new File(watchedDirectory));
+            VolumeScan volume = volumesByDevice.get(device);
+
+            if(volume == null) {
+                volume = new VolumeScan(new VolumeWorkers(device));
+                volumesByDevice.put(device,volume);
+                volumes.add(volume);
+            }
+
+            volume.roots.add(watchedDirectory);
+        }
+    }
+
+    /** Utility method used to restore the current roots of a checkpoint and their pending directories.
+     *  Each pending directory is restored into the current root it is located in */
+    private void resumeCurrentRoots(ScanCheckpoint resumeFrom) {
+
+        for (VolumeScan volume : volumes) {
+
+            for (int i = 0; i < volume.roots.size(); i++) {
+
+                String root = volume.roots.get(i);
+
+                if(resumeFrom.currentRoots.contains(root)) {
+                    volume.currentRoot = root;
+                    volume.roots.remove(i);
+                    break;
+                }
+            }
+        }
+
+        for (String pendingDir : resumeFrom.pendingDirs) {
+
+            VolumeScan owner = null;
+
+            for (VolumeScan volume : volumes) {
+
+                // The innermost root wins if current roots are nested
+                if(volume.currentRoot != null && isInside(volume.currentRoot,pendingDir)
+                        && (owner == null || volume.currentRoot.length() > owner.currentRoot.length())) {
+                    owner = volume;
+                }
+            }
+
+            if(owner == null) {
+                continue;
+            }
+
+            String relativePath = relativePath(owner.currentRoot,pendingDir);
+            long[] matchState = null;
+
+            if(pathPattern != null) {
+
+                matchState = pathPattern.stateFor(relativePath);
+
+                if(matchState == null) {
+                    continue;
+                }
+            }
+
+            int id = matchedFiles.addDirectory(ScanResults.NO_DIRECTORY,pendingDir);
+
+            if(id != ScanResults.NO_DIRECTORY) {
+                owner.pending.addLast(new PendingDirectory(new File(pendingDir),id,matchState,depth(relativePath),null,true));
+            }
+        }
+    }
+
+    /**
+     * Method used to hand the pending directories of each volume to its workers, up to the limit of the volume.
+     * A volume without pending or listing directories starts its next watched directory.
+     * @return false if all volumes completed their watched directories
+     * */
+    private boolean dispatchListings() {
+
+        boolean active = false;
+
+        for (VolumeScan volume : volumes) {
+
+            while(volume.inFlight.size() < volume.workers.getLimit()) {
+
+                if(!volume.pending.isEmpty()) {
+                    submitListing(volume,volume.pending.removeFirst());
+                } else if(!volume.inFlight.isEmpty() || !startNextRoot(volume)) {
+                    break;
+                }
+            }
+
+            if(!volume.pending.isEmpty()) {
+                volume.workers.markSaturated();
+            }
+
+            active |= !volume.inFlight.isEmpty();
+        }
+
+        return active;
+    }
+
+    /** Utility method used to complete the current root of a volume and push its next watched directory.
+     *  Watched directories already scanned as part of another watched directory are skipped
+     *  @return false if the volume has no more watched directories */
+    private boolean startNextRoot(VolumeScan volume) {
+
+        if(volume.currentRoot != null) {
+            completedRoots.add(volume.currentRoot);
+            volume.currentRoot = null;
+        }
+
+        while(volume.nextRoot < volume.roots.size()) {
+
+            String watchedDirectory = volume.roots.get(volume.nextRoot++);
+            File root = new File(watchedDirectory);
+
+            if(scheduler != null && scheduler.shouldSkip(root.getAbsolutePath())) {
+                scheduler.skip(null,root.getAbsolutePath(),matchedFiles,listener);
+                completedRoots.add(watchedDirectory);
+                continue;
+            }
+
+            int id = matchedFiles.addDirectory(ScanResults.NO_DIRECTORY,root.getAbsolutePath());
+
+            if(id != ScanResults.NO_DIRECTORY) {
+                volume.currentRoot = watchedDirectory;
+                volume.pending.addLast(new PendingDirectory(root,id,pathPattern != null ? pathPattern.initialState() : null,0,null,false));
+                return true;
+            }
+
+            completedRoots.add(watchedDirectory);
+        }
+
+        return false;
+    }
+
+    /** Utility method used to list a directory on one of the workers of its volume */
+    private void submitListing(VolumeScan volume, PendingDirectory directory) {
+
+        final Listing listing = new Listing(volume,directory);
+        volume.inFlight.add(directory);
+
+        volume.workers.execute(new Runnable() {
+            @Override
+            public void run() {
+
+                try {
+                    list(listing);
+                } finally {
+                    completedListings.add(listing);
+                }
+            }
+        });
+    }
+
+    /** Utility method used to wait for the next listing completed by a worker */
+    private Listing takeListing() throws InterruptedIOException {
+
+        try {
+            return completedListings.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Scan interrupted");
+        }
+    }
+
+    /** Utility method used to wait for the files submitted to the content sniffer, so the
+     *  directories they are in can be checkpointed or the scan can complete */
+    private void awaitContentSniffer() {
+
+        if(contentSniffer != null) {
+            contentSniffer.awaitIdle();
+            contentSniffer.drainTo(matchedFiles,listener);
+        }
+    }
+
+    /** Utility method used to create a checkpoint of the current frontier. Directories being listed are
+     *  saved as pending, none of their files were added to the collector yet */
+    private ScanCheckpoint createCheckpoint(String roots) {
+
+        ScanCheckpoint checkpoint = new ScanCheckpoint(roots,System.currentTimeMillis());
+        checkpoint.completedRoots.addAll(completedRoots);
+
+        for (VolumeScan volume : volumes) {
+
+            if(volume.currentRoot == null) {
+                continue;
+            }
+
+            checkpoint.currentRoots.add(volume.currentRoot);
+
+            for (PendingDirectory directory : volume.inFlight) {
+                checkpoint.pendingDirs.add(directory.dir.getAbsolutePath());
+            }
+
+            for (PendingDirectory directory : volume.pending) {
+                checkpoint.pendingDirs.add(directory.dir.getAbsolutePath());
+            }
+        }
+
+        return checkpoint;
+    }
+
+    /** Utility method used to check if a watched directory is located inside of another watched directory */
+    private static boolean isNested(String watchedDirectory, String[] watchedDirectories) {
+
+        for (String other : watchedDirectories) {
+
+            if(other != null && other.length() < watchedDirectory.length() && isInside(other,watchedDirectory)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /** Utility method used to check if a directory is a watched directory or located inside of it */
+    private static boolean isInside(String watchedDirectory, String dir) {
+
+        if(!dir.startsWith(watchedDirectory)) {
+            return false;
+        }
+
+        return dir.length() == watchedDirectory.length() || watchedDirectory.endsWith("/")
+                || dir.charAt(watchedDirectory.length()) == '/';
+    }
+
+    /** Utility method used to get the number of directories in a relative path */
+    private static int depth(String relativePath) {
+
+        int depth = 0;
+
+        for (String segment : relativePath.split("/")) {
+
+            if(segment.length() > 0) {
+                depth++;
+            }
+        }
+
+        return depth;
+    }
+
+    /** Utility method used to get the path of a directory relative to the watched directory it is located in */
+    private static String relativePath(String watchedDirectory, String dir) {
+
+        if(dir.startsWith(watchedDirectory)) {
+            return dir.substring(watchedDirectory.length());
+        }
+
+        return dir;
+    }
+
+    /**
+     *  This method is executed on a worker thread. It lists a directory and reads the attributes of the
+     *  entries that pass the name and pattern checks.
+     *
+     *  @param listing listing of the directory to fill in
+     * */
+    private void list(Listing listing) {
+
+        long start = System.nanoTime();
+        File[] children = listCandidates(listing.directory);
+
+        if(children == null) {
+            return;
+        }
+
+        List<Entry> entries = new ArrayList<>(children.length);
+
+        for (File child : children) {
+
+            String name = child.getName();
+            long[] matchState = null;
+
+            if(!attributeFilter.acceptsName(name)) {
+                continue;
+            }
+
+            if(pathPattern != null) {
+
+                matchState = pathPattern.next(listing.directory.matchState,name);
+
+                // Nothing at or below this name can match
+                if(matchState == null) {
+                    continue;
+                }
+            }
+
+            // The only attribute read of the entry, every check on the scanner thread uses its result
+            FileAttributes attributes = new FileAttributes();
+
+            if(attributes.read(child)) {
+                entries.add(new Entry(child,matchState,attributes));
+            }
+        }
+
+        listing.nanos = System.nanoTime() - start;
+        listing.entries = entries;
+
+        if(throttle != null) {
+
+            try {
+                throttle.acquire(children.length);
+            } catch (InterruptedIOException e) {
+                listing.error = e;
+            }
+        }
+    }
+
+    /**
+     *  This method processes all files of a listed directory and pushes its sub directories onto
+     *  the pending stack of its volume, so they are scanned next in their listing order.
+     *
+     *  @param listing listed directory to process
+     *  @throws IOException if the worker was interrupted
+     * */
+    private void process(Listing listing) throws IOException {
+
+        VolumeScan volume = listing.volume;
+        PendingDirectory directory = listing.directory;
+        volume.inFlight.remove(directory);
+
+        if(listing.error != null) {
+            throw listing.error;
+        }
+
+        if(listing.entries == null) {
+            return;
+        }
+
+        volume.workers.recordListing(listing.nanos,listing.entries.size());
+
+        RescanScheduler.Subtree subtree = directory.subtree;
+
+        // The subtrees a resumed directory is located in were partly walked by the scan that saved the checkpoint,
+        // so their signatures would be incomplete. Resumed directories are not tracked and keep their saved statistics
+        if(scheduler != null && !directory.resumed && directory.depth <= RescanScheduler.TRACKED_DEPTH) {
+            subtree = scheduler.enter(directory.subtree,directory.dir.getAbsolutePath());
+        }
+
+        List<PendingDirectory> subDirs = new ArrayList<>();
+        int matches = 0;
+
+        for (Entry entry : listing.entries) {
+
+            String name = entry.file.getName();
+            FileAttributes attributes = entry.attributes;
+
+            if(subtree != null) {
+                scheduler.record(subtree,name,attributes.getSize(),attributes.getLastModified());
+            }
+
+            if((pathPattern == null || pathPattern.accepts(entry.matchState)) && attributeFilter.accepts(attributes)) {
+
+                if(matchesFileExtensions(name)) {
+
+                    if(matchedFiles.add(directory.id,name,attributes.getSize(),attributes.getLastModified())) {
+
+                        matches++;
+
+                        if(listener != null) {
+                            listener.onFileMatched(entry.file.getPath(),attributes.getSize(),attributes.getLastModified());
+                        }
+                    }
+                } else if(contentSniffer != null && attributes.isRegularFile()) {
+                    contentSniffer.submit(directory.id,entry.file,attributes.getSize(),attributes.getLastModified());
+                }
+            }
+
+            if(attributes.isDirectory() && (pathPattern == null || pathPattern.canMatchBelow(entry.matchState))) {
+
+                // Subtrees that are not due are carried forward from the saved results instead of being walked
+                if(subtree != null && directory.depth < RescanScheduler.TRACKED_DEPTH
+                        && scheduler.shouldSkip(entry.file.getAbsolutePath())) {
+                    scheduler.skip(subtree,entry.file.getAbsolutePath(),matchedFiles,listener);
+                    continue;
+                }
+
+                int subDirectory = matchedFiles.addDirectory(directory.id,name);
+
+                // Directories that are already part of the collector are not scanned again
+                if(subDirectory != ScanResults.NO_DIRECTORY) {
+                    subDirs.add(new PendingDirectory(entry.file,subDirectory,entry.matchState,directory.depth + 1,subtree,directory.resumed));
+                }
+            }
+        }
+
+        for (int i = subDirs.size() - 1; i >= 0; i--) {
+            volume.pending.addFirst(subDirs.get(i));
+        }
+
+        if(listener != null) {
+            listener.onDirectoryScanned(directory.dir.getPath(),matches);
+        }
+    }
+
+    /** This method returns the files and directories inside of a directory that may match.
+     *
+     * @param directory directory to list
+     * @return all files and directories inside of the directory or, when the path pattern only allows a few
+     * known names, those names whether they exist or not. Null is returned if the directory could not be listed.
+     * */
+    private File[] listCandidates(PendingDirectory directory) {
+
+        if(pathPattern != null) {
+
+            String[] names = pathPattern.literalNames(directory.matchState);
+
+            if(names != null) {
+
+                File[] candidates = new File[names.length];
+
+                // Names that do not exist are dropped when their attributes can not be read
+                for (int i = 0; i < names.length; i++) {
+                    candidates[i] = new File(directory.dir,names[i]);
+                }
+
+                return candidates;
+            }
+        }
+
+        return directory.dir.listFiles();
+    }
+
+    /** Utility method used to check if a file name ends with one of the file extensions.
+     *
+     *  @param fileName name of the file
+     *  @return true if the name ends with one or more of the file extensions or if no file extensions were passed in
+     *  */
+    private boolean matchesFileExtensions(String fileName) {
+
+        if(fileExtensions == null) {
+            return true;
+        }
+
+        for(String e : fileExtensions) {
+
+            if(e != null && fileName.endsWith(e)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,138 @@
+package com.tonyostudio.library;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
+
+import java.io.File;
+
+/**
+ * Reusable holder for the attributes of a file that the scan needs: its type, size, last modified
+ * time and whether it is readable. On Lollipop and later all of them are fetched with a single stat
+ * call. On older versions java.io.File is used, which costs one call per attribute. Last modified
+ * times have a granularity of one second on every version: stat only exposes whole seconds below API 27,
+ * so the time returned by java.io.File is truncated to match and a file does not look modified after an
+ * upgrade to Lollipop. This class is not thread safe.
+ * */
+class FileAttributes {
+
+    private static final boolean STAT_AVAILABLE = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+
+    /** User id of the application process. Only valid when STAT_AVAILABLE is true */
+    private static final int UID = STAT_AVAILABLE ? getUid() : -1;
+
+    private boolean directory;
+    private boolean regularFile;
+    private long size;
+    private long lastModified;
+    private boolean readable;
+
+    /**
+     * Method used to read the attributes of a file into this holder.
+     * @param file file to read
+     * @return false if the file does not exist or its attributes could not be read
+     * */
+    boolean read(File file) {
+
+        if(STAT_AVAILABLE) {
+            return stat(file);
+        }
+
+        directory = file.isDirectory();
+        regularFile = !directory && file.isFile();
+
+        if(!directory && !regularFile) {
+            return file.exists();
+        }
+
+        size = file.length();
+        lastModified = file.lastModified() / 1000L * 1000L;
+        readable = file.canRead();
+
+        return true;
+    }
+
+    /**
+     * Utility method used to get the id of the device, i.e. the volume, a file is stored on.
+     * @param file file or directory
+     * @return the device id or -1 if it could not be read or the running version is older than Lollipop
+     * */
+    static long getDevice(File file) {
+
+        if(!STAT_AVAILABLE) {
+            return -1;
+        }
+
+        return statDevice(file);
+    }
+
+    /** @return true if the file is a directory */
+    boolean isDirectory() {
+        return directory;
+    }
+
+    /** @return true if the file is a regular file */
+    boolean isRegularFile() {
+        return regularFile;
+    }
+
+    /** @return size of the file in bytes */
+    long getSize() {
+        return size;
+    }
+
+    /** @return last modified time of the file in milliseconds, truncated to whole seconds */
+    long getLastModified() {
+        return lastModified;
+    }
+
+    /** @return true if the file is readable by the application. Derived from the permission bits of the file
+     *  on Lollipop and later, which does not account for supplementary groups or SELinux */
+    boolean isReadable() {
+        return readable;
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private boolean stat(File file) {
+
+        StructStat stat;
+
+        try {
+            // Follows symbolic links, like java.io.File does
+            stat = Os.stat(file.getPath());
+        } catch (ErrnoException e) {
+            return false;
+        }
+
+        directory = OsConstants.S_ISDIR(stat.st_mode);
+        regularFile = OsConstants.S_ISREG(stat.st_mode);
+        size = stat.st_size;
+        lastModified = stat.st_mtime * 1000L;
+
+        if(stat.st_uid == UID) {
+            readable = (stat.st_mode & OsConstants.S_IRUSR) != 0;
+        } else {
+            readable = (stat.st_mode & (OsConstants.S_IRGRP | OsConstants.S_IROTH)) != 0;
+        }
+
+        return true;
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static long statDevice(File file) {
+
+        try {
+            return Os.stat(file.getPath()).st_dev;
+        } catch (ErrnoException e) {
+            return -1;
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static int getUid() {
+        return Os.getuid();
+    }
+}
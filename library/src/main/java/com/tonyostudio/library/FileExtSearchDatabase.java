@@ -5,8 +5,14 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.support.annotation.NonNull;
 
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 /**
  * Created by tonyofrancis on 11/11/16.
  * https://github.com/tonyofrancis
@@ -15,6 +21,14 @@ import android.support.annotation.NonNull;
 /**
  * SQLite Database Helper used to store directory paths that need
  * to be watched and scanned by the background service FileExtSearchService.
+ * The database also keeps the results of the last completed scan for each query
+ * so that they can be delivered right away on the next scan request, the
+ * checkpoints of running scans so that a killed scan can be resumed, the
+ * content types detected from the first bytes of files and how often the
+ * subtrees of the watched directories change.
+ * The database runs in write-ahead logging mode. Scan output is written by an IndexWriter
+ * on a dedicated writer thread, with compiled statements and batched transactions, so
+ * queries on other threads read the last committed rows instead of waiting for a scan.
  * Heavy database operations should always be done off of the MainThread(UI Thread)
  * to ensure performance. The FileExtSearchService class should be the only
  * class accessing the FileExtSearchDatabase to ensure data consistency.
@@ -22,7 +36,7 @@ import android.support.annotation.NonNull;
 public class FileExtSearchDatabase extends SQLiteOpenHelper {
 
     /** Database version*/
-    public static final int VERSION = 1;
+    public static final int VERSION = 9;
 
     /**
      * Class used to hold the table name and column names for the single table
@@ -44,12 +58,287 @@ public class FileExtSearchDatabase extends SQLiteOpenHelper {
         }
     }
 
+    /**
+     * Class used to hold the table name and column names for the table
+     * that stores the matched file paths of the last completed scan of each query.
+     * */
+    public static class RESULTS_TABLE {
+
+        /** Name of the results table in the database*/
+        public static final String NAME = "results";
+
+        /** Class that holds all the column names for the results table */
+        public static class Cols {
+
+            /** Auto generated id column for each item in the table */
+            public static final String ID = "_id";
+
+            /** Column that holds the key of the query that produced the result */
+            public static final String QUERY = "query";
+
+            /** Column that holds the absolute path of a matched file */
+            public static final String PATH = "file_path";
+
+            /** Column that holds the size in bytes of a matched file */
+            public static final String SIZE = "file_size";
+
+            /** Column that holds the last modified time in milliseconds of a matched file */
+            public static final String MODIFIED = "file_modified";
+
+            /** Column that holds the generation of the results the row belongs to. Only the rows of the generation
+             *  in the scans table are part of the saved results, the others belong to a save that is running or failed */
+            public static final String GENERATION = "generation";
+        }
+    }
+
+    /**
+     * Class used to hold the table name and column names for the table
+     * that stores when each query was last scanned.
+     * */
+    public static class SCANS_TABLE {
+
+        /** Name of the scans table in the database*/
+        public static final String NAME = "scans";
+
+        /** Class that holds all the column names for the scans table */
+        public static class Cols {
+
+            /** Column that holds the key of the query. Each query has a single row */
+            public static final String QUERY = "query";
+
+            /** Column that holds the time in milliseconds the last scan of the query completed */
+            public static final String COMPLETED = "completed_at";
+
+            /** Column that holds the generation of the saved results. Increased every time the results change */
+            public static final String GENERATION = "generation";
+        }
+    }
+
+    /**
+     * Class used to hold the table name and column names for the table
+     * that stores one checkpoint per query of a scan that did not complete yet.
+     * */
+    public static class CHECKPOINTS_TABLE {
+
+        /** Name of the checkpoints table in the database*/
+        public static final String NAME = "checkpoints";
+
+        /** Class that holds all the column names for the checkpoints table */
+        public static class Cols {
+
+            /** Column that holds the key of the query. Each query has a single row */
+            public static final String QUERY = "query";
+
+            /** Column that holds the watched directories the scan was started with */
+            public static final String ROOTS = "roots";
+
+            /** Column that holds the time in milliseconds the checkpoint was saved */
+            public static final String SAVED = "saved_at";
+
+            /** Column that holds the id of the last file saved with the checkpoint. Files with a greater id
+             *  belong to a checkpoint that is being saved or failed */
+            public static final String LAST_RESULT = "last_result_id";
+        }
+    }
+
+    /**
+     * Class used to hold the table name and column names for the table
+     * that stores the traversal frontier of each checkpoint.
+     * */
+    public static class CHECKPOINT_DIRS_TABLE {
+
+        /** Name of the checkpoint directories table in the database*/
+        public static final String NAME = "checkpoint_dirs";
+
+        /** Value of the TYPE column for a watched directory that was completely scanned */
+        public static final int TYPE_COMPLETED_ROOT = 0;
+
+        /** Value of the TYPE column for a watched directory that was being scanned */
+        public static final int TYPE_CURRENT_ROOT = 1;
+
+        /** Value of the TYPE column for a directory that still needs to be scanned */
+        public static final int TYPE_PENDING = 2;
+
+        /** Class that holds all the column names for the checkpoint directories table */
+        public static class Cols {
+
+            /** Auto generated id column. Pending directories are scanned in id order */
+            public static final String ID = "_id";
+
+            /** Column that holds the key of the query */
+            public static final String QUERY = "query";
+
+            /** Column that holds the absolute path of the directory */
+            public static final String PATH = "dir_path";
+
+            /** Column that holds one of TYPE_COMPLETED_ROOT, TYPE_CURRENT_ROOT or TYPE_PENDING */
+            public static final String TYPE = "type";
+        }
+    }
+
+    /**
+     * Class used to hold the table name and column names for the table
+     * that stores the files matched by a scan up to its checkpoint.
+     * */
+    public static class CHECKPOINT_RESULTS_TABLE {
+
+        /** Name of the checkpoint results table in the database*/
+        public static final String NAME = "checkpoint_results";
+
+        /** Class that holds all the column names for the checkpoint results table */
+        public static class Cols {
+
+            /** Auto generated id column for each item in the table */
+            public static final String ID = "_id";
+
+            /** Column that holds the key of the query */
+            public static final String QUERY = "query";
+
+            /** Column that holds the absolute path of a matched file */
+            public static final String PATH = "file_path";
+
+            /** Column that holds the size in bytes of a matched file */
+            public static final String SIZE = "file_size";
+
+            /** Column that holds the last modified time in milliseconds of a matched file */
+            public static final String MODIFIED = "file_modified";
+        }
+    }
+
+    /**
+     * Class used to hold the table name and column names for the table
+     * that caches the content type detected for each file.
+     * */
+    public static class CONTENT_TYPES_TABLE {
+
+        /** Name of the content types table in the database*/
+        public static final String NAME = "content_types";
+
+        /** Class that holds all the column names for the content types table */
+        public static class Cols {
+
+            /** Column that holds the absolute path of a file. Each file has a single row */
+            public static final String PATH = "file_path";
+
+            /** Column that holds the size in bytes of the file when its type was detected */
+            public static final String SIZE = "file_size";
+
+            /** Column that holds the last modified time in milliseconds of the file when its type was detected */
+            public static final String MODIFIED = "file_modified";
+
+            /** Column that holds the detected type or an empty string if no signature matched */
+            public static final String TYPE = "content_type";
+        }
+    }
+
+    /**
+     * Class used to hold the table name and column names for the table
+     * that stores the change statistics of the subtrees of the watched directories per query.
+     * */
+    public static class DIR_STATS_TABLE {
+
+        /** Name of the directory statistics table in the database*/
+        public static final String NAME = "dir_stats";
+
+        /** Class that holds all the column names for the directory statistics table */
+        public static class Cols {
+
+            /** Column that holds the key of the query */
+            public static final String QUERY = "query";
+
+            /** Column that holds the absolute path of the directory at the top of the subtree */
+            public static final String PATH = "dir_path";
+
+            /** Column that holds the signature of the entries of the subtree at its last visit */
+            public static final String SIGNATURE = "signature";
+
+            /** Column that holds the time in milliseconds between two visits of the subtree */
+            public static final String INTERVAL = "rescan_interval";
+
+            /** Column that holds the time in milliseconds the subtree was last visited */
+            public static final String VISITED = "visited_at";
+        }
+    }
+
+    private static final String INSERT_RESULT = "INSERT INTO " + RESULTS_TABLE.NAME + " ( " + RESULTS_TABLE.Cols.QUERY + ", "
+            + RESULTS_TABLE.Cols.PATH + ", " + RESULTS_TABLE.Cols.SIZE + ", " + RESULTS_TABLE.Cols.MODIFIED + ", "
+            + RESULTS_TABLE.Cols.GENERATION + " ) VALUES ( ?, ?, ?, ?, ? )";
+
+    /** Deletes up to MAX_BATCH_ROWS rows of a query that are not of a generation */
+    private static final String DELETE_OTHER_GENERATIONS = "DELETE FROM " + RESULTS_TABLE.NAME + " WHERE " + RESULTS_TABLE.Cols.ID
+            + " IN ( SELECT " + RESULTS_TABLE.Cols.ID + " FROM " + RESULTS_TABLE.NAME + " WHERE " + RESULTS_TABLE.Cols.QUERY + " = ? AND "
+            + RESULTS_TABLE.Cols.GENERATION + " <> ? LIMIT " + IndexWriter.MAX_BATCH_ROWS + " )";
+
+    /** Selects the saved results of a query, the rows of its current generation */
+    private static final String SELECT_SAVED_RESULTS = RESULTS_TABLE.Cols.QUERY + " = ? AND " + RESULTS_TABLE.Cols.GENERATION
+            + " = ( SELECT " + SCANS_TABLE.Cols.GENERATION + " FROM " + SCANS_TABLE.NAME + " WHERE " + SCANS_TABLE.Cols.QUERY + " = ? )";
+
+    private static final String REPLACE_SCAN = "INSERT OR REPLACE INTO " + SCANS_TABLE.NAME + " ( " + SCANS_TABLE.Cols.QUERY + ", "
+            + SCANS_TABLE.Cols.COMPLETED + ", " + SCANS_TABLE.Cols.GENERATION + " ) VALUES ( ?, ?, ? )";
+
+    /** Replaces the checkpoint of a query. Its files are the files of the query written so far */
+    private static final String REPLACE_CHECKPOINT = "INSERT OR REPLACE INTO " + CHECKPOINTS_TABLE.NAME + " ( " + CHECKPOINTS_TABLE.Cols.QUERY + ", "
+            + CHECKPOINTS_TABLE.Cols.ROOTS + ", " + CHECKPOINTS_TABLE.Cols.SAVED + ", " + CHECKPOINTS_TABLE.Cols.LAST_RESULT + " ) VALUES ( ?, ?, ?, "
+            + "( SELECT IFNULL(MAX(" + CHECKPOINT_RESULTS_TABLE.Cols.ID + "),0) FROM " + CHECKPOINT_RESULTS_TABLE.NAME + " WHERE "
+            + CHECKPOINT_RESULTS_TABLE.Cols.QUERY + " = ? ) )";
+
+    private static final String DELETE_CHECKPOINT = "DELETE FROM " + CHECKPOINTS_TABLE.NAME + " WHERE " + CHECKPOINTS_TABLE.Cols.QUERY + " = ?";
+
+    private static final String INSERT_CHECKPOINT_DIR = "INSERT INTO " + CHECKPOINT_DIRS_TABLE.NAME + " ( " + CHECKPOINT_DIRS_TABLE.Cols.QUERY + ", "
+            + CHECKPOINT_DIRS_TABLE.Cols.PATH + ", " + CHECKPOINT_DIRS_TABLE.Cols.TYPE + " ) VALUES ( ?, ?, ? )";
+
+    private static final String DELETE_CHECKPOINT_DIRS = "DELETE FROM " + CHECKPOINT_DIRS_TABLE.NAME + " WHERE " + CHECKPOINT_DIRS_TABLE.Cols.QUERY + " = ?";
+
+    private static final String INSERT_CHECKPOINT_RESULT = "INSERT INTO " + CHECKPOINT_RESULTS_TABLE.NAME + " ( " + CHECKPOINT_RESULTS_TABLE.Cols.QUERY + ", "
+            + CHECKPOINT_RESULTS_TABLE.Cols.PATH + ", " + CHECKPOINT_RESULTS_TABLE.Cols.SIZE + ", " + CHECKPOINT_RESULTS_TABLE.Cols.MODIFIED
+            + " ) VALUES ( ?, ?, ?, ? )";
+
+    /** Deletes up to MAX_BATCH_ROWS files of a query that are not part of its saved checkpoint */
+    private static final String DELETE_UNSAVED_CHECKPOINT_RESULTS = "DELETE FROM " + CHECKPOINT_RESULTS_TABLE.NAME + " WHERE "
+            + CHECKPOINT_RESULTS_TABLE.Cols.ID + " IN ( SELECT " + CHECKPOINT_RESULTS_TABLE.Cols.ID + " FROM " + CHECKPOINT_RESULTS_TABLE.NAME
+            + " WHERE " + CHECKPOINT_RESULTS_TABLE.Cols.QUERY + " = ? AND " + CHECKPOINT_RESULTS_TABLE.Cols.ID + " > IFNULL(( SELECT "
+            + CHECKPOINTS_TABLE.Cols.LAST_RESULT + " FROM " + CHECKPOINTS_TABLE.NAME + " WHERE " + CHECKPOINTS_TABLE.Cols.QUERY + " = ? ),0) LIMIT "
+            + IndexWriter.MAX_BATCH_ROWS + " )";
+
+    /** Deletes up to MAX_BATCH_ROWS files saved with checkpoints of a query */
+    private static final String DELETE_CHECKPOINT_RESULTS = "DELETE FROM " + CHECKPOINT_RESULTS_TABLE.NAME + " WHERE "
+            + CHECKPOINT_RESULTS_TABLE.Cols.ID + " IN ( SELECT " + CHECKPOINT_RESULTS_TABLE.Cols.ID + " FROM " + CHECKPOINT_RESULTS_TABLE.NAME
+            + " WHERE " + CHECKPOINT_RESULTS_TABLE.Cols.QUERY + " = ? LIMIT " + IndexWriter.MAX_BATCH_ROWS + " )";
+
+    private static final String REPLACE_CONTENT_TYPE = "INSERT OR REPLACE INTO " + CONTENT_TYPES_TABLE.NAME + " ( " + CONTENT_TYPES_TABLE.Cols.PATH + ", "
+            + CONTENT_TYPES_TABLE.Cols.SIZE + ", " + CONTENT_TYPES_TABLE.Cols.MODIFIED + ", " + CONTENT_TYPES_TABLE.Cols.TYPE + " ) VALUES ( ?, ?, ?, ? )";
+
+    private static final String REPLACE_DIR_STATS = "INSERT OR REPLACE INTO " + DIR_STATS_TABLE.NAME + " ( " + DIR_STATS_TABLE.Cols.QUERY + ", "
+            + DIR_STATS_TABLE.Cols.PATH + ", " + DIR_STATS_TABLE.Cols.SIGNATURE + ", " + DIR_STATS_TABLE.Cols.INTERVAL + ", "
+            + DIR_STATS_TABLE.Cols.VISITED + " ) VALUES ( ?, ?, ?, ?, ? )";
+
+    private static final String DELETE_DIR_STATS = "DELETE FROM " + DIR_STATS_TABLE.NAME + " WHERE " + DIR_STATS_TABLE.Cols.QUERY + " = ? AND "
+            + DIR_STATS_TABLE.Cols.PATH + " = ?";
+
+    private static final String DELETE_QUERY_DIR_STATS = "DELETE FROM " + DIR_STATS_TABLE.NAME + " WHERE " + DIR_STATS_TABLE.Cols.QUERY + " = ?";
+
+    /** Writer thread the scan output is written on */
+    private final IndexWriter indexWriter;
+
     /**
      * @param context current context
      * @param name database file name
      * */
     public FileExtSearchDatabase(Context context,@NonNull String name) {
         super(context, name.concat(".db"), null, VERSION);
+
+        // Readers keep reading committed rows while the writer thread has a transaction open
+        setWriteAheadLoggingEnabled(true);
+        indexWriter = new IndexWriter(this);
+    }
+
+    /** Method used to commit the writes that are still queued on the writer thread and close the database.
+     *  The database can not be written to afterwards. Not synchronized, the writer thread may need the lock
+     *  of the helper to open the database while close waits for it. */
+    @Override
+    public void close() {
+        indexWriter.close();
+        super.close();
     }
 
     /**
@@ -61,10 +350,144 @@ public class FileExtSearchDatabase extends SQLiteOpenHelper {
         sqLiteDatabase.execSQL("CREATE TABLE " + TABLE.NAME + " ( " + TABLE.Cols.ID
                 + " INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, "
                 + TABLE.Cols.PATH + " TEXT NOT NULL );");
+
+        createResultTables(sqLiteDatabase);
+        createCheckpointTables(sqLiteDatabase);
+        createCheckpointIndexes(sqLiteDatabase);
+        createContentTypesTable(sqLiteDatabase);
+        createDirStatsTable(sqLiteDatabase);
     }
 
+    /**
+     * Method used to upgrade the database tables to the current VERSION.
+     * @param sqLiteDatabase SQLite database.
+     * @param oldVersion version of the database file on disk
+     * @param newVersion version the database is upgraded to
+     * */
     @Override
-    public void onUpgrade(SQLiteDatabase sqLiteDatabase, int i, int i1) {
+    public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
+
+        if(oldVersion < 9) {
+
+            // The result tables only cache the last scan of each query and checkpoints only live until their scan
+            // completes, so they are rebuilt instead of migrated
+            for (String table : new String[]{RESULTS_TABLE.NAME,SCANS_TABLE.NAME,CHECKPOINTS_TABLE.NAME,
+                    CHECKPOINT_DIRS_TABLE.NAME,CHECKPOINT_RESULTS_TABLE.NAME}) {
+                sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + table + ";");
+            }
+
+            createResultTables(sqLiteDatabase);
+            createCheckpointTables(sqLiteDatabase);
+            createCheckpointIndexes(sqLiteDatabase);
+        }
+
+        if(oldVersion < 6) {
+            createContentTypesTable(sqLiteDatabase);
+        }
+
+        if(oldVersion < 7) {
+            createDirStatsTable(sqLiteDatabase);
+        }
+    }
+
+    /**
+     * Method used to create the tables that hold the results of the last completed scans.
+     * @param sqLiteDatabase SQLite database.
+     * */
+    private void createResultTables(SQLiteDatabase sqLiteDatabase) {
+
+        sqLiteDatabase.execSQL("CREATE TABLE " + RESULTS_TABLE.NAME + " ( " + RESULTS_TABLE.Cols.ID
+                + " INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, "
+                + RESULTS_TABLE.Cols.QUERY + " TEXT NOT NULL, "
+                + RESULTS_TABLE.Cols.PATH + " TEXT NOT NULL, "
+                + RESULTS_TABLE.Cols.SIZE + " INTEGER NOT NULL, "
+                + RESULTS_TABLE.Cols.MODIFIED + " INTEGER NOT NULL, "
+                + RESULTS_TABLE.Cols.GENERATION + " INTEGER NOT NULL );");
+
+        createResultIndex(sqLiteDatabase);
+
+        sqLiteDatabase.execSQL("CREATE TABLE " + SCANS_TABLE.NAME + " ( "
+                + SCANS_TABLE.Cols.QUERY + " TEXT PRIMARY KEY NOT NULL, "
+                + SCANS_TABLE.Cols.COMPLETED + " INTEGER NOT NULL, "
+                + SCANS_TABLE.Cols.GENERATION + " INTEGER NOT NULL );");
+    }
+
+    /**
+     * Method used to create the tables that hold the checkpoints of running scans.
+     * @param sqLiteDatabase SQLite database.
+     * */
+    private void createCheckpointTables(SQLiteDatabase sqLiteDatabase) {
+
+        sqLiteDatabase.execSQL("CREATE TABLE " + CHECKPOINTS_TABLE.NAME + " ( "
+                + CHECKPOINTS_TABLE.Cols.QUERY + " TEXT PRIMARY KEY NOT NULL, "
+                + CHECKPOINTS_TABLE.Cols.ROOTS + " TEXT NOT NULL, "
+                + CHECKPOINTS_TABLE.Cols.SAVED + " INTEGER NOT NULL, "
+                + CHECKPOINTS_TABLE.Cols.LAST_RESULT + " INTEGER NOT NULL );");
+
+        sqLiteDatabase.execSQL("CREATE TABLE " + CHECKPOINT_DIRS_TABLE.NAME + " ( " + CHECKPOINT_DIRS_TABLE.Cols.ID
+                + " INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, "
+                + CHECKPOINT_DIRS_TABLE.Cols.QUERY + " TEXT NOT NULL, "
+                + CHECKPOINT_DIRS_TABLE.Cols.PATH + " TEXT NOT NULL, "
+                + CHECKPOINT_DIRS_TABLE.Cols.TYPE + " INTEGER NOT NULL );");
+
+        sqLiteDatabase.execSQL("CREATE TABLE " + CHECKPOINT_RESULTS_TABLE.NAME + " ( " + CHECKPOINT_RESULTS_TABLE.Cols.ID
+                + " INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, "
+                + CHECKPOINT_RESULTS_TABLE.Cols.QUERY + " TEXT NOT NULL, "
+                + CHECKPOINT_RESULTS_TABLE.Cols.PATH + " TEXT NOT NULL, "
+                + CHECKPOINT_RESULTS_TABLE.Cols.SIZE + " INTEGER NOT NULL, "
+                + CHECKPOINT_RESULTS_TABLE.Cols.MODIFIED + " INTEGER NOT NULL );");
+    }
+
+    /**
+     * Method used to create the indexes used to read and delete the checkpoint rows of a query. The rows of
+     * a query are read in insertion order, which the index gives for free as it also holds the row id.
+     * @param sqLiteDatabase SQLite database.
+     * */
+    private void createCheckpointIndexes(SQLiteDatabase sqLiteDatabase) {
+
+        sqLiteDatabase.execSQL("CREATE INDEX " + CHECKPOINT_DIRS_TABLE.NAME + "_query_index ON "
+                + CHECKPOINT_DIRS_TABLE.NAME + " ( " + CHECKPOINT_DIRS_TABLE.Cols.QUERY + " );");
+
+        sqLiteDatabase.execSQL("CREATE INDEX " + CHECKPOINT_RESULTS_TABLE.NAME + "_query_index ON "
+                + CHECKPOINT_RESULTS_TABLE.NAME + " ( " + CHECKPOINT_RESULTS_TABLE.Cols.QUERY + " );");
+    }
+
+    /**
+     * Method used to create the table that caches the detected content type of each file.
+     * @param sqLiteDatabase SQLite database.
+     * */
+    private void createContentTypesTable(SQLiteDatabase sqLiteDatabase) {
+
+        sqLiteDatabase.execSQL("CREATE TABLE " + CONTENT_TYPES_TABLE.NAME + " ( "
+                + CONTENT_TYPES_TABLE.Cols.PATH + " TEXT PRIMARY KEY NOT NULL, "
+                + CONTENT_TYPES_TABLE.Cols.SIZE + " INTEGER NOT NULL, "
+                + CONTENT_TYPES_TABLE.Cols.MODIFIED + " INTEGER NOT NULL, "
+                + CONTENT_TYPES_TABLE.Cols.TYPE + " TEXT NOT NULL );");
+    }
+
+    /**
+     * Method used to create the table that holds the change statistics of subtrees.
+     * @param sqLiteDatabase SQLite database.
+     * */
+    private void createDirStatsTable(SQLiteDatabase sqLiteDatabase) {
+
+        sqLiteDatabase.execSQL("CREATE TABLE " + DIR_STATS_TABLE.NAME + " ( "
+                + DIR_STATS_TABLE.Cols.QUERY + " TEXT NOT NULL, "
+                + DIR_STATS_TABLE.Cols.PATH + " TEXT NOT NULL, "
+                + DIR_STATS_TABLE.Cols.SIGNATURE + " INTEGER NOT NULL, "
+                + DIR_STATS_TABLE.Cols.INTERVAL + " INTEGER NOT NULL, "
+                + DIR_STATS_TABLE.Cols.VISITED + " INTEGER NOT NULL, "
+                + "PRIMARY KEY ( " + DIR_STATS_TABLE.Cols.QUERY + ", " + DIR_STATS_TABLE.Cols.PATH + " ) );");
+    }
+
+    /**
+     * Method used to create the index used to read the results of a generation of a query sorted by path.
+     * @param sqLiteDatabase SQLite database.
+     * */
+    private void createResultIndex(SQLiteDatabase sqLiteDatabase) {
+
+        sqLiteDatabase.execSQL("CREATE INDEX " + RESULTS_TABLE.NAME + "_query_generation_path_index ON " + RESULTS_TABLE.NAME + " ( "
+                + RESULTS_TABLE.Cols.QUERY + ", " + RESULTS_TABLE.Cols.GENERATION + ", " + RESULTS_TABLE.Cols.PATH + " );");
     }
 
     /** Method used to get all the absolute file paths stored in the single table
@@ -166,4 +589,599 @@ public class FileExtSearchDatabase extends SQLiteOpenHelper {
 
         getWritableDatabase().delete(TABLE.NAME, TABLE.Cols.PATH + "=?",new String[]{path});
     }
+
+    /** Method used to get the matched file paths of the last completed scan of a query
+     * @param query key of the query
+     * @return an array of the saved file paths in the order they were found. Null may be returned
+     * if the operation fails */
+    public String[] getResults(String query) {
+
+        if(query == null) {
+            return null;
+        }
+
+        Cursor cursor = getReadableDatabase().query(RESULTS_TABLE.NAME,new String[]{RESULTS_TABLE.Cols.PATH},
+                SELECT_SAVED_RESULTS,new String[]{query,query},null,null,RESULTS_TABLE.Cols.ID);
+
+        if(cursor == null) {
+            return null;
+        }
+
+        String[] paths = new String[cursor.getCount()];
+
+        cursor.moveToFirst();
+        while(!cursor.isAfterLast()) {
+
+            paths[cursor.getPosition()] = cursor.getString(0);
+            cursor.moveToNext();
+        }
+
+        if(!cursor.isClosed()) {
+            cursor.close();
+        }
+
+        return paths;
+    }
+
+    /** Method used to get the time the last scan of a query completed
+     * @param query key of the query
+     * @return the completion time in milliseconds or -1 if the query was never scanned
+     * */
+    public long getLastScanTime(String query) {
+
+        if(query == null) {
+            return -1;
+        }
+
+        Cursor cursor = getReadableDatabase().query(SCANS_TABLE.NAME,new String[]{SCANS_TABLE.Cols.COMPLETED},
+                SCANS_TABLE.Cols.QUERY + "=?",new String[]{query},null,null,null);
+
+        long completedAt = -1;
+
+        if(cursor != null) {
+
+            if(cursor.moveToFirst()) {
+                completedAt = cursor.getLong(0);
+            }
+
+            if(!cursor.isClosed()) {
+                cursor.close();
+            }
+        }
+
+        return completedAt;
+    }
+
+    /** Method used to get the matched files of the last completed scan of a query
+     * together with their size and last modified time
+     * @param query key of the query
+     * @return a cursor over the saved results sorted by path. The cursor is empty if the
+     * query was never scanned. The cursor must be closed by the caller */
+    ResultCursor queryResultEntries(String query) {
+
+        String key = query == null ? "" : query;
+        Cursor cursor = getReadableDatabase().query(RESULTS_TABLE.NAME,
+                new String[]{RESULTS_TABLE.Cols.PATH,RESULTS_TABLE.Cols.SIZE,RESULTS_TABLE.Cols.MODIFIED},
+                SELECT_SAVED_RESULTS,new String[]{key,key},null,null,RESULTS_TABLE.Cols.PATH);
+
+        return new DatabaseResultCursor(cursor);
+    }
+
+    /** Method used to get the saved results of a query that are located below a directory
+     * @param query key of the query
+     * @param dirPath absolute path of the directory
+     * @return a cursor over the saved results below the directory sorted by path. The cursor must be closed by the caller */
+    ResultCursor queryResultEntriesBelow(String query, String dirPath) {
+
+        // All paths starting with "dir/" sort between "dir/" and "dir0", as '0' follows '/'
+        Cursor cursor = getReadableDatabase().query(RESULTS_TABLE.NAME,
+                new String[]{RESULTS_TABLE.Cols.PATH,RESULTS_TABLE.Cols.SIZE,RESULTS_TABLE.Cols.MODIFIED},
+                SELECT_SAVED_RESULTS + " AND " + RESULTS_TABLE.Cols.PATH + ">? AND " + RESULTS_TABLE.Cols.PATH + "<?",
+                new String[]{query,query,dirPath + "/",dirPath + "0"},null,null,RESULTS_TABLE.Cols.PATH);
+
+        return new DatabaseResultCursor(cursor);
+    }
+
+    /** Method used to get the generation of the saved results of a query
+     * @param query key of the query
+     * @return the generation of the saved results or 0 if the query was never scanned
+     * */
+    public long getGeneration(String query) {
+
+        if(query == null) {
+            return 0;
+        }
+
+        Cursor cursor = getReadableDatabase().query(SCANS_TABLE.NAME,new String[]{SCANS_TABLE.Cols.GENERATION},
+                SCANS_TABLE.Cols.QUERY + "=?",new String[]{query},null,null,null);
+
+        long generation = 0;
+
+        if(cursor != null) {
+
+            if(cursor.moveToFirst()) {
+                generation = cursor.getLong(0);
+            }
+
+            if(!cursor.isClosed()) {
+                cursor.close();
+            }
+        }
+
+        return generation;
+    }
+
+    /**
+     * Method used to save the results of a completed scan of a query.
+     * The saved rows of the query are only rewritten if the generation changed,
+     * otherwise only the completion time is updated. The rows of the new generation are committed in chunks
+     * on the writer thread, while readers keep reading the rows of the previous generation. The new rows become
+     * the saved results at once when the generation in the scans table is updated, after which the rows of
+     * the previous generation are deleted in chunks. This method returns once all of it is committed.
+     * @param query key of the query
+     * @param collector matched files of the completed scan
+     * @param changeSet changes of the results compared to the saved results
+     * @param completedAt time in milliseconds the scan completed
+     * @throws IOException if the matched files could not be read back from the collector
+     * */
+    void saveResults(final String query, final ResultCollector collector, final ScanChangeSet changeSet, final long completedAt) throws IOException {
+
+        if(query == null || collector == null || changeSet == null) {
+            return;
+        }
+
+        final boolean changed = changeSet.getGeneration() != changeSet.getPreviousGeneration();
+
+        indexWriter.executeInChunksAndWait(new IndexWriter.Write() {
+            @Override
+            public int write(@NonNull IndexWriter writer) throws IOException {
+
+                int rows = 0;
+
+                if(changed) {
+
+                    // Rows left behind by a save that failed before it updated the generation
+                    SQLiteStatement deleteFailed = writer.statement(DELETE_OTHER_GENERATIONS);
+                    deleteFailed.bindString(1,query);
+                    deleteFailed.bindLong(2,changeSet.getPreviousGeneration());
+                    rows += deleteInChunks(writer,deleteFailed);
+
+                    SQLiteStatement insert = writer.statement(INSERT_RESULT);
+                    ResultCursor results = collector.open();
+
+                    try {
+
+                        while(results.moveToNext()) {
+
+                            insert.bindString(1,query);
+                            insert.bindString(2,results.getPath());
+                            insert.bindLong(3,results.getSize());
+                            insert.bindLong(4,results.getLastModified());
+                            insert.bindLong(5,changeSet.getGeneration());
+                            insert.executeInsert();
+                            rows++;
+
+                            writer.commitIfFull(1);
+                        }
+                    } finally {
+                        results.close();
+                    }
+                }
+
+                SQLiteStatement scan = writer.statement(REPLACE_SCAN);
+                scan.bindString(1,query);
+                scan.bindLong(2,completedAt);
+                scan.bindLong(3,changeSet.getGeneration());
+                scan.executeInsert();
+                rows++;
+
+                if(changed) {
+                    SQLiteStatement deletePrevious = writer.statement(DELETE_OTHER_GENERATIONS);
+                    deletePrevious.bindString(1,query);
+                    deletePrevious.bindLong(2,changeSet.getGeneration());
+                    rows += deleteInChunks(writer,deletePrevious);
+                }
+
+                return rows;
+            }
+        });
+    }
+
+    /** Utility method used to run a delete of up to MAX_BATCH_ROWS rows again until it deletes fewer rows,
+     *  committing the deleted rows in chunks
+     *  @param writer writer running the delete
+     *  @param delete delete statement with its arguments bound
+     *  @return number of rows deleted */
+    private static int deleteInChunks(IndexWriter writer, SQLiteStatement delete) {
+
+        int rows = 0;
+        int deleted;
+
+        do {
+            deleted = delete.executeUpdateDelete();
+            rows += deleted;
+            writer.commitIfFull(deleted);
+        } while(deleted == IndexWriter.MAX_BATCH_ROWS);
+
+        return rows;
+    }
+
+    /** Method used to get the checkpoint of a scan of a query that did not complete
+     * @param query key of the query
+     * @return the saved checkpoint or null if the last scan of the query completed
+     * */
+    ScanCheckpoint getCheckpoint(String query) {
+
+        if(query == null) {
+            return null;
+        }
+
+        SQLiteDatabase database = getReadableDatabase();
+        Cursor cursor = database.query(CHECKPOINTS_TABLE.NAME,new String[]{CHECKPOINTS_TABLE.Cols.ROOTS,CHECKPOINTS_TABLE.Cols.SAVED},
+                CHECKPOINTS_TABLE.Cols.QUERY + "=?",new String[]{query},null,null,null);
+
+        if(cursor == null) {
+            return null;
+        }
+
+        ScanCheckpoint checkpoint = null;
+
+        if(cursor.moveToFirst()) {
+            checkpoint = new ScanCheckpoint(cursor.getString(0),cursor.getLong(1));
+        }
+
+        if(!cursor.isClosed()) {
+            cursor.close();
+        }
+
+        if(checkpoint == null) {
+            return null;
+        }
+
+        cursor = database.query(CHECKPOINT_DIRS_TABLE.NAME,new String[]{CHECKPOINT_DIRS_TABLE.Cols.PATH,CHECKPOINT_DIRS_TABLE.Cols.TYPE},
+                CHECKPOINT_DIRS_TABLE.Cols.QUERY + "=?",new String[]{query},null,null,CHECKPOINT_DIRS_TABLE.Cols.ID);
+
+        if(cursor == null) {
+            return null;
+        }
+
+        while(cursor.moveToNext()) {
+
+            String path = cursor.getString(0);
+
+            switch (cursor.getInt(1)) {
+
+                case CHECKPOINT_DIRS_TABLE.TYPE_COMPLETED_ROOT: checkpoint.completedRoots.add(path);
+                    break;
+
+                case CHECKPOINT_DIRS_TABLE.TYPE_CURRENT_ROOT: checkpoint.currentRoots.add(path);
+                    break;
+
+                default: checkpoint.pendingDirs.add(path);
+                    break;
+            }
+        }
+
+        if(!cursor.isClosed()) {
+            cursor.close();
+        }
+
+        return checkpoint;
+    }
+
+    /** Method used to get the files saved with the checkpoint of a query
+     * @param query key of the query
+     * @return a cursor over the saved files in the order they were saved. The cursor must be closed by the caller
+     * */
+    ResultCursor queryCheckpointResults(String query) {
+
+        // Files with a greater id than the last file of the checkpoint are being saved with the next checkpoint
+        String key = query == null ? "" : query;
+        Cursor cursor = getReadableDatabase().query(CHECKPOINT_RESULTS_TABLE.NAME,
+                new String[]{CHECKPOINT_RESULTS_TABLE.Cols.PATH,CHECKPOINT_RESULTS_TABLE.Cols.SIZE,CHECKPOINT_RESULTS_TABLE.Cols.MODIFIED},
+                CHECKPOINT_RESULTS_TABLE.Cols.QUERY + "=? AND " + CHECKPOINT_RESULTS_TABLE.Cols.ID + "<=( SELECT "
+                        + CHECKPOINTS_TABLE.Cols.LAST_RESULT + " FROM " + CHECKPOINTS_TABLE.NAME + " WHERE " + CHECKPOINTS_TABLE.Cols.QUERY + "=? )",
+                new String[]{key,key},null,null,null);
+
+        return new DatabaseResultCursor(cursor);
+    }
+
+    /**
+     * Method used to save the checkpoint of a running scan of a query. The frontier replaces the saved
+     * frontier and the new files are added to the saved files. The new files are committed in chunks on the
+     * writer thread and only become part of the checkpoint together with the frontier, which is committed last.
+     * This method returns once everything is committed.
+     * @param query key of the query
+     * @param checkpoint frontier of the scan
+     * @param collector collector of the scan. The files added since its last checkpoint mark are saved
+     * @throws IOException if the thread was interrupted while waiting for the writer thread
+     * */
+    void saveCheckpoint(final String query, final ScanCheckpoint checkpoint, final ResultCollector collector) throws IOException {
+
+        if(query == null || checkpoint == null) {
+            return;
+        }
+
+        indexWriter.executeInChunksAndWait(new IndexWriter.Write() {
+            @Override
+            public int write(@NonNull IndexWriter writer) {
+
+                // Files left behind by a checkpoint that failed before its frontier was saved
+                SQLiteStatement deleteFailed = writer.statement(DELETE_UNSAVED_CHECKPOINT_RESULTS);
+                deleteFailed.bindString(1,query);
+                deleteFailed.bindString(2,query);
+                int rows = deleteInChunks(writer,deleteFailed);
+
+                if(collector != null) {
+
+                    SQLiteStatement insert = writer.statement(INSERT_CHECKPOINT_RESULT);
+                    ResultCursor newResults = collector.openSinceCheckpoint();
+
+                    try {
+
+                        while(newResults.moveToNext()) {
+
+                            insert.bindString(1,query);
+                            insert.bindString(2,newResults.getPath());
+                            insert.bindLong(3,newResults.getSize());
+                            insert.bindLong(4,newResults.getLastModified());
+                            insert.executeInsert();
+                            rows++;
+
+                            writer.commitIfFull(1);
+                        }
+                    } finally {
+                        newResults.close();
+                    }
+                }
+
+                SQLiteStatement replace = writer.statement(REPLACE_CHECKPOINT);
+                replace.bindString(1,query);
+                replace.bindString(2,checkpoint.roots);
+                replace.bindLong(3,checkpoint.savedAt);
+                replace.bindString(4,query);
+                replace.executeInsert();
+
+                SQLiteStatement delete = writer.statement(DELETE_CHECKPOINT_DIRS);
+                delete.bindString(1,query);
+                rows += 1 + delete.executeUpdateDelete();
+
+                SQLiteStatement insertDir = writer.statement(INSERT_CHECKPOINT_DIR);
+                rows += insertCheckpointDirs(insertDir,query,checkpoint.completedRoots,CHECKPOINT_DIRS_TABLE.TYPE_COMPLETED_ROOT);
+                rows += insertCheckpointDirs(insertDir,query,checkpoint.currentRoots,CHECKPOINT_DIRS_TABLE.TYPE_CURRENT_ROOT);
+                rows += insertCheckpointDirs(insertDir,query,checkpoint.pendingDirs,CHECKPOINT_DIRS_TABLE.TYPE_PENDING);
+
+                return rows;
+            }
+        });
+    }
+
+    /** Utility method used to insert rows of one type into the checkpoint directories table
+     * @return number of rows inserted */
+    private static int insertCheckpointDirs(SQLiteStatement insert, String query, List<String> paths, int type) {
+
+        for (String path : paths) {
+            insert.bindString(1,query);
+            insert.bindString(2,path);
+            insert.bindLong(3,type);
+            insert.executeInsert();
+        }
+
+        return paths.size();
+    }
+
+    /** Method used to remove the checkpoint of a query and the files saved with it. Returns once the rows are deleted
+     * @param query key of the query
+     * @throws IOException if the thread was interrupted while waiting for the writer thread
+     * */
+    void deleteCheckpoint(final String query) throws IOException {
+
+        if(query == null) {
+            return;
+        }
+
+        indexWriter.executeInChunksAndWait(new IndexWriter.Write() {
+            @Override
+            public int write(@NonNull IndexWriter writer) {
+
+                int rows = 0;
+
+                // The checkpoint is gone once the first chunk is committed, its files are deleted in chunks
+                for (String sql : new String[]{DELETE_CHECKPOINT,DELETE_CHECKPOINT_DIRS}) {
+                    SQLiteStatement delete = writer.statement(sql);
+                    delete.bindString(1,query);
+                    rows += delete.executeUpdateDelete();
+                }
+
+                SQLiteStatement deleteResults = writer.statement(DELETE_CHECKPOINT_RESULTS);
+                deleteResults.bindString(1,query);
+
+                return rows + deleteInChunks(writer,deleteResults);
+            }
+        });
+    }
+
+    /** Method used to get the cached content types of the files located directly in a directory. May be called from any thread
+     * @param dirPath absolute path of the directory
+     * @return the cached types by file name. A type is ContentSniffer.UNKNOWN_TYPE if no signature matched
+     * */
+    Map<String,ContentSniffer.CachedType> getContentTypes(String dirPath) {
+
+        String prefix = dirPath.endsWith("/") ? dirPath : dirPath + "/";
+
+        // All paths starting with "dir/" sort between "dir/" and "dir0", as '0' follows '/'. Files of sub directories
+        // are filtered out by their name, which starts at the character after the prefix as substr counts from 1
+        Cursor cursor = getReadableDatabase().query(CONTENT_TYPES_TABLE.NAME,
+                new String[]{CONTENT_TYPES_TABLE.Cols.PATH,CONTENT_TYPES_TABLE.Cols.SIZE,CONTENT_TYPES_TABLE.Cols.MODIFIED,
+                        CONTENT_TYPES_TABLE.Cols.TYPE},
+                CONTENT_TYPES_TABLE.Cols.PATH + ">? AND " + CONTENT_TYPES_TABLE.Cols.PATH + "<? AND substr("
+                        + CONTENT_TYPES_TABLE.Cols.PATH + "," + (prefix.codePointCount(0,prefix.length()) + 1) + ") NOT LIKE '%/%'",
+                new String[]{prefix,prefix.substring(0,prefix.length() - 1) + "0"},null,null,null);
+
+        Map<String,ContentSniffer.CachedType> types = new HashMap<>();
+
+        if(cursor == null) {
+            return types;
+        }
+
+        while(cursor.moveToNext()) {
+            types.put(cursor.getString(0).substring(prefix.length()),
+                    new ContentSniffer.CachedType(cursor.getLong(1),cursor.getLong(2),cursor.getString(3)));
+        }
+
+        if(!cursor.isClosed()) {
+            cursor.close();
+        }
+
+        return types;
+    }
+
+    /** Method used to cache the detected content types of files. The row of a file that changed is replaced.
+     * The rows are written on the writer thread without waiting for them, together with the writes queued around them.
+     * @param sniffedFiles files whose type was detected
+     * */
+    void saveContentTypes(final List<ContentSniffer.SniffedFile> sniffedFiles) {
+
+        indexWriter.execute(new IndexWriter.Write() {
+            @Override
+            public int write(@NonNull IndexWriter writer) {
+
+                SQLiteStatement replace = writer.statement(REPLACE_CONTENT_TYPE);
+
+                for (ContentSniffer.SniffedFile sniffedFile : sniffedFiles) {
+
+                    replace.bindString(1,sniffedFile.file.getPath());
+                    replace.bindLong(2,sniffedFile.size);
+                    replace.bindLong(3,sniffedFile.lastModified);
+                    replace.bindString(4,sniffedFile.type);
+                    replace.executeInsert();
+                }
+
+                return sniffedFiles.size();
+            }
+        });
+    }
+
+    /** Method used to get the change statistics of the subtrees scanned by a query
+     * @param query key of the query
+     * @return the statistics by path. Empty if the query was never scanned with adaptive rescans
+     * */
+    Map<String,RescanScheduler.DirStats> getDirStats(String query) {
+
+        // Statistics are saved without waiting for them
+        indexWriter.flush();
+
+        Map<String,RescanScheduler.DirStats> dirStats = new HashMap<>();
+
+        Cursor cursor = getReadableDatabase().query(DIR_STATS_TABLE.NAME,
+                new String[]{DIR_STATS_TABLE.Cols.PATH,DIR_STATS_TABLE.Cols.SIGNATURE,DIR_STATS_TABLE.Cols.INTERVAL,DIR_STATS_TABLE.Cols.VISITED},
+                DIR_STATS_TABLE.Cols.QUERY + "=?",new String[]{query},null,null,null);
+
+        if(cursor == null) {
+            return dirStats;
+        }
+
+        while(cursor.moveToNext()) {
+            RescanScheduler.DirStats stats = new RescanScheduler.DirStats(cursor.getString(0),cursor.getLong(1),cursor.getLong(2),cursor.getLong(3));
+            dirStats.put(stats.path,stats);
+        }
+
+        if(!cursor.isClosed()) {
+            cursor.close();
+        }
+
+        return dirStats;
+    }
+
+    /** Method used to save the change statistics of the subtrees visited by a scan. The rows are written
+     * on the writer thread in a single transaction without waiting for them.
+     * @param query key of the query
+     * @param updated statistics of the visited subtrees
+     * @param removed paths of subtrees that no longer exist
+     * */
+    void saveDirStats(final String query, final List<RescanScheduler.DirStats> updated, final List<String> removed) {
+
+        indexWriter.execute(new IndexWriter.Write() {
+            @Override
+            public int write(@NonNull IndexWriter writer) {
+
+                SQLiteStatement replace = writer.statement(REPLACE_DIR_STATS);
+
+                for (RescanScheduler.DirStats stats : updated) {
+
+                    replace.bindString(1,query);
+                    replace.bindString(2,stats.path);
+                    replace.bindLong(3,stats.signature);
+                    replace.bindLong(4,stats.interval);
+                    replace.bindLong(5,stats.visitedAt);
+                    replace.executeInsert();
+                }
+
+                SQLiteStatement delete = writer.statement(DELETE_DIR_STATS);
+
+                for (String path : removed) {
+                    delete.bindString(1,query);
+                    delete.bindString(2,path);
+                    delete.executeUpdateDelete();
+                }
+
+                return updated.size() + removed.size();
+            }
+        });
+    }
+
+    /** Method used to remove the change statistics of a query without waiting for it
+     * @param query key of the query
+     * */
+    void deleteDirStats(final String query) {
+
+        indexWriter.execute(new IndexWriter.Write() {
+            @Override
+            public int write(@NonNull IndexWriter writer) {
+
+                SQLiteStatement delete = writer.statement(DELETE_QUERY_DIR_STATS);
+                delete.bindString(1,query);
+
+                return delete.executeUpdateDelete();
+            }
+        });
+    }
+
+    /** ResultCursor backed by a database cursor holding the path, size and last modified columns */
+    private static final class DatabaseResultCursor implements ResultCursor {
+
+        private final Cursor cursor;
+
+        DatabaseResultCursor(Cursor cursor) {
+            this.cursor = cursor;
+        }
+
+        @Override
+        public boolean moveToNext() {
+            return cursor != null && cursor.moveToNext();
+        }
+
+        @Override
+        public String getPath() {
+            return cursor.getString(0);
+        }
+
+        @Override
+        public long getSize() {
+            return cursor.getLong(1);
+        }
+
+        @Override
+        public long getLastModified() {
+            return cursor.getLong(2);
+        }
+
+        @Override
+        public void close() {
+
+            if(cursor != null && !cursor.isClosed()) {
+                cursor.close();
+            }
+        }
+    }
 }
@@ -1,19 +1,22 @@
 package com.tonyostudio.library;
 
+import android.app.ActivityManager;
+import android.app.AlarmManager;
 import android.app.IntentService;
+import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
 import java.io.File;
-import java.io.FileFilter;
 import java.io.FilenameFilter;
-import java.util.ArrayList;
-import java.util.LinkedHashSet;
-import java.util.List;
+import java.io.IOException;
+import java.util.Set;
+import java.util.TreeSet;
 
 /**
  * Created by tonyofrancis on 11/11/16.
@@ -28,6 +31,18 @@ import java.util.List;
  * files that match the passed in file extensions.
  * The service will terminate after it scans, and a broadcast
  * intent will be sent to the system with a list of the matched files.
+ * Every result broadcast also carries the changes since the previous scan of the
+ * same file extensions, see EXTRA_GENERATION. When EXTRA_STALE_WHILE_REVALIDATE is set,
+ * the results of the last scan are broadcast first and marked with EXTRA_STALE,
+ * followed by a second broadcast that only carries what changed.
+ * Watched directories on different volumes are scanned in parallel, with a number of
+ * parallel directory listings per volume that adapts to the speed of the volume.
+ * Subclasses can stream the matched files of a running scan, see getScanListener.
+ * With EXTRA_ADAPTIVE_RESCAN, the service reschedules the scan on its own and only
+ * revisits the parts of the watched directories that are likely to have changed.
+ * Running scans are checkpointed at intervals. If the system kills the service
+ * during a scan, the scan is resumed from its last checkpoint once the service
+ * is restarted.
  * */
 public class FileExtSearchService extends IntentService {
 
@@ -44,9 +59,115 @@ public class FileExtSearchService extends IntentService {
     public static final String EXTRA_ACTION_TYPE = "action_type";
 
     /** Field used to retrieve the array of files that matched the passed in file extensions. Accessed in a broadcast listener
-     *  that listens for the action ACTION_SEARCH_COMPLETE*/
+     *  that listens for the action ACTION_SEARCH_COMPLETE. The paths are sorted by the code points of their characters,
+     *  not in the order the files were found, so "B.txt" comes before "a.txt" */
     public static final String EXTRA_RESULTS = "results_array";
 
+    /** Field used as a key to pass an array of glob patterns the path of each file, relative to its watched directory,
+     *  is matched against. Files below nested watched directories are matched relative to the outermost one. '**' matches any number of directories, '*' and '?' match characters inside of a single
+     *  directory or file name and [a-z] matches a set of characters, for example "DCIM/Camera/IMG_*.jpg" or
+     *  "Documents/**&#47;*.pdf". A file must match one of the patterns and, if set, one of the file extensions.
+     *  Directories that can not lead to a match are not scanned. Patterns with "." or ".." segments are rejected
+     *  and the scan fails with EXTRA_ERROR. */
+    public static final String EXTRA_PATTERNS = "path_patterns";
+
+    /** Field used to retrieve the reason a scan was rejected from a result broadcast, for example an invalid pattern
+     *  in EXTRA_PATTERNS. Not set for scans that completed or failed while reading the watched directories */
+    public static final String EXTRA_ERROR = "results_error";
+
+    /** Field used as a key to pass an array of content types, named after their usual file extension such as "jpg", "png",
+     *  "mp4", "mp3" or "pdf". Files that do not match the file extensions are identified by their first bytes and match if
+     *  their type is one of the content types, so misnamed and extensionless files are found as well. If no file extensions
+     *  are passed in, only files of the content types match. Detected types are saved, so a file is only read again after
+     *  its size or last modified time changed. */
+    public static final String EXTRA_CONTENT_TYPES = "content_types";
+
+    /** Field used as a key to pass the minimum size in bytes of a matched file. Only regular files match size predicates */
+    public static final String EXTRA_MIN_SIZE = "min_size";
+
+    /** Field used as a key to pass the maximum size in bytes of a matched file. Only regular files match size predicates */
+    public static final String EXTRA_MAX_SIZE = "max_size";
+
+    /** Field used as a key to pass the maximum time in milliseconds since a matched file was last modified,
+     *  for example 7 days to only match files modified in the last week. Last modified times are compared in whole seconds */
+    public static final String EXTRA_MAX_AGE = "max_age";
+
+    /** Field used as a key to indicate if files and directories whose name starts with a dot are scanned. Defaults to true.
+     *  Hidden directories are not scanned at all when false */
+    public static final String EXTRA_INCLUDE_HIDDEN = "include_hidden";
+
+    /** Field used as a key to indicate if only files readable by the application are matched. Defaults to false */
+    public static final String EXTRA_READABLE_ONLY = "readable_only";
+
+    /** Field used as a key to pass the maximum number of files and directories the scan reads per second, summed over
+     *  all volumes. Use it for background scans that should not compete with the foreground app for storage bandwidth.
+     *  The scan is not throttled if not set or not greater than 0 */
+    public static final String EXTRA_MAX_FILES_PER_SECOND = "max_files_per_second";
+
+    /** Field used as a key to indicate if the service should first deliver the results of the last completed scan of the same
+     *  file extensions, then scan in the background and deliver only what changed. */
+    public static final String EXTRA_STALE_WHILE_REVALIDATE = "stale_while_revalidate";
+
+    /** Field used as a key to indicate if the service should keep the results of the query fresh on its own. After each scan,
+     *  a rescan is scheduled for when the first directory near the watched directories is due. Directories whose files changed
+     *  since the last scan are due sooner, down to every 15 minutes, unchanged directories later, up to once a day. Scheduled
+     *  rescans only walk the directories that are due, carry the other files forward from the last scan and are broadcast like
+     *  any other scan. A scan of the same query without this flag cancels the scheduled rescans. */
+    public static final String EXTRA_ADAPTIVE_RESCAN = "adaptive_rescan";
+
+    /** Field used to retrieve a boolean from a result broadcast. True when EXTRA_RESULTS or EXTRA_RESULTS_FILE holds the results
+     *  of a previous scan that are being revalidated. */
+    public static final String EXTRA_STALE = "results_stale";
+
+    /** Field used to retrieve the age in milliseconds of stale results from a result broadcast. */
+    public static final String EXTRA_STALE_AGE = "results_stale_age";
+
+    /** Field used as a key to indicate if the result broadcast should only carry the changes since the previous scan
+     *  of the same file extensions instead of the full EXTRA_RESULTS array. EXTRA_RESULTS is still set on the first broadcast
+     *  after results were delivered in EXTRA_RESULTS_FILE, since changes can not be applied to that file. */
+    public static final String EXTRA_CHANGES_ONLY = "changes_only";
+
+    /** Field used to retrieve the generation of the results from a result broadcast. The generation of a query
+     *  is increased every time a scan finds different results than the previous scan. */
+    public static final String EXTRA_GENERATION = "results_generation";
+
+    /** Field used to retrieve the generation the changes of a result broadcast are relative to.
+     *  A client that does not hold this generation missed a change and should use the full results. */
+    public static final String EXTRA_PREVIOUS_GENERATION = "results_previous_generation";
+
+    /** Field used to retrieve a boolean from a result broadcast. True when the scan found
+     *  the exact same files as the previous scan of the same file extensions. */
+    public static final String EXTRA_UNCHANGED = "results_unchanged";
+
+    /** Field used to retrieve a boolean from a result broadcast. True when more files changed than fit into a broadcast.
+     *  EXTRA_ADDED, EXTRA_REMOVED and EXTRA_MODIFIED are not set in that case, use the full results instead. They are
+     *  delivered in EXTRA_RESULTS or EXTRA_RESULTS_FILE even when EXTRA_CHANGES_ONLY is set. */
+    public static final String EXTRA_CHANGES_TRUNCATED = "results_changes_truncated";
+
+    /** Field used to retrieve the array of files found by the scan that were not part of the previous results */
+    public static final String EXTRA_ADDED = "results_added";
+
+    /** Field used to retrieve the array of files that were part of the previous results but no longer found by the scan */
+    public static final String EXTRA_REMOVED = "results_removed";
+
+    /** Field used to retrieve the array of files found by both scans whose size or last modified time changed */
+    public static final String EXTRA_MODIFIED = "results_modified";
+
+    /** Field used as a key to pass the maximum number of bytes the matched files of a scan may use in memory.
+     *  Matched files over the budget are spilled to temporary files in the cache dir of the service.
+     *  Defaults to an eighth of the memory class of the device. */
+    public static final String EXTRA_MEMORY_BUDGET = "memory_budget";
+
+    /** Field used to retrieve the number of matched files from a result broadcast */
+    public static final String EXTRA_RESULT_COUNT = "results_count";
+
+    /** Field used to retrieve the absolute path of a text file holding the matched files, one path per line,
+     *  in the same order as EXTRA_RESULTS. Only set when the matched files exceeded the memory budget, in which case EXTRA_RESULTS is not set.
+     *  The file lives in the cache dir of the application and is named after the generation of the results, so a file that
+     *  is being read is never rewritten. Files of older generations are deleted once a newer one follows the generation after them,
+     *  and all of them once the matched files fit into EXTRA_RESULTS again. */
+    public static final String EXTRA_RESULTS_FILE = "results_file";
+
     /** Field used to indicate if the array of directory paths passed into the service should be watched and added to the watch database*/
     public static final int EXTRA_ADD = 1;
 
@@ -57,6 +178,18 @@ public class FileExtSearchService extends IntentService {
      * this action in a broadcast receiver to retrieve the match results */
     public static final String ACTION_SEARCH_COMPLETE = "file_search_complete";
 
+    /** Suffix of the names of the results files, see EXTRA_RESULTS_FILE */
+    private static final String RESULTS_FILE_SUFFIX = ".results";
+
+    /** Maximum number of changed paths a result broadcast carries, see EXTRA_CHANGES_TRUNCATED */
+    private static final int MAX_BROADCAST_CHANGES = 1000;
+
+    /** Action of the intents the scheduled rescans are started with */
+    private static final String ACTION_RESCAN = "com.tonyostudio.library.RESCAN";
+
+    /** Field used as a key to mark the intent of a scheduled rescan */
+    private static final String EXTRA_SCHEDULED_RESCAN = "scheduled_rescan";
+
     /** Holds an instance of FileExtSearchDatabase used by the service. This database holds
      *  all the passed in directory paths that the service needs to watch/scan */
     private FileExtSearchDatabase fileExtSearchDatabase;
@@ -160,12 +293,21 @@ public class FileExtSearchService extends IntentService {
     public FileExtSearchService(String name) {
         super(name);
         this.serviceName = name;
+
+        // A scan killed by the system is restarted with the same intent and resumes from its last checkpoint
+        setIntentRedelivery(true);
     }
 
     @Override
     public void onCreate() {
         super.onCreate();
-        fileExtSearchDatabase = new FileExtSearchDatabase(this,serviceName);
+        fileExtSearchDatabase = openDatabase();
+    }
+
+    /** Method used to open the database holding the watched directories and the scan results of the service
+     *  @return the database of the service */
+    FileExtSearchDatabase openDatabase() {
+        return new FileExtSearchDatabase(this,serviceName);
     }
 
     @Override
@@ -188,7 +330,15 @@ public class FileExtSearchService extends IntentService {
         String[] dirPaths = intent.getStringArrayExtra(EXTRA_DIR_PATHS);
         int actionType = intent.getIntExtra(EXTRA_ACTION_TYPE,-1);
         boolean scanDirs = intent.getBooleanExtra(EXTRA_ACTION_SCAN,false);
+        boolean staleWhileRevalidate = intent.getBooleanExtra(EXTRA_STALE_WHILE_REVALIDATE,false);
+        boolean changesOnly = intent.getBooleanExtra(EXTRA_CHANGES_ONLY,false);
+        long memoryBudget = intent.getLongExtra(EXTRA_MEMORY_BUDGET,getDefaultMemoryBudget());
+        long maxFilesPerSecond = intent.getLongExtra(EXTRA_MAX_FILES_PER_SECOND,0);
+        boolean adaptiveRescan = intent.getBooleanExtra(EXTRA_ADAPTIVE_RESCAN,false);
         String[] fileExtensions = intent.getStringArrayExtra(EXTRA_FILE_EXTENSIONS);
+        String[] patterns = intent.getStringArrayExtra(EXTRA_PATTERNS);
+        Set<String> contentTypes = ContentSniffer.normalizeTypes(intent.getStringArrayExtra(EXTRA_CONTENT_TYPES));
+        AttributeFilter attributeFilter = AttributeFilter.fromIntent(intent);
 
         switch (actionType) {
 
@@ -206,14 +356,356 @@ public class FileExtSearchService extends IntentService {
 
         if(scanDirs) {
 
-            List<String> filePaths = scanAllWatchedDirectories(fileExtensions);
+            PathPattern pathPattern;
+
+            try {
+                pathPattern = PathPattern.compile(patterns);
+            } catch (IllegalArgumentException e) {
+
+                Intent errorIntent = createResultIntent(null);
+                errorIntent.putExtra(EXTRA_ERROR,e.getMessage());
+                sendBroadcast(errorIntent);
+                onResultsDelivered(null);
+                return;
+            }
+
+            // Without file extensions only the content types match, instead of all files
+            if(contentTypes != null && fileExtensions == null) {
+                fileExtensions = new String[0];
+            }
+
+            String query = createQueryKey(fileExtensions,patterns,contentTypes,attributeFilter);
+            String runPrefix = serviceName + "-";
+            ResultCollector.deleteStaleRuns(getCacheDir(),runPrefix);
+            boolean deliveredStale = false;
+
+            if(staleWhileRevalidate) {
+                deliveredStale = deliverStaleResults(query,memoryBudget,runPrefix);
+            }
+
+            ResultCollector collector = new ResultCollector(memoryBudget,getCacheDir(),runPrefix);
+
+            // Only scheduled rescans skip directories, a scan requested by the app visits all of them
+            RescanScheduler scheduler = adaptiveRescan
+                    ? new RescanScheduler(fileExtSearchDatabase,query,intent.getBooleanExtra(EXTRA_SCHEDULED_RESCAN,false))
+                    : null;
+
+            try {
+
+                if(scanAllWatchedDirectories(query,fileExtensions,pathPattern,contentTypes,attributeFilter,maxFilesPerSecond,scheduler,collector)) {
+
+                    deliverResults(query,collector,changesOnly || deliveredStale);
+
+                    if(scheduler != null) {
+                        scheduler.save();
+                        scheduleRescan(intent,query,scheduler.getNextRescanDelay());
+                    } else {
+                        cancelRescan(query);
+                    }
+                } else {
+                    sendBroadcast(createResultIntent(null));
+                    onResultsDelivered(null);
+                }
+            } catch (IOException e) {
+                sendBroadcast(createResultIntent(null));
+                onResultsDelivered(null);
+            } finally {
+                collector.close();
+            }
+        }
+    }
+
+    /**
+     * Method used to compare the files of a completed scan with the saved results of the query,
+     * save them and broadcast them. When the files did not exceed the memory budget, they are
+     * delivered as an array. Otherwise they are written to a results file.
+     *
+     * @param query key of the query
+     * @param collector the matched files of the scan
+     * @param changesOnly indicates if the broadcast should only carry the changes
+     * @throws IOException if the matched files could not be read back from the collector
+     * */
+    private void deliverResults(String query, ResultCollector collector, boolean changesOnly) throws IOException {
+
+        ResultCursor previous = fileExtSearchDatabase.queryResultEntries(query);
+        ResultCursor current = collector.open();
+        ScanChangeSet changeSet;
+
+        try {
+            changeSet = ScanChangeSet.compute(previous,current,fileExtSearchDatabase.getGeneration(query),MAX_BROADCAST_CHANGES);
+        } finally {
+            previous.close();
+            current.close();
+        }
+
+        fileExtSearchDatabase.saveResults(query,collector,changeSet,System.currentTimeMillis());
+        fileExtSearchDatabase.deleteCheckpoint(query);
+
+        Intent resultIntent = new Intent(ACTION_SEARCH_COMPLETE);
+
+        // Clients can not catch up from a truncated change set
+        String[] matchedFiles = putResults(resultIntent,query,collector,changeSet.getGeneration(),!changesOnly || changeSet.isTruncated());
+
+        putChangeSet(resultIntent,changeSet);
+        sendBroadcast(resultIntent);
+
+        onResultsDelivered(matchedFiles);
+        onChangesDelivered(changeSet);
+    }
+
+    /**
+     * Method used to add the files of a collector to an Intent that will be broadcast by the service. When the files
+     * did not exceed the memory budget, they are added as an array. Otherwise they are written to the results file
+     * of the generation and only its path is added.
+     *
+     * @param intent intent that will be broadcast
+     * @param query key of the query
+     * @param collector the files to add
+     * @param generation generation of the files
+     * @param includeArray indicates if the array should be added. The results file is always added, and the array
+     *                     when it replaces a results file
+     * @return the paths of the files or null if they were written to a results file
+     * @throws IOException if the files could not be read back from the collector or the results file could not be written
+     * */
+    private String[] putResults(Intent intent, String query, ResultCollector collector, long generation, boolean includeArray) throws IOException {
+
+        String resultsPrefix = serviceName + "-" + Integer.toHexString(query.hashCode()) + "-";
+
+        if(collector.hasSpilled()) {
+
+            File resultsFile = new File(getCacheDir(),resultsPrefix + generation + RESULTS_FILE_SUFFIX);
+            File partialFile = new File(getCacheDir(),resultsFile.getName() + ".tmp");
+
+            // Written next to the final name and renamed into place, so readers only ever see complete files
+            int count = collector.writePaths(partialFile);
+
+            if(!partialFile.renameTo(resultsFile)) {
+                //noinspection ResultOfMethodCallIgnored
+                partialFile.delete();
+                throw new IOException("Could not rename " + partialFile + " to " + resultsFile);
+            }
+
+            deleteOldResultsFiles(resultsPrefix,generation - 1);
+            intent.putExtra(EXTRA_RESULT_COUNT,count);
+            intent.putExtra(EXTRA_RESULTS_FILE,resultsFile.getAbsolutePath());
+
+            return null;
+        }
+
+        String[] matchedFiles = collector.toPathArray();
+        intent.putExtra(EXTRA_RESULT_COUNT,matchedFiles.length);
+
+        // The array replaces the results files of earlier generations. Clients that show one of them can not apply
+        // changes to it, so they get the array even when only the changes were asked for
+        boolean replacedResultsFile = deleteOldResultsFiles(resultsPrefix,generation);
+
+        if(includeArray || replacedResultsFile) {
+            intent.putExtra(EXTRA_RESULTS,matchedFiles);
+        }
+
+        return matchedFiles;
+    }
+
+    /**
+     * Method used to start the service again with the same scan after a delay. The alarm is inexact and does
+     * not wake up the device, so the rescan runs at the earliest when the device is awake after the delay.
+     * A scheduled rescan of the same query replaces the previous one.
+     *
+     * @param intent the intent that started the scan
+     * @param query key of the query
+     * @param delay delay in milliseconds
+     * */
+    private void scheduleRescan(Intent intent, String query, long delay) {
+
+        AlarmManager alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+
+        if(alarmManager == null) {
+            return;
+        }
+
+        // The watched directories are read from the database, adding or removing them again is not part of the rescan
+        Intent rescanIntent = new Intent(intent);
+        rescanIntent.setClass(this,getClass());
+        rescanIntent.setAction(ACTION_RESCAN);
+        rescanIntent.removeExtra(EXTRA_DIR_PATHS);
+        rescanIntent.removeExtra(EXTRA_ACTION_TYPE);
+        rescanIntent.putExtra(EXTRA_SCHEDULED_RESCAN,true);
+
+        PendingIntent pendingIntent = PendingIntent.getService(this,query.hashCode(),rescanIntent,PendingIntent.FLAG_UPDATE_CURRENT);
+        alarmManager.set(AlarmManager.ELAPSED_REALTIME,SystemClock.elapsedRealtime() + delay,pendingIntent);
+    }
+
+    /**
+     * Method used to cancel the scheduled rescan of a query and forget the statistics of its directories.
+     * @param query key of the query
+     * */
+    private void cancelRescan(String query) {
+
+        AlarmManager alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+        Intent rescanIntent = new Intent(this,getClass());
+        rescanIntent.setAction(ACTION_RESCAN);
+        PendingIntent pendingIntent = PendingIntent.getService(this,query.hashCode(),rescanIntent,PendingIntent.FLAG_NO_CREATE);
+
+        if(alarmManager != null && pendingIntent != null) {
+            alarmManager.cancel(pendingIntent);
+            pendingIntent.cancel();
+        }
+
+        fileExtSearchDatabase.deleteDirStats(query);
+    }
+
+    /**
+     * Method used to delete the results files of a query that are older than a generation. When a new results file
+     * is written, the file of the previous generation is kept, a client may still be reading it while the new one is broadcast.
+     * When the results fit into the broadcast again, every older file is deleted.
+     *
+     * @param resultsPrefix prefix of the names of the results files of the query
+     * @param oldestKeptGeneration generation of the oldest results file that is kept
+     * @return true if a results file was deleted
+     * */
+    private boolean deleteOldResultsFiles(final String resultsPrefix, long oldestKeptGeneration) {
 
-            if(filePaths != null) {
-                filePaths = new ArrayList<>(new LinkedHashSet<>(filePaths));
+        File[] files = getCacheDir().listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(resultsPrefix) && name.endsWith(RESULTS_FILE_SUFFIX);
             }
-            String[] matchedFiles = pathListToArray(filePaths);
-            sendBroadcast(createResultIntent(matchedFiles));
-            onResultsDelivered(matchedFiles);
+        });
+
+        if(files == null) {
+            return false;
+        }
+
+        boolean deleted = false;
+
+        for (File file : files) {
+
+            String name = file.getName();
+            long fileGeneration;
+
+            try {
+                fileGeneration = Long.parseLong(name.substring(resultsPrefix.length(),name.length() - RESULTS_FILE_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+
+            if(fileGeneration < oldestKeptGeneration && file.delete()) {
+                deleted = true;
+            }
+        }
+
+        return deleted;
+    }
+
+    /** Method used to get the memory budget of a scan when none was passed in.
+     * @return an eighth of the memory class of the device in bytes */
+    private long getDefaultMemoryBudget() {
+
+        ActivityManager activityManager = (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
+        int memoryClass = activityManager != null ? activityManager.getMemoryClass() : 16;
+
+        return memoryClass * 1024L * 1024L / 8;
+    }
+
+    /**
+     * Method used to broadcast the results of the last completed scan of a query before the
+     * watched directories are scanned again. Nothing is broadcast if the query was never scanned.
+     * The saved results are streamed through a collector, so results that exceed the memory budget
+     * are delivered through a results file like the results of a scan.
+     *
+     * @param query key of the query
+     * @param memoryBudget maximum number of bytes the results may use before they are spilled
+     * @param runPrefix prefix of the names of the run files
+     * @return true if stale results were delivered
+     * */
+    boolean deliverStaleResults(String query, long memoryBudget, String runPrefix) {
+
+        long completedAt = fileExtSearchDatabase.getLastScanTime(query);
+
+        if(completedAt < 0) {
+            return false;
+        }
+
+        long generation = fileExtSearchDatabase.getGeneration(query);
+        ResultCollector staleCollector = new ResultCollector(memoryBudget,getCacheDir(),runPrefix);
+        ResultCursor staleResults = fileExtSearchDatabase.queryResultEntries(query);
+        Intent intent = new Intent(ACTION_SEARCH_COMPLETE);
+        String[] staleFiles;
+
+        try {
+            staleCollector.addAll(staleResults);
+            staleFiles = putResults(intent,query,staleCollector,generation,true);
+        } catch (IOException e) {
+            return false;
+        } finally {
+            staleResults.close();
+            staleCollector.close();
+        }
+
+        long staleAge = Math.max(0,System.currentTimeMillis() - completedAt);
+        intent.putExtra(EXTRA_STALE,true);
+        intent.putExtra(EXTRA_STALE_AGE,staleAge);
+        intent.putExtra(EXTRA_GENERATION,generation);
+        sendBroadcast(intent);
+
+        onStaleResultsDelivered(staleFiles,staleAge);
+
+        return true;
+    }
+
+    /**
+     * Utility method used to create a key that identifies a query by its file extensions, patterns, content types
+     * and attribute predicates. The order and duplicates of the file extensions and patterns do not change the key.
+     *
+     * @param fileExtensions file extensions to match. May be null
+     * @param patterns glob patterns to match. May be null
+     * @param contentTypes sorted content types to match. May be null
+     * @param attributeFilter predicates on the attributes of the files to match
+     * @return key of the query
+     * */
+    private String createQueryKey(String[] fileExtensions, String[] patterns, Set<String> contentTypes, AttributeFilter attributeFilter) {
+
+        StringBuilder key = new StringBuilder();
+
+        if(fileExtensions == null) {
+            key.append('*');
+        } else {
+            appendSorted(key,fileExtensions);
+        }
+
+        if(patterns != null) {
+            key.append('|');
+            appendSorted(key,patterns);
+        }
+
+        if(contentTypes != null) {
+
+            key.append('#');
+
+            for (String contentType : contentTypes) {
+                key.append(contentType).append('\n');
+            }
+        }
+
+        attributeFilter.appendKey(key);
+
+        return key.toString();
+    }
+
+    /** Utility method used to append the sorted, distinct and non null values of an array to a key */
+    private void appendSorted(StringBuilder key, String[] values) {
+
+        TreeSet<String> sortedValues = new TreeSet<>();
+
+        for (String value : values) {
+
+            if(value != null) {
+                sortedValues.add(value);
+            }
+        }
+
+        for (String value : sortedValues) {
+            key.append(value).append('\n');
         }
     }
 
@@ -223,28 +715,49 @@ public class FileExtSearchService extends IntentService {
      * Otherwise listen for a broadcast intent from the app for the results of a scan.
      * Note that this method is called on the background thread.
      *
-     * @param filePaths an array of file paths that matched on of the passed in file extensions
+     * @param filePaths an array of file paths that matched on of the passed in file extensions. Null if the scan
+     *                  failed or the matched files exceeded the memory budget and were delivered through EXTRA_RESULTS_FILE
      * */
     public void onResultsDelivered(String[] filePaths) {
 
     }
 
     /**
-     * Utility method used to convert a list of file paths
-     * to an array of file paths.
+     * This method will be called after the service broadcast the results of the last completed scan of the query
+     * with EXTRA_STALE, before the watched directories are scanned again. Only called when EXTRA_STALE_WHILE_REVALIDATE
+     * is set and the query was scanned before. onResultsDelivered follows once the scan completed.
+     * Note that this method is called on the background thread.
      *
-     * @param filePaths a list of file paths
-     * @return an array of file paths. This method may return null
+     * @param filePaths an array of the saved file paths. Null if they exceeded the memory budget and were delivered
+     *                  through EXTRA_RESULTS_FILE
+     * @param staleAge time in milliseconds since the saved results were found
      * */
-    private String[] pathListToArray(List<String> filePaths) {
+    public void onStaleResultsDelivered(String[] filePaths, long staleAge) {
 
-        if(filePaths == null) {
-            return null;
-        }
+    }
+
+    /**
+     * This method is called at the start of every scan to get a listener that receives the matched files while
+     * the watched directories are walked, so they can be processed before the scan completes.
+     * Use/Override this method only when extending this service and you need to process large results as they
+     * are found. The listener is called on the background thread, and the scan waits for it while it is busy.
+     *
+     * @return the listener or null if the matched files should only be delivered once the scan completed
+     * */
+    public ScanListener getScanListener() {
+        return null;
+    }
+
+    /**
+     * This method will be called after the service broadcast the results of the scan with the
+     * changes since the previous scan of the same file extensions.
+     * Use/Override this method only when extending this service and you need to update data
+     * derived from previous results. Note that this method is called on the background thread.
+     *
+     * @param changeSet files added, removed and modified since the previous scan. Carries no paths if it is truncated
+     * */
+    public void onChangesDelivered(ScanChangeSet changeSet) {
 
-        String[] matchedFiles = new String[filePaths.size()];
-        filePaths.toArray(matchedFiles);
-        return matchedFiles;
     }
 
     /** Method used to create an Intent that will be broadcast by
@@ -265,6 +778,29 @@ public class FileExtSearchService extends IntentService {
         return intent;
     }
 
+    /** Method used to add the changes of a scan to an Intent that will be broadcast by the service.
+     * If nothing changed, the intent only carries EXTRA_UNCHANGED set to true next to the generations.
+     * If more than MAX_BROADCAST_CHANGES files changed, it only carries EXTRA_CHANGES_TRUNCATED set to true.
+     *
+     * @param intent intent that will be broadcast
+     * @param changeSet changes of the scan
+     * */
+    private void putChangeSet(Intent intent, ScanChangeSet changeSet) {
+
+        intent.putExtra(EXTRA_GENERATION,changeSet.getGeneration());
+        intent.putExtra(EXTRA_PREVIOUS_GENERATION,changeSet.getPreviousGeneration());
+
+        if(changeSet.isEmpty()) {
+            intent.putExtra(EXTRA_UNCHANGED,true);
+        } else if(changeSet.isTruncated()) {
+            intent.putExtra(EXTRA_CHANGES_TRUNCATED,true);
+        } else {
+            intent.putExtra(EXTRA_ADDED,changeSet.getAdded());
+            intent.putExtra(EXTRA_REMOVED,changeSet.getRemoved());
+            intent.putExtra(EXTRA_MODIFIED,changeSet.getModified());
+        }
+    }
+
     /** Utility method used to processes each watched directory into the service database
      *
      * @param dirPaths a list of file directories that will be watched by the service
@@ -369,158 +905,107 @@ public class FileExtSearchService extends IntentService {
     }
 
     /** This method gets all the watched directories from the database and scans them
-     * and their sub folders for matching files with the passed in file extensions
+     * and their sub folders for matching files with the passed in file extensions.
+     * If a previous scan of the same query and watched directories did not complete,
+     * the scan resumes from its checkpoint.
      *
+     * @param query key of the query
      * @param fileExtensions file extensions to match. If null, all files and sub directories in the watched directory will be returned.
-     * @return A list of files that match the passed in file extensions. If no extensions
-     * are passed in, this method will return all files and sub directories in the watched directory.
+     * @param pathPattern pattern the path of each file relative to its watched directory must match. May be null
+     * @param contentTypes content types files that do not match the file extensions are matched against. May be null
+     * @param attributeFilter predicates on the attributes of each file
+     * @param maxFilesPerSecond maximum number of files and directories read per second or 0 if the scan is not throttled
+     * @param scheduler scheduler that tracks the changes of the directories near the watched directories. May be null
+     * @param matchedFiles collector the files that match the passed in file extensions are added to. If no extensions
+     * are passed in, all files and sub directories in the watched directory are added.
+     * @return false if the watched directories could not be retrieved
+     * @throws IOException if matched files could not be spilled to disk
      * */
-    private List<String> scanAllWatchedDirectories(String[] fileExtensions) {
+    private boolean scanAllWatchedDirectories(final String query, String[] fileExtensions, PathPattern pathPattern, Set<String> contentTypes,
+                                              AttributeFilter attributeFilter, long maxFilesPerSecond,
+                                              RescanScheduler scheduler, ResultCollector matchedFiles) throws IOException {
 
         String[] watchedDirectories = fileExtSearchDatabase.getAllPaths();
 
         if(watchedDirectories == null) {
-            return null;
+            return false;
         }
 
-        List<String> matchedFilePaths = new ArrayList<>();
-
-        for (String filePath : watchedDirectories) {
+        ScanListener scanListener = getScanListener();
+        ScanCheckpoint checkpoint = restoreCheckpoint(query,watchedDirectories,matchedFiles,scanListener);
+        final ContentSniffer contentSniffer = contentTypes != null ? new ContentSniffer(contentTypes,fileExtSearchDatabase) : null;
+        IoThrottle throttle = maxFilesPerSecond > 0 ? new IoThrottle(maxFilesPerSecond) : null;
 
-            if(filePath != null) {
-
-                File file = new File(filePath);
-                List<String> results = locateAndProcess(file,fileExtensions);
+        DirectoryScanner.Checkpointer checkpointer = new DirectoryScanner.Checkpointer() {
+            @Override
+            public void saveCheckpoint(ScanCheckpoint checkpoint, ResultCollector collector) throws IOException {
 
-                if(results != null) {
-                    matchedFilePaths.addAll(results);
+                if(contentSniffer != null) {
+                    contentSniffer.saveCache();
                 }
-            }
-
-        }
-
-        return matchedFilePaths;
-    }
-
-    /**
-     *  This method locates and processes all files in all sub directories located inside of
-     *  the watched directory.
-     *
-     *  @param dir watched directory file
-     *  @param fileExtensions file extensions that each file is matched against. If this parameter
-     *                        is null, all files and sub-sub directory files in the directory will be returned.
-     *
-     *  @return a list of absolute file paths that matches one or more of the file extensions passed in. If no file
-     *  extensions were passed in, this method will return all files and sub directories. If no matches were found, an empty list
-     *  will be returned.
-     * */
-    private List<String> locateAndProcess(File dir,String[] fileExtensions) {
-
-        List<String> matchedFilesPaths = new ArrayList<>();
-
-        if(dir == null) {
-            return matchedFilesPaths;
-        }
-
-
-        File[] fileMatches = getFilesWithExt(dir,fileExtensions);
-
-        if(fileMatches != null) {
-            matchedFilesPaths.addAll(filesToPathList(fileMatches));
-        }
 
+                fileExtSearchDatabase.saveCheckpoint(query,checkpoint,collector);
+                collector.markCheckpoint();
+            }
+        };
 
-        File[] subDirs = getSubDirs(dir);
-        if(subDirs != null) {
+        try {
+            new DirectoryScanner(fileExtensions,pathPattern,attributeFilter,matchedFiles,checkpointer,contentSniffer,throttle,scanListener,scheduler)
+                    .scan(watchedDirectories,checkpoint);
+        } finally {
 
-            for (File subDir : subDirs) {
-                matchedFilesPaths.addAll(locateAndProcess(subDir,fileExtensions));
+            if(contentSniffer != null) {
+                contentSniffer.shutdown();
+                contentSniffer.saveCache();
             }
         }
 
-        return matchedFilesPaths;
+        return true;
     }
 
-    /** This method returns a list of all sub-directories located inside of the passed in file directory.
+    /** Method used to get the checkpoint of an incomplete scan of a query and add its files to a collector.
+     * Checkpoints of different watched directories or older than ScanCheckpoint.MAX_AGE are discarded.
      *
-     * @param file directory file.
-     * @return an array of all the sub-directories located inside of the passed in directory. If the passed
-     * in file is null or not a directory, this method will return null.
+     * @param query key of the query
+     * @param watchedDirectories watched directories of the new scan
+     * @param matchedFiles collector the files saved with the checkpoint are added to
+     * @param scanListener listener the files saved with the checkpoint are reported to. May be null
+     * @return the checkpoint to resume from or null if the scan should start from the beginning
+     * @throws IOException if the restored files could not be spilled to disk
      * */
-    private File[] getSubDirs(File file) {
+    ScanCheckpoint restoreCheckpoint(String query, String[] watchedDirectories, ResultCollector matchedFiles,
+                                     ScanListener scanListener) throws IOException {
 
-        if(file == null) {
-            return null;
-        }
+        ScanCheckpoint checkpoint = fileExtSearchDatabase.getCheckpoint(query);
 
-        if(!file.isDirectory()) {
+        if(checkpoint == null) {
             return null;
         }
 
-        return file.listFiles(new FileFilter() {
-            @Override
-            public boolean accept(File file) {
-                return file.isDirectory();
-            }
-        });
-    }
-
-    /** Utility method that will return a list of files that matches one of the file
-     *  extensions passed in.
-     *
-     *  @param file directory to scan
-     *  @param fileExtensions file extensions that each file is matched against. If this parameter
-     *                        is null, all files and sub directories in the directory will be returned.
-     *
-     *  @return an array of files that matches one or more of the file extensions passed in. If the fileExtensions
-     *  parameter is null, all files and sub directories in the directory is returned. If the passed in file directory is null,
-     *  this method will return null.
-     *  */
-    private File[] getFilesWithExt(File file, final String[] fileExtensions) {
-
-        if(file == null) {
+        if(!checkpoint.canResume(watchedDirectories,System.currentTimeMillis())) {
+            fileExtSearchDatabase.deleteCheckpoint(query);
             return null;
         }
 
-        if(fileExtensions == null) {
-            return file.listFiles();
-        }
-
+        ResultCursor savedFiles = fileExtSearchDatabase.queryCheckpointResults(query);
 
-        return file.listFiles(new FilenameFilter() {
-            @Override
-            public boolean accept(File dir, String fileName) {
+        try {
 
-                for(String e : fileExtensions) {
+            while(savedFiles.moveToNext()) {
 
-                    if(e != null && fileName.endsWith(e)) {
-                        return true;
-                    }
+                if(matchedFiles.add(savedFiles.getPath(),savedFiles.getSize(),savedFiles.getLastModified()) && scanListener != null) {
+                    scanListener.onFileMatched(savedFiles.getPath(),savedFiles.getSize(),savedFiles.getLastModified());
                 }
 
-                return false;
+                // Restored files are already saved, so they can be spilled without a checkpoint
+                matchedFiles.spillIfNeeded();
             }
-        });
-    }
-
-    /** Utility method used to get the absolute path of each file in the passed in array
-     *
-     * @param files an array of files
-     * @return a list of the absolute paths of each file from the passed in array. This method will return
-     * an empty list if the passed in files array is null.
-     * */
-    private List<String> filesToPathList(File[] files) {
-
-        List<String> paths = new ArrayList<>();
-
-        if(files == null) {
-            return paths;
+        } finally {
+            savedFiles.close();
         }
 
-        for (File file : files) {
-            paths.add(file.getAbsolutePath());
-        }
+        matchedFiles.markCheckpoint();
 
-        return paths;
+        return checkpoint;
     }
 }
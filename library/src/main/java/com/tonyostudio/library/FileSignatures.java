@@ -0,0 +1,135 @@
+package com.tonyostudio.library;
+
+import android.support.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Registry of the magic number signatures used to detect the type of a file from its first bytes,
+ * independent of its name. Each type is named after its usual file extension, for example "jpg" or "pdf".
+ * Signatures are checked in order, so more specific signatures are listed before the ones they share
+ * a prefix with, for example "m4a" before "mp4".
+ * */
+final class FileSignatures {
+
+    /** Number of bytes at the start of a file that every signature fits in */
+    static final int HEADER_LENGTH = 16;
+
+    /** A sequence of bytes at an offset from the start of a file */
+    private static final class Part {
+
+        final int offset;
+        final byte[] magic;
+
+        Part(int offset, byte[] magic) {
+            this.offset = offset;
+            this.magic = magic;
+        }
+    }
+
+    /** A type together with all the parts its files start with */
+    private static final class Signature {
+
+        final String type;
+        final Part[] parts;
+
+        Signature(String type, Part... parts) {
+            this.type = type;
+            this.parts = parts;
+        }
+    }
+
+    private static final Signature[] SIGNATURES = {
+            new Signature("jpg",part(0,0xFF,0xD8,0xFF)),
+            new Signature("png",part(0,0x89,'P','N','G',0x0D,0x0A,0x1A,0x0A)),
+            new Signature("gif",part(0,"GIF87a")),
+            new Signature("gif",part(0,"GIF89a")),
+            new Signature("webp",part(0,"RIFF"),part(8,"WEBP")),
+            new Signature("wav",part(0,"RIFF"),part(8,"WAVE")),
+            new Signature("avi",part(0,"RIFF"),part(8,"AVI ")),
+            new Signature("bmp",part(0,"BM")),
+            new Signature("tif",part(0,'I','I',0x2A,0x00)),
+            new Signature("tif",part(0,'M','M',0x00,0x2A)),
+            new Signature("heic",part(4,"ftypheic")),
+            new Signature("heic",part(4,"ftypheix")),
+            new Signature("heic",part(4,"ftypmif1")),
+            new Signature("m4a",part(4,"ftypM4A ")),
+            new Signature("3gp",part(4,"ftyp3gp")),
+            new Signature("mp4",part(4,"ftyp")),
+            new Signature("mkv",part(0,0x1A,0x45,0xDF,0xA3)),
+            new Signature("mp3",part(0,"ID3")),
+            new Signature("mp3",part(0,0xFF,0xFB)),
+            new Signature("mp3",part(0,0xFF,0xF3)),
+            new Signature("mp3",part(0,0xFF,0xF2)),
+            new Signature("ogg",part(0,"OggS")),
+            new Signature("flac",part(0,"fLaC")),
+            new Signature("mid",part(0,"MThd")),
+            new Signature("pdf",part(0,"%PDF-")),
+            new Signature("zip",part(0,'P','K',0x03,0x04)),
+            new Signature("zip",part(0,'P','K',0x05,0x06)),
+            new Signature("gz",part(0,0x1F,0x8B)),
+            new Signature("7z",part(0,'7','z',0xBC,0xAF,0x27,0x1C)),
+            new Signature("rar",part(0,'R','a','r','!',0x1A,0x07))
+    };
+
+    private FileSignatures() {
+    }
+
+    /**
+     * Method used to detect the type of a file from its first bytes.
+     * @param header buffer holding the first bytes of the file from position 0 up to its limit
+     * @return the type of the file or null if no signature matched
+     * */
+    static String detect(@NonNull ByteBuffer header) {
+
+        for (Signature signature : SIGNATURES) {
+
+            if(matches(signature,header)) {
+                return signature.type;
+            }
+        }
+
+        return null;
+    }
+
+    private static boolean matches(Signature signature, ByteBuffer header) {
+
+        for (Part part : signature.parts) {
+
+            if(part.offset + part.magic.length > header.limit()) {
+                return false;
+            }
+
+            for (int i = 0; i < part.magic.length; i++) {
+
+                if(header.get(part.offset + i) != part.magic[i]) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    private static Part part(int offset, int... values) {
+
+        byte[] magic = new byte[values.length];
+
+        for (int i = 0; i < values.length; i++) {
+            magic[i] = (byte) values[i];
+        }
+
+        return new Part(offset,magic);
+    }
+
+    private static Part part(int offset, String ascii) {
+
+        byte[] magic = new byte[ascii.length()];
+
+        for (int i = 0; i < ascii.length(); i++) {
+            magic[i] = (byte) ascii.charAt(i);
+        }
+
+        return new Part(offset,magic);
+    }
+}
@@ -0,0 +1,481 @@
+package com.tonyostudio.library;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dedicated writer thread of a FileExtSearchDatabase. Writes are queued and run on the writer thread in the
+ * order they were submitted. Consecutive writes are committed together in one transaction until the batch
+ * holds MAX_BATCH_ROWS rows or is MAX_BATCH_MILLIS old, which turns many small writes into a few commits.
+ * A single write is never split over two transactions, so its rows become visible to readers all at once.
+ * When a write of a batch fails, the batch is rolled back and each of its writes is run again in a transaction
+ * of its own, so a failing write only affects itself.
+ *
+ * Writes of many rows, like the results of a scan, are queued with executeInChunksAndWait instead. They run on their
+ * own, after the writes queued before them were committed, and commit their rows in chunks of MAX_BATCH_ROWS rows or
+ * MAX_BATCH_MILLIS, see commitIfFull. So a write of a million rows neither holds the write lock for its whole
+ * duration nor grows the write-ahead log without bound. Readers see its chunks as they are committed.
+ *
+ * Writes bind their rows to statements compiled once per writer, see statement. Transactions are started
+ * non-exclusive, so with write-ahead logging enabled on the database, readers on other threads keep reading
+ * the last committed rows instead of waiting for a running batch.
+ * */
+class IndexWriter {
+
+    /** Number of rows after which a batch is committed */
+    static final int MAX_BATCH_ROWS = 2000;
+
+    /** Time in milliseconds after which a batch is committed */
+    static final long MAX_BATCH_MILLIS = 200;
+
+    /** Write that is run on the writer thread inside of a transaction */
+    interface Write {
+
+        /**
+         * Method used to write rows. A write is run a second time if another write of its batch failed,
+         * so it must read its rows from a source that can be read again. Writes queued in chunks are never run again.
+         * @param writer writer to get the compiled statements from
+         * @return number of rows written
+         * @throws IOException if the rows could not be read from their source
+         * */
+        int write(@NonNull IndexWriter writer) throws IOException;
+    }
+
+    /** Write waiting in the queue together with the state of the caller waiting for it */
+    private static final class PendingWrite {
+
+        final Write write;
+
+        /** Counted down once the write was committed or failed. Null if nobody waits */
+        final CountDownLatch done;
+
+        /** Indicates if the write commits its rows in chunks and is run on its own */
+        final boolean chunked;
+
+        /** Failure of the write. Null if it was committed */
+        Throwable failure;
+
+        PendingWrite(Write write, CountDownLatch done, boolean chunked) {
+            this.write = write;
+            this.done = done;
+            this.chunked = chunked;
+        }
+    }
+
+    /** Queued write that stops the writer thread */
+    private static final PendingWrite STOP = new PendingWrite(null,null,false);
+
+    private final SQLiteOpenHelper helper;
+    private final BlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<>();
+
+    /** Database the writes are run on, opened once by the writer thread. Held so the writer thread does not need
+     *  the lock of the helper again while close waits for it. Only accessed from the writer thread */
+    private SQLiteDatabase database;
+
+    /** Compiled statements by SQL. Only accessed from the writer thread */
+    private final Map<String,SQLiteStatement> statements = new HashMap<>();
+
+    /** Indicates if the running write commits its rows in chunks. Only accessed from the writer thread */
+    private boolean chunking;
+
+    /** Rows written by the running chunked write since its last commit. Only accessed from the writer thread */
+    private int chunkRows;
+
+    /** Time in milliseconds the running chunk was started. Only accessed from the writer thread */
+    private long chunkStartedAt;
+
+    private Thread thread;
+    private boolean closed;
+
+    /** @param helper helper of the database the writes are run on */
+    IndexWriter(@NonNull SQLiteOpenHelper helper) {
+        this.helper = helper;
+    }
+
+    /**
+     * Method used to queue a write without waiting for it. A failed write is dropped, so only
+     * rows that can be lost, like cached values, should be written this way.
+     * @param write the write
+     * */
+    void execute(@NonNull Write write) {
+        enqueue(new PendingWrite(write,null,false));
+    }
+
+    /**
+     * Method used to queue a write and wait until it is committed.
+     * @param write the write
+     * @throws IOException if the write failed to read its rows or the thread was interrupted while waiting
+     * */
+    void executeAndWait(@NonNull Write write) throws IOException {
+        waitFor(new PendingWrite(write,new CountDownLatch(1),false));
+    }
+
+    /**
+     * Method used to queue a write of many rows and wait until all of its rows are committed. The write commits
+     * its rows in chunks by calling commitIfFull. If it fails, only the rows since its last commit are rolled back,
+     * so it must be able to clean up the committed rows of an earlier failed run itself.
+     * @param write the write
+     * @throws IOException if the write failed to read its rows or the thread was interrupted while waiting
+     * */
+    void executeInChunksAndWait(@NonNull Write write) throws IOException {
+        waitFor(new PendingWrite(write,new CountDownLatch(1),true));
+    }
+
+    /**
+     * Method used by chunked writes to commit the rows written so far once they fill a chunk. A new transaction
+     * is started for the following rows. Does nothing for writes that were not queued in chunks.
+     * @param rows number of rows written since the last call
+     * */
+    void commitIfFull(int rows) {
+
+        if(!chunking) {
+            return;
+        }
+
+        chunkRows += rows;
+
+        if(chunkRows < MAX_BATCH_ROWS && SystemClock.uptimeMillis() - chunkStartedAt < MAX_BATCH_MILLIS) {
+            return;
+        }
+
+        endTransaction(true);
+        beginTransaction();
+
+        chunkRows = 0;
+        chunkStartedAt = SystemClock.uptimeMillis();
+    }
+
+    /** Utility method used to queue a write and wait until it is committed or failed */
+    private void waitFor(PendingWrite pendingWrite) throws IOException {
+
+        enqueue(pendingWrite);
+
+        try {
+            pendingWrite.done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the index writer");
+        }
+
+        Throwable failure = pendingWrite.failure;
+
+        if(failure instanceof IOException) {
+            throw (IOException) failure;
+        }
+
+        if(failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+
+        if(failure instanceof Error) {
+            throw (Error) failure;
+        }
+    }
+
+    /** Method used to wait until all writes queued so far are committed or dropped */
+    void flush() {
+
+        if(!isRunning()) {
+            return;
+        }
+
+        PendingWrite marker = new PendingWrite(new Write() {
+            @Override
+            public int write(@NonNull IndexWriter writer) {
+                return 0;
+            }
+        },new CountDownLatch(1),false);
+
+        enqueue(marker);
+
+        try {
+            marker.done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Method used to commit the queued writes and stop the writer thread. Writes queued afterwards are rejected */
+    void close() {
+
+        Thread writerThread;
+
+        synchronized (this) {
+
+            if(closed) {
+                return;
+            }
+
+            closed = true;
+            writerThread = thread;
+        }
+
+        if(writerThread == null) {
+            return;
+        }
+
+        queue.add(STOP);
+        boolean interrupted = false;
+
+        while(writerThread.isAlive()) {
+
+            try {
+                writerThread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        if(interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Method used by writes to get a compiled statement. A statement is compiled on first use and reused by
+     * all later writes, which only bind new arguments.
+     * @param sql SQL of the statement with ? placeholders
+     * @return the statement with its bindings cleared
+     * */
+    @NonNull
+    SQLiteStatement statement(@NonNull String sql) {
+
+        SQLiteStatement statement = statements.get(sql);
+
+        if(statement == null) {
+            statement = database.compileStatement(sql);
+            statements.put(sql,statement);
+        }
+
+        statement.clearBindings();
+
+        return statement;
+    }
+
+    /** Method used to begin a transaction on the writer thread. The database is opened by the first transaction */
+    void beginTransaction() {
+
+        if(database == null) {
+            database = helper.getWritableDatabase();
+        }
+
+        database.beginTransactionNonExclusive();
+    }
+
+    /**
+     * Method used to end the transaction of the writer thread.
+     * @param successful true to commit the transaction, false to roll it back
+     * */
+    void endTransaction(boolean successful) {
+
+        if(successful) {
+            database.setTransactionSuccessful();
+        }
+
+        database.endTransaction();
+    }
+
+    private synchronized boolean isRunning() {
+        return thread != null && !closed;
+    }
+
+    private void enqueue(PendingWrite pendingWrite) {
+
+        synchronized (this) {
+
+            if(closed) {
+                throw new IllegalStateException("The index writer is closed");
+            }
+
+            if(thread == null) {
+
+                thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runWrites();
+                    }
+                },"FileExtSearch-index-writer");
+
+                thread.start();
+            }
+
+            // Queued while holding the lock, so no write can end up behind the STOP of close
+            queue.add(pendingWrite);
+        }
+    }
+
+    /** Method executed on the writer thread to run the queued writes in batches until the writer is closed */
+    private void runWrites() {
+
+        boolean stopped = false;
+
+        // Chunked write taken from the queue while a batch was collected, run once the batch is committed
+        PendingWrite carried = null;
+
+        while(!stopped) {
+
+            PendingWrite next = carried;
+            carried = null;
+
+            if(next == null) {
+
+                try {
+                    next = queue.take();
+                } catch (InterruptedException e) {
+                    continue;
+                }
+            }
+
+            if(next == STOP) {
+                break;
+            }
+
+            if(next.chunked) {
+                next.failure = runChunked(next.write);
+                next.done.countDown();
+                continue;
+            }
+
+            List<PendingWrite> batch = new ArrayList<>();
+            batch.add(next);
+
+            long startedAt = SystemClock.uptimeMillis();
+            int rows = 0;
+            boolean waitedFor = false;
+            Throwable failure = null;
+
+            try {
+
+                beginTransaction();
+                boolean successful = false;
+
+                try {
+
+                    while(true) {
+
+                        rows += next.write.write(this);
+                        waitedFor |= next.done != null;
+
+                        if(rows >= MAX_BATCH_ROWS) {
+                            break;
+                        }
+
+                        // Callers waiting for the batch are not kept waiting for writes that may come later
+                        long remaining = waitedFor ? 0 : startedAt + MAX_BATCH_MILLIS - SystemClock.uptimeMillis();
+                        next = remaining > 0 ? queue.poll(remaining,TimeUnit.MILLISECONDS) : queue.poll();
+
+                        if(next == null) {
+                            break;
+                        }
+
+                        if(next == STOP) {
+                            stopped = true;
+                            break;
+                        }
+
+                        if(next.chunked) {
+                            carried = next;
+                            break;
+                        }
+
+                        batch.add(next);
+                    }
+
+                    successful = true;
+                } finally {
+                    endTransaction(successful);
+                }
+            } catch (Throwable t) {
+                failure = t;
+            }
+
+            for (PendingWrite pendingWrite : batch) {
+
+                // The batch was rolled back, the failed write is run again alone so its own failure is reported
+                if(failure != null) {
+                    pendingWrite.failure = batch.size() == 1 ? failure : runAlone(pendingWrite.write);
+                }
+
+                if(pendingWrite.done != null) {
+                    pendingWrite.done.countDown();
+                }
+            }
+        }
+
+        closeStatements();
+    }
+
+    /** Utility method used to run a single write in a transaction of its own
+     *  @return the failure of the write or null if it was committed */
+    private Throwable runAlone(Write write) {
+
+        try {
+
+            beginTransaction();
+            boolean successful = false;
+
+            try {
+                write.write(this);
+                successful = true;
+            } finally {
+                endTransaction(successful);
+            }
+        } catch (Throwable t) {
+            return t;
+        }
+
+        return null;
+    }
+
+    /** Utility method used to run a chunked write, which commits its rows in chunks of their own
+     *  @return the failure of the write or null if all of its rows were committed */
+    private Throwable runChunked(Write write) {
+
+        try {
+
+            beginTransaction();
+            boolean successful = false;
+
+            chunking = true;
+            chunkRows = 0;
+            chunkStartedAt = SystemClock.uptimeMillis();
+
+            try {
+                write.write(this);
+                successful = true;
+            } finally {
+                chunking = false;
+                endTransaction(successful);
+            }
+        } catch (Throwable t) {
+            return t;
+        }
+
+        return null;
+    }
+
+    private void closeStatements() {
+
+        for (SQLiteStatement statement : statements.values()) {
+            statement.close();
+        }
+
+        statements.clear();
+    }
+}
@@ -0,0 +1,88 @@
+package com.tonyostudio.library;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Token bucket that caps the number of file system entries the scan reads per second, shared by the
+ * worker threads of all volumes. Tokens are taken after a directory was listed, so a large directory
+ * puts the bucket into debt and the next listings wait until it is paid off. Up to one second of
+ * unused tokens is kept, which lets short bursts through at full speed.
+ * */
+class IoThrottle {
+
+    /** Source of the time the bucket is refilled by and of the waits while it is in debt */
+    interface Clock {
+
+        /** @return the current time in nanoseconds, only meaningful relative to other calls */
+        long nanoTime();
+
+        /**
+         * Method used to block the calling thread.
+         * @param nanos time to wait in nanoseconds
+         * @throws InterruptedException if the thread was interrupted while waiting
+         * */
+        void sleep(long nanos) throws InterruptedException;
+    }
+
+    /** Clock backed by System.nanoTime and Thread.sleep */
+    static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public void sleep(long nanos) throws InterruptedException {
+            Thread.sleep(nanos / 1000000,(int) (nanos % 1000000));
+        }
+    };
+
+    private final long entriesPerSecond;
+    private final Clock clock;
+    private double tokens;
+    private long lastRefill;
+
+    /** @param entriesPerSecond maximum number of entries read per second. Must be greater than 0 */
+    IoThrottle(long entriesPerSecond) {
+        this(entriesPerSecond,SYSTEM_CLOCK);
+    }
+
+    /** @param entriesPerSecond maximum number of entries read per second. Must be greater than 0
+     *  @param clock clock the bucket is refilled by */
+    IoThrottle(long entriesPerSecond, Clock clock) {
+        this.entriesPerSecond = entriesPerSecond;
+        this.clock = clock;
+        this.tokens = entriesPerSecond;
+        this.lastRefill = clock.nanoTime();
+    }
+
+    /**
+     * Method used to take tokens for entries that were read, waiting while the bucket is in debt.
+     * @param entries number of entries read
+     * @throws InterruptedIOException if the thread was interrupted while waiting
+     * */
+    void acquire(int entries) throws InterruptedIOException {
+
+        long waitNanos;
+
+        synchronized (this) {
+
+            long now = clock.nanoTime();
+            tokens = Math.min(entriesPerSecond,tokens + (now - lastRefill) * entriesPerSecond / 1e9);
+            lastRefill = now;
+            tokens -= entries;
+
+            waitNanos = tokens < 0 ? (long) (-tokens * 1e9 / entriesPerSecond) : 0;
+        }
+
+        if(waitNanos > 0) {
+
+            try {
+                clock.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttled");
+            }
+        }
+    }
+}
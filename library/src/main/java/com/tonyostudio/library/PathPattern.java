@@ -0,0 +1,370 @@
+package com.tonyostudio.library;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One or more glob patterns compiled into a small automaton that is matched against the
+ * path of a file one segment at a time, relative to the outermost watched directory it is located in.
+ *
+ * Patterns are split into segments by '/'. A segment of "**" matches zero or more directories.
+ * Inside a segment, '*' matches any number of characters, '?' matches a single character
+ * and [abc], [a-z] or [!abc] match a single character of a set. For example
+ * "**&#47;Camera/IMG_*.jpg" or "Documents/**&#47;*.pdf".
+ *
+ * The state of the automaton after the segments of a directory tells if anything inside of
+ * the directory can still match, so directories that can not lead to a match are never listed.
+ * A state is a long[] holding one bit mask of active segments per pattern, which limits
+ * each pattern to 63 segments.
+ * */
+class PathPattern {
+
+    /** Segment matching zero or more directories */
+    private static final String ANY_DIRECTORIES = "**";
+
+    private static final int MAX_SEGMENTS = 63;
+
+    /** Segments of each pattern */
+    private final String[][] segments;
+
+    /** Indicates for each segment of each pattern if it has no wildcards */
+    private final boolean[][] literals;
+
+    private PathPattern(String[][] segments, boolean[][] literals) {
+        this.segments = segments;
+        this.literals = literals;
+    }
+
+    /**
+     * Method used to compile glob patterns. A file matches the compiled pattern if it matches
+     * one or more of the glob patterns.
+     * @param patterns glob patterns relative to the watched directories. Null values are ignored
+     * @return the compiled pattern or null if no patterns were passed in
+     * @throws IllegalArgumentException if a pattern has more than 63 segments or a "." or ".." segment,
+     * which would let it match files outside of the watched directories
+     * */
+    static PathPattern compile(String[] patterns) {
+
+        if(patterns == null) {
+            return null;
+        }
+
+        List<String[]> compiled = new ArrayList<>();
+
+        for (String pattern : patterns) {
+
+            if(pattern == null) {
+                continue;
+            }
+
+            List<String> patternSegments = new ArrayList<>();
+
+            for (String segment : pattern.split("/")) {
+
+                // Empty segments come from leading, trailing or doubled separators
+                if(segment.length() == 0) {
+                    continue;
+                }
+
+                if(segment.equals(".") || segment.equals("..")) {
+                    throw new IllegalArgumentException("Pattern can not have . or .. segments: " + pattern);
+                }
+
+                // Consecutive ** segments match the same directories as a single one
+                if(segment.equals(ANY_DIRECTORIES) && !patternSegments.isEmpty()
+                        && patternSegments.get(patternSegments.size() - 1).equals(ANY_DIRECTORIES)) {
+                    continue;
+                }
+
+                patternSegments.add(segment);
+            }
+
+            if(patternSegments.size() > MAX_SEGMENTS) {
+                throw new IllegalArgumentException("Pattern has more than " + MAX_SEGMENTS + " segments: " + pattern);
+            }
+
+            if(!patternSegments.isEmpty()) {
+                compiled.add(patternSegments.toArray(new String[patternSegments.size()]));
+            }
+        }
+
+        if(compiled.isEmpty()) {
+            return null;
+        }
+
+        String[][] segments = compiled.toArray(new String[compiled.size()][]);
+        boolean[][] literals = new boolean[segments.length][];
+
+        for (int p = 0; p < segments.length; p++) {
+
+            literals[p] = new boolean[segments[p].length];
+
+            for (int i = 0; i < segments[p].length; i++) {
+                literals[p][i] = isLiteral(segments[p][i]);
+            }
+        }
+
+        return new PathPattern(segments,literals);
+    }
+
+    /** @return the state of the automaton at a watched directory */
+    @NonNull
+    long[] initialState() {
+
+        long[] state = new long[segments.length];
+
+        for (int p = 0; p < segments.length; p++) {
+            state[p] = closure(p,1L);
+        }
+
+        return state;
+    }
+
+    /**
+     * Method used to advance the automaton by one path segment.
+     * @param state state of the automaton at the parent directory
+     * @param name name of a file or directory inside of the parent directory
+     * @return the state after the name or null if nothing at or below the name can match
+     * */
+    long[] next(@NonNull long[] state, @NonNull String name) {
+
+        long[] next = new long[segments.length];
+        boolean alive = false;
+
+        for (int p = 0; p < segments.length; p++) {
+
+            long mask = state[p];
+            long nextMask = 0;
+
+            for (int i = 0; i < segments[p].length; i++) {
+
+                if((mask & (1L << i)) == 0) {
+                    continue;
+                }
+
+                String segment = segments[p][i];
+
+                if(segment.equals(ANY_DIRECTORIES)) {
+                    nextMask |= 1L << i;
+                } else if(literals[p][i] ? segment.equals(name) : matchSegment(segment,name)) {
+                    nextMask |= 1L << (i + 1);
+                }
+            }
+
+            next[p] = closure(p,nextMask);
+            alive |= next[p] != 0;
+        }
+
+        return alive ? next : null;
+    }
+
+    /** @param state state of the automaton after the name of a file
+     *  @return true if the file matches one or more of the patterns */
+    boolean accepts(long[] state) {
+
+        if(state == null) {
+            return false;
+        }
+
+        for (int p = 0; p < segments.length; p++) {
+
+            if((state[p] & (1L << segments[p].length)) != 0) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /** @param state state of the automaton at a directory
+     *  @return true if a file or directory below the directory can still match */
+    boolean canMatchBelow(long[] state) {
+
+        if(state == null) {
+            return false;
+        }
+
+        for (int p = 0; p < segments.length; p++) {
+
+            // Only a fully matched pattern is active, and it can not consume more segments
+            if((state[p] & ~(1L << segments[p].length)) != 0) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Method used to find out if only a few known names inside of a directory can match.
+     * In that case the directory does not need to be listed, the names can be looked up directly.
+     * @param state state of the automaton at the directory
+     * @return the only names that can match or null if the directory needs to be listed
+     * */
+    String[] literalNames(@NonNull long[] state) {
+
+        List<String> names = new ArrayList<>();
+
+        for (int p = 0; p < segments.length; p++) {
+
+            for (int i = 0; i < segments[p].length; i++) {
+
+                if((state[p] & (1L << i)) == 0) {
+                    continue;
+                }
+
+                if(!literals[p][i]) {
+                    return null;
+                }
+
+                if(!names.contains(segments[p][i])) {
+                    names.add(segments[p][i]);
+                }
+            }
+        }
+
+        return names.toArray(new String[names.size()]);
+    }
+
+    /**
+     * Method used to compute the state of the automaton at a directory from its path.
+     * @param relativePath path of the directory relative to the watched directory
+     * @return the state at the directory or null if nothing in the directory can match
+     * */
+    long[] stateFor(@NonNull String relativePath) {
+
+        long[] state = initialState();
+
+        for (String segment : relativePath.split("/")) {
+
+            if(segment.length() == 0) {
+                continue;
+            }
+
+            state = next(state,segment);
+
+            if(state == null) {
+                return null;
+            }
+        }
+
+        return state;
+    }
+
+    /** Utility method used to add the segments reachable through ** segments without consuming a name */
+    private long closure(int pattern, long mask) {
+
+        for (int i = 0; i < segments[pattern].length; i++) {
+
+            if((mask & (1L << i)) != 0 && segments[pattern][i].equals(ANY_DIRECTORIES)) {
+                mask |= 1L << (i + 1);
+            }
+        }
+
+        return mask;
+    }
+
+    private static boolean isLiteral(String segment) {
+        return segment.indexOf('*') < 0 && segment.indexOf('?') < 0 && segment.indexOf('[') < 0;
+    }
+
+    /** Utility method used to match a name against a single segment glob. '*' is matched with backtracking
+     *  to the last star only, which keeps the match linear for the usual patterns */
+    static boolean matchSegment(String glob, String name) {
+
+        int g = 0;
+        int n = 0;
+        int starGlob = -1;
+        int starName = 0;
+
+        while(n < name.length()) {
+
+            if(g < glob.length()) {
+
+                char c = glob.charAt(g);
+
+                if(c == '*') {
+                    starGlob = g++;
+                    starName = n;
+                    continue;
+                }
+
+                if(c == '?') {
+                    g++;
+                    n++;
+                    continue;
+                }
+
+                if(c == '[') {
+
+                    int end = matchClass(glob,g,name.charAt(n));
+
+                    if(end > 0) {
+                        g = end;
+                        n++;
+                        continue;
+                    }
+                } else if(c == name.charAt(n)) {
+                    g++;
+                    n++;
+                    continue;
+                }
+            }
+
+            if(starGlob < 0) {
+                return false;
+            }
+
+            g = starGlob + 1;
+            n = ++starName;
+        }
+
+        while(g < glob.length() && glob.charAt(g) == '*') {
+            g++;
+        }
+
+        return g == glob.length();
+    }
+
+    /** Utility method used to match a character against the character class starting at an index of a glob.
+     *  A '[' without a closing ']' is matched literally.
+     *  @return the index after the class if the character matches, otherwise -1 */
+    private static int matchClass(String glob, int start, char c) {
+
+        int i = start + 1;
+        boolean negate = i < glob.length() && (glob.charAt(i) == '!' || glob.charAt(i) == '^');
+
+        if(negate) {
+            i++;
+        }
+
+        boolean matched = false;
+        boolean first = true;
+
+        while(i < glob.length() && (first || glob.charAt(i) != ']')) {
+
+            char low = glob.charAt(i);
+            char high = low;
+
+            if(i + 2 < glob.length() && glob.charAt(i + 1) == '-' && glob.charAt(i + 2) != ']') {
+                high = glob.charAt(i + 2);
+                i += 2;
+            }
+
+            if(c >= low && c <= high) {
+                matched = true;
+            }
+
+            first = false;
+            i++;
+        }
+
+        if(i >= glob.length()) {
+            return c == '[' ? start + 1 : -1;
+        }
+
+        return matched != negate ? i + 1 : -1;
+    }
+}
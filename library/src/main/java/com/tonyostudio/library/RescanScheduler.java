@@ -0,0 +1,329 @@
+package com.tonyostudio.library;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Learns how often the subtrees of the watched directories change between scans of a query and decides
+ * which subtrees a scheduled rescan can skip. A subtree is a watched directory or a directory up to
+ * TRACKED_DEPTH levels below it.
+ *
+ * While a subtree is walked, the names, sizes and last modified times of its entries, directories
+ * included, are summed into a signature. A subtree whose signature differs from the previous visit
+ * changed, and its rescan interval is halved. An unchanged subtree has its interval grown by half,
+ * within MIN_INTERVAL and MAX_INTERVAL. Scheduled rescans skip subtrees that are not due yet. Their
+ * files are carried forward from the saved results of the query, and their signature is taken from
+ * the previous visit. Subtrees that change often are therefore revisited often, and subtrees that
+ * never change are read about once a day. Directories a scan resumed from a checkpoint are walked but not
+ * tracked, their statistics are kept until a scan walks them from their watched directory.
+ *
+ * This class is only accessed from the scanner thread.
+ * */
+class RescanScheduler {
+
+    /** Number of directory levels below a watched directory that are tracked as subtrees of their own */
+    static final int TRACKED_DEPTH = 2;
+
+    /** Shortest time in milliseconds between two visits of a subtree */
+    static final long MIN_INTERVAL = 15 * 60 * 1000;
+
+    /** Longest time in milliseconds between two visits of a subtree */
+    static final long MAX_INTERVAL = 24 * 60 * 60 * 1000;
+
+    /** Saved statistics of a subtree */
+    static final class DirStats {
+
+        final String path;
+        final long signature;
+
+        /** Time in milliseconds between two visits of the subtree */
+        final long interval;
+
+        /** Time in milliseconds the subtree was last visited */
+        final long visitedAt;
+
+        DirStats(String path, long signature, long interval, long visitedAt) {
+            this.path = path;
+            this.signature = signature;
+            this.interval = interval;
+            this.visitedAt = visitedAt;
+        }
+    }
+
+    /** Subtree visited by the running scan */
+    static final class Subtree {
+
+        final String path;
+        final Subtree parent;
+        long signature;
+
+        Subtree(String path, Subtree parent) {
+            this.path = path;
+            this.parent = parent;
+        }
+    }
+
+    private final FileExtSearchDatabase database;
+    private final String query;
+
+    /** Indicates if subtrees that are not due are skipped */
+    private final boolean skipNotDue;
+
+    private final long now;
+
+    /** Statistics saved by previous scans by path */
+    private final Map<String,DirStats> previous;
+
+    /** Earliest time in milliseconds a subtree or one of the subtrees below it is due, by path */
+    private final Map<String,Long> dueAt;
+
+    private final List<Subtree> visited = new ArrayList<>();
+    private final Set<String> skipped = new HashSet<>();
+
+    private List<DirStats> updated;
+    private List<String> removed;
+
+    /**
+     * @param database database holding the statistics and saved results of the query
+     * @param query key of the query
+     * @param skipNotDue true if subtrees that are not due should be skipped, false to visit all of them
+     * */
+    RescanScheduler(@NonNull FileExtSearchDatabase database, @NonNull String query, boolean skipNotDue) {
+        this.database = database;
+        this.query = query;
+        this.skipNotDue = skipNotDue;
+        this.now = System.currentTimeMillis();
+        this.previous = database.getDirStats(query);
+        this.dueAt = dueTimes(previous);
+    }
+
+    /**
+     * Method used to find out if the subtree of a directory can be skipped by the running scan.
+     * @param path absolute path of a tracked directory
+     * @return true if neither the subtree nor any subtree below it is due
+     * */
+    boolean shouldSkip(@NonNull String path) {
+
+        if(!skipNotDue) {
+            return false;
+        }
+
+        Long due = dueAt.get(path);
+
+        return due != null && due > now;
+    }
+
+    /**
+     * Method used to skip the subtree of a directory. The files the last completed scan of the query found in the
+     * subtree are added to the collector and reported to the listener.
+     * @param parent subtree the directory is located in. Null for a watched directory
+     * @param path absolute path of the directory
+     * @param collector collector of the scan
+     * @param listener listener of the scan. May be null
+     * */
+    void skip(@Nullable Subtree parent, @NonNull String path, @NonNull ResultCollector collector, @Nullable ScanListener listener) {
+
+        skipped.add(path);
+        addSignature(parent,previous.get(path).signature);
+
+        ResultCursor files = database.queryResultEntriesBelow(query,path);
+
+        try {
+
+            while(files.moveToNext()) {
+
+                if(collector.add(files.getPath(),files.getSize(),files.getLastModified()) && listener != null) {
+                    listener.onFileMatched(files.getPath(),files.getSize(),files.getLastModified());
+                }
+            }
+        } finally {
+            files.close();
+        }
+    }
+
+    /**
+     * Method used to start the visit of a tracked directory.
+     * @param parent subtree the directory is located in. Null for a watched directory
+     * @param path absolute path of the directory
+     * @return the subtree of the directory
+     * */
+    @NonNull
+    Subtree enter(@Nullable Subtree parent, @NonNull String path) {
+
+        Subtree subtree = new Subtree(path,parent);
+        visited.add(subtree);
+
+        return subtree;
+    }
+
+    /**
+     * Method used to add an entry of a directory to the signature of the subtrees it is located in.
+     * @param subtree innermost subtree the entry is located in
+     * @param name name of the entry
+     * @param size size of the entry in bytes
+     * @param lastModified last modified time of the entry in milliseconds
+     * */
+    void record(@NonNull Subtree subtree, @NonNull String name, long size, long lastModified) {
+
+        long hash = name.hashCode() * 0x9E3779B97F4A7C15L + size * 0xC2B2AE3D27D4EB4FL + lastModified;
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+
+        addSignature(subtree,hash);
+    }
+
+    /**
+     * Method used to save the statistics of the subtrees visited by a completed scan. Statistics of
+     * subtrees that no longer exist below a visited subtree are removed.
+     * */
+    void save() {
+
+        updated = new ArrayList<>(visited.size());
+        Set<String> visitedPaths = new HashSet<>();
+
+        for (Subtree subtree : visited) {
+
+            long interval = nextInterval(previous.get(subtree.path),subtree.signature);
+
+            updated.add(new DirStats(subtree.path,subtree.signature,interval,now));
+            visitedPaths.add(subtree.path);
+        }
+
+        removed = new ArrayList<>();
+
+        for (String path : previous.keySet()) {
+
+            if(visitedPaths.contains(path) || skipped.contains(path)) {
+                continue;
+            }
+
+            // The innermost visited or skipped subtree decides. Subtrees outside of both were not part of the scan
+            for (String ancestor = parentPath(path); ancestor != null; ancestor = parentPath(ancestor)) {
+
+                if(skipped.contains(ancestor)) {
+                    break;
+                }
+
+                if(visitedPaths.contains(ancestor)) {
+                    removed.add(path);
+                    break;
+                }
+            }
+        }
+
+        database.saveDirStats(query,updated,removed);
+    }
+
+    /**
+     * Method used to get the time until the next rescan is due. Must be called after save.
+     * @return time in milliseconds until the earliest subtree is due, at least MIN_INTERVAL
+     * */
+    long getNextRescanDelay() {
+        return nextRescanDelay(now,updated,removed,previous.values());
+    }
+
+    /**
+     * Utility method used to compute the interval of a visited subtree.
+     * @param stats statistics saved by the previous visit of the subtree. Null if it was not visited before
+     * @param signature signature of the subtree computed by the running scan
+     * @return the interval halved if the subtree changed, grown by half if it did not, within MIN_INTERVAL and MAX_INTERVAL
+     * */
+    static long nextInterval(@Nullable DirStats stats, long signature) {
+
+        if(stats == null) {
+            return MIN_INTERVAL;
+        }
+
+        if(stats.signature != signature) {
+            return Math.max(MIN_INTERVAL,stats.interval / 2);
+        }
+
+        return Math.min(MAX_INTERVAL,stats.interval + stats.interval / 2);
+    }
+
+    /**
+     * Utility method used to compute when the subtrees are due.
+     * @param stats saved statistics of the subtrees by path
+     * @return the earliest time in milliseconds a subtree or one of the tracked subtrees below it is due, by path
+     * */
+    @NonNull
+    static Map<String,Long> dueTimes(@NonNull Map<String,DirStats> stats) {
+
+        Map<String,Long> dueAt = new HashMap<>();
+
+        for (DirStats subtree : stats.values()) {
+
+            long due = subtree.visitedAt + subtree.interval;
+
+            // The due time of a subtree is propagated to all tracked subtrees it is located in
+            for (String path = subtree.path; path != null; path = parentPath(path)) {
+
+                if(stats.containsKey(path)) {
+
+                    Long ancestorDue = dueAt.get(path);
+
+                    if(ancestorDue == null || due < ancestorDue) {
+                        dueAt.put(path,due);
+                    }
+                }
+            }
+        }
+
+        return dueAt;
+    }
+
+    /**
+     * Utility method used to compute the time until the next rescan is due.
+     * @param now time in milliseconds the scan started
+     * @param updated statistics saved by the scan
+     * @param removed paths of the subtrees whose statistics were removed by the scan
+     * @param previous statistics saved by previous scans. Those replaced or removed by the scan are ignored
+     * @return time in milliseconds until the earliest subtree is due, at least MIN_INTERVAL
+     * */
+    static long nextRescanDelay(long now, @NonNull List<DirStats> updated, @NonNull List<String> removed,
+                                @NonNull Collection<DirStats> previous) {
+
+        long next = now + MAX_INTERVAL;
+        Set<String> savedPaths = new HashSet<>();
+
+        for (DirStats stats : updated) {
+            next = Math.min(next,stats.visitedAt + stats.interval);
+            savedPaths.add(stats.path);
+        }
+
+        Set<String> removedPaths = new HashSet<>(removed);
+
+        for (DirStats stats : previous) {
+
+            if(!savedPaths.contains(stats.path) && !removedPaths.contains(stats.path)) {
+                next = Math.min(next,stats.visitedAt + stats.interval);
+            }
+        }
+
+        return Math.max(MIN_INTERVAL,next - now);
+    }
+
+    private static void addSignature(Subtree subtree, long value) {
+
+        for (Subtree s = subtree; s != null; s = s.parent) {
+            s.signature += value;
+        }
+    }
+
+    /** @return the path of the parent directory or null for the file system root */
+    private static String parentPath(String path) {
+
+        int separator = path.lastIndexOf('/');
+
+        return separator > 0 ? path.substring(0,separator) : null;
+    }
+}
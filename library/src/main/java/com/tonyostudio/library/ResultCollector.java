@@ -0,0 +1,579 @@
+package com.tonyostudio.library;
+
+import android.support.annotation.NonNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Collects the files matched by a scan while keeping the memory used by them under a budget.
+ * Files are held in a ScanResults container. Once the container grows over the budget, its
+ * files are sorted and written to a temporary run file and the container is cleared. On delivery
+ * the in memory files and all runs are merged into a single sorted cursor, so a scan completes
+ * no matter how many files it matches. This class is not thread safe.
+ * */
+class ResultCollector {
+
+    /** Comparator used to sort paths. Paths are compared by code point, which matches
+     *  the byte order of their UTF-8 encoding and therefore the order SQLite sorts TEXT columns in */
+    static final Comparator<String> PATH_ORDER = new Comparator<String>() {
+        @Override
+        public int compare(String first, String second) {
+            return comparePaths(first,second);
+        }
+    };
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final String RUN_SUFFIX = ".run";
+
+    /** Container holding the files that were not spilled yet */
+    private final ScanResults results = new ScanResults();
+
+    /** Maximum number of bytes the in memory files may use before they are spilled */
+    private final long memoryBudget;
+
+    /** Directory the run files are written to */
+    private final File spillDir;
+
+    /** Prefix of the names of the run files */
+    private final String runPrefix;
+
+    /** Run files written so far, each sorted by path */
+    private final List<File> runs = new ArrayList<>();
+
+    /** In memory files sorted by path. Only set once the collector was opened */
+    private int[] sortedPositions;
+
+    /** Total number of files added to the collector */
+    private int count;
+
+    /** Number of in memory files that were saved with the last checkpoint */
+    private int checkpointMark;
+
+    /**
+     * @param memoryBudget maximum number of bytes the in memory files may use
+     * @param spillDir directory the temporary run files are written to, usually the cache dir of the service
+     * @param runPrefix prefix of the names of the run files. Collectors of different services must use different prefixes
+     * */
+    ResultCollector(long memoryBudget, @NonNull File spillDir, @NonNull String runPrefix) {
+        this.memoryBudget = memoryBudget;
+        this.spillDir = spillDir;
+        this.runPrefix = runPrefix;
+    }
+
+    /**
+     * Method used to delete the run files left behind by a collector that was never closed,
+     * for example because the process was killed during a scan.
+     * @param spillDir directory the run files were written to
+     * @param runPrefix prefix of the names of the run files
+     * */
+    static void deleteStaleRuns(File spillDir, final String runPrefix) {
+
+        File[] staleRuns = spillDir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(runPrefix) && name.endsWith(RUN_SUFFIX);
+            }
+        });
+
+        if(staleRuns == null) {
+            return;
+        }
+
+        for (File staleRun : staleRuns) {
+            //noinspection ResultOfMethodCallIgnored
+            staleRun.delete();
+        }
+    }
+
+    /** @see ScanResults#addDirectory(int, String) */
+    int addDirectory(int parent, String name) {
+        return results.addDirectory(parent,name);
+    }
+
+    /** @see ScanResults#add(int, String, long, long) */
+    boolean add(int directory, String name, long size, long modified) {
+
+        boolean added = results.add(directory,name,size,modified);
+
+        if(added) {
+            count++;
+        }
+
+        return added;
+    }
+
+    /** @see ScanResults#add(String, long, long) */
+    boolean add(String path, long size, long modified) {
+
+        boolean added = results.add(path,size,modified);
+
+        if(added) {
+            count++;
+        }
+
+        return added;
+    }
+
+    /**
+     * Method used to add all files of a cursor. The in memory files are spilled whenever they use more memory than the budget.
+     * @param cursor cursor over the files to add. The cursor is not closed
+     * @throws IOException if a run file could not be written
+     * */
+    void addAll(ResultCursor cursor) throws IOException {
+
+        while(cursor.moveToNext()) {
+            add(cursor.getPath(),cursor.getSize(),cursor.getLastModified());
+            spillIfNeeded();
+        }
+    }
+
+    /** @return true if the in memory files use more memory than the budget and will be spilled by spillIfNeeded.
+     *  Directories are kept in memory for the whole scan and are not part of the budget */
+    boolean needsSpill() {
+        return results.size() > 0 && results.estimateFileMemoryUsage() > memoryBudget;
+    }
+
+    /**
+     * Method used to open a cursor over the in memory files that were added since the last call to markCheckpoint,
+     * in the order they were added. Files are always checkpointed before they are spilled.
+     * @return a cursor over the files added since the last checkpoint
+     * */
+    ResultCursor openSinceCheckpoint() {
+
+        int[] positions = new int[results.size() - checkpointMark];
+
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = checkpointMark + i;
+        }
+
+        return new MemoryCursor(results,positions);
+    }
+
+    /** Method used to mark all files added so far as saved with a checkpoint */
+    void markCheckpoint() {
+        checkpointMark = results.size();
+    }
+
+    /**
+     * Method used to spill the in memory files to a run file if they use more memory than the budget.
+     * Call this method between directories so each run holds whole directories.
+     * @throws IOException if the run file could not be written
+     * */
+    void spillIfNeeded() throws IOException {
+
+        if(needsSpill()) {
+            spill();
+        }
+    }
+
+    /** @return true if at least one run was written to disk */
+    boolean hasSpilled() {
+        return !runs.isEmpty();
+    }
+
+    /** @return number of files added to the collector. Files found in more than one run are counted once per run */
+    int getCount() {
+        return count;
+    }
+
+    /**
+     * Method used to open a cursor over all collected files sorted by path. Duplicate paths are
+     * returned once. The collector can be opened more than once, but no files may be added after it
+     * was opened the first time.
+     * @return a sorted cursor over all the files
+     * @throws IOException if a run file could not be read
+     * */
+    ResultCursor open() throws IOException {
+
+        if(sortedPositions == null) {
+            sortedPositions = sort(results);
+        }
+
+        List<ResultCursor> cursors = new ArrayList<>();
+        cursors.add(new MemoryCursor(results,sortedPositions));
+
+        try {
+
+            for (File run : runs) {
+                cursors.add(new RunCursor(run));
+            }
+        } catch (IOException e) {
+
+            for (ResultCursor cursor : cursors) {
+                cursor.close();
+            }
+
+            throw e;
+        }
+
+        if(cursors.size() == 1) {
+            return cursors.get(0);
+        }
+
+        return new MergeCursor(cursors);
+    }
+
+    /**
+     * Method used to write the paths of all collected files, one per line, to a text file.
+     * @param file file that will hold the paths. The file is overwritten
+     * @return number of paths written
+     * @throws IOException if the file could not be written
+     * */
+    int writePaths(File file) throws IOException {
+
+        ResultCursor cursor = open();
+        BufferedWriter writer = null;
+        int written = 0;
+
+        try {
+
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file),UTF_8),BUFFER_SIZE);
+
+            while(cursor.moveToNext()) {
+                writer.write(cursor.getPath());
+                writer.write('\n');
+                written++;
+            }
+        } finally {
+
+            cursor.close();
+
+            if(writer != null) {
+                writer.close();
+            }
+        }
+
+        return written;
+    }
+
+    /** @return an array of the paths of all collected files sorted by path
+     *  @throws IOException if a run file could not be read */
+    String[] toPathArray() throws IOException {
+
+        ResultCursor cursor = open();
+        List<String> paths = new ArrayList<>(count);
+
+        try {
+
+            while(cursor.moveToNext()) {
+                paths.add(cursor.getPath());
+            }
+        } finally {
+            cursor.close();
+        }
+
+        return paths.toArray(new String[paths.size()]);
+    }
+
+    /** Method used to delete all run files. The collector can not be used afterwards */
+    void close() {
+
+        for (File run : runs) {
+            //noinspection ResultOfMethodCallIgnored
+            run.delete();
+        }
+
+        runs.clear();
+    }
+
+    /** Compares two paths by code point
+     *  @see #PATH_ORDER */
+    static int comparePaths(String first, String second) {
+
+        int length = Math.min(first.length(),second.length());
+
+        for (int i = 0; i < length; i++) {
+
+            char a = first.charAt(i);
+            char b = second.charAt(i);
+
+            if(a != b) {
+
+                // Surrogates encode code points above every other char, unlike their UTF-16 value suggests
+                boolean aSurrogate = (a & 0xF800) == 0xD800;
+                boolean bSurrogate = (b & 0xF800) == 0xD800;
+
+                if(aSurrogate != bSurrogate) {
+                    return aSurrogate ? 1 : -1;
+                }
+
+                return a - b;
+            }
+        }
+
+        return first.length() - second.length();
+    }
+
+    /** Utility method used to write the in memory files to a new sorted run file and clear them */
+    private void spill() throws IOException {
+
+        int[] positions = sort(results);
+        File run = File.createTempFile(runPrefix,RUN_SUFFIX,spillDir);
+        DataOutputStream output = null;
+
+        try {
+
+            output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run),BUFFER_SIZE));
+
+            for (int position : positions) {
+                output.writeUTF(results.getPath(position));
+                output.writeLong(results.getSize(position));
+                output.writeLong(results.getLastModified(position));
+            }
+        } catch (IOException e) {
+
+            //noinspection ResultOfMethodCallIgnored
+            run.delete();
+            throw e;
+        } finally {
+
+            if(output != null) {
+                output.close();
+            }
+        }
+
+        runs.add(run);
+        results.clearFiles();
+        checkpointMark = 0;
+    }
+
+    /** Utility method used to sort the files of a container by path. The paths are compared without
+     *  materializing them, so the sort only allocates the positions and a scratch array of the same size.
+     *  @return the positions of the files in sorted order */
+    static int[] sort(ScanResults results) {
+
+        int size = results.size();
+        int[] positions = new int[size];
+
+        for (int i = 0; i < size; i++) {
+            positions[i] = i;
+        }
+
+        mergeSort(positions,new int[size],results.pathOrder(),0,size);
+
+        return positions;
+    }
+
+    /** Stable merge sort of positions by the paths they point to, without boxing the positions */
+    private static void mergeSort(int[] positions, int[] scratch, ScanResults.PathOrder order, int from, int to) {
+
+        if(to - from < 2) {
+            return;
+        }
+
+        int middle = (from + to) >>> 1;
+        mergeSort(positions,scratch,order,from,middle);
+        mergeSort(positions,scratch,order,middle,to);
+
+        if(order.compare(positions[middle - 1],positions[middle]) <= 0) {
+            return;
+        }
+
+        System.arraycopy(positions,from,scratch,from,to - from);
+
+        int left = from;
+        int right = middle;
+
+        for (int i = from; i < to; i++) {
+
+            if(right >= to || (left < middle && order.compare(scratch[left],scratch[right]) <= 0)) {
+                positions[i] = scratch[left++];
+            } else {
+                positions[i] = scratch[right++];
+            }
+        }
+    }
+
+    /** Cursor over the in memory files in sorted order */
+    private static final class MemoryCursor implements ResultCursor {
+
+        private final ScanResults results;
+        private final int[] positions;
+        private int index = -1;
+        private String path;
+
+        MemoryCursor(ScanResults results, int[] positions) {
+            this.results = results;
+            this.positions = positions;
+        }
+
+        @Override
+        public boolean moveToNext() {
+
+            if(index + 1 >= positions.length) {
+                index = positions.length;
+                path = null;
+                return false;
+            }
+
+            index++;
+            path = results.getPath(positions[index]);
+            return true;
+        }
+
+        @Override
+        public String getPath() {
+            return path;
+        }
+
+        @Override
+        public long getSize() {
+            return results.getSize(positions[index]);
+        }
+
+        @Override
+        public long getLastModified() {
+            return results.getLastModified(positions[index]);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /** Cursor over a run file */
+    private static final class RunCursor implements ResultCursor {
+
+        private final DataInputStream input;
+        private String path;
+        private long size;
+        private long lastModified;
+
+        RunCursor(File run) throws IOException {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(run),BUFFER_SIZE));
+        }
+
+        @Override
+        public boolean moveToNext() {
+
+            try {
+                path = input.readUTF();
+                size = input.readLong();
+                lastModified = input.readLong();
+                return true;
+            } catch (EOFException e) {
+                path = null;
+                return false;
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not read scan results run",e);
+            }
+        }
+
+        @Override
+        public String getPath() {
+            return path;
+        }
+
+        @Override
+        public long getSize() {
+            return size;
+        }
+
+        @Override
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        @Override
+        public void close() {
+
+            try {
+                input.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /** Cursor merging several sorted cursors into one. Paths found in more than one cursor are returned once */
+    private static final class MergeCursor implements ResultCursor {
+
+        private final List<ResultCursor> cursors;
+        private final PriorityQueue<ResultCursor> queue;
+        private ResultCursor current;
+        private String path;
+
+        MergeCursor(List<ResultCursor> cursors) {
+
+            this.cursors = cursors;
+            this.queue = new PriorityQueue<>(cursors.size(), new Comparator<ResultCursor>() {
+                @Override
+                public int compare(ResultCursor first, ResultCursor second) {
+                    return comparePaths(first.getPath(),second.getPath());
+                }
+            });
+
+            for (ResultCursor cursor : cursors) {
+
+                if(cursor.moveToNext()) {
+                    queue.add(cursor);
+                }
+            }
+        }
+
+        @Override
+        public boolean moveToNext() {
+
+            String previous = path;
+
+            do {
+
+                if(current != null && current.moveToNext()) {
+                    queue.add(current);
+                }
+
+                current = queue.poll();
+
+                if(current == null) {
+                    path = null;
+                    return false;
+                }
+
+            } while(previous != null && previous.equals(current.getPath()));
+
+            path = current.getPath();
+            return true;
+        }
+
+        @Override
+        public String getPath() {
+            return path;
+        }
+
+        @Override
+        public long getSize() {
+            return current.getSize();
+        }
+
+        @Override
+        public long getLastModified() {
+            return current.getLastModified();
+        }
+
+        @Override
+        public void close() {
+
+            for (ResultCursor cursor : cursors) {
+                cursor.close();
+            }
+        }
+    }
+}
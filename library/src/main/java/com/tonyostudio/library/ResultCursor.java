@@ -0,0 +1,26 @@
+package com.tonyostudio.library;
+
+/**
+ * Forward only cursor over matched files. Cursors handed out by a ResultCollector
+ * and by the FileExtSearchDatabase return files sorted by path in the order
+ * defined by ResultCollector.comparePaths, so two cursors can be compared with a
+ * single pass over both.
+ * */
+interface ResultCursor {
+
+    /** Moves the cursor to the next file.
+     *  @return false if the cursor is past the last file */
+    boolean moveToNext();
+
+    /** @return absolute path of the current file */
+    String getPath();
+
+    /** @return size in bytes of the current file */
+    long getSize();
+
+    /** @return last modified time in milliseconds of the current file */
+    long getLastModified();
+
+    /** Releases the resources held by the cursor */
+    void close();
+}
@@ -0,0 +1,165 @@
+package com.tonyostudio.library;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Describes how the results of a query changed between two completed scans.
+ * Every time the results of a query change, the FileExtSearchService increases the
+ * generation of the query. A client that applied the change set of generation N - 1
+ * can apply the change set of generation N to stay in sync without processing the
+ * full results again. If previousGeneration does not match the generation the client
+ * holds, the client missed a change set and should use the full results instead.
+ * The paths of a change set are held in memory and broadcast, so compute only keeps them up to
+ * a maximum number of changes. A change set with more changes is truncated: it carries no paths
+ * and the client should use the full results as well.
+ * */
+public class ScanChangeSet {
+
+    /** Generation of the results after the changes were applied */
+    private final long generation;
+
+    /** Generation of the results the changes are relative to. 0 if the query was never scanned */
+    private final long previousGeneration;
+
+    /** Paths of the files that were found but not part of the previous results */
+    private final String[] added;
+
+    /** Paths of the files that were part of the previous results but no longer found */
+    private final String[] removed;
+
+    /** Paths of the files found in both results whose size or last modified time changed */
+    private final String[] modified;
+
+    /** Indicates if there were more changes than could be kept, in which case no paths are kept */
+    private final boolean truncated;
+
+    public ScanChangeSet(long generation, long previousGeneration, @NonNull String[] added,
+                         @NonNull String[] removed, @NonNull String[] modified) {
+        this(generation,previousGeneration,added,removed,modified,false);
+    }
+
+    public ScanChangeSet(long generation, long previousGeneration, @NonNull String[] added,
+                         @NonNull String[] removed, @NonNull String[] modified, boolean truncated) {
+        this.generation = generation;
+        this.previousGeneration = previousGeneration;
+        this.added = added;
+        this.removed = removed;
+        this.modified = modified;
+        this.truncated = truncated;
+    }
+
+    /** Method used to compare the results of two scans of the same query.
+     * Both cursors must return files sorted by path, so the comparison is a single pass over both
+     * and does not need to hold either result in memory. Neither cursor is closed.
+     *
+     * @param previous results of the previous scan, sorted by path
+     * @param current results of the current scan, sorted by path
+     * @param previousGeneration generation of the previous results
+     * @param maxChanges maximum number of changed paths that are kept. With more changes the change set is truncated
+     *
+     * @return the changes between the two results. The generation is only increased if something changed
+     * */
+    static ScanChangeSet compute(@NonNull ResultCursor previous, @NonNull ResultCursor current, long previousGeneration, int maxChanges) {
+
+        List<String> added = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        List<String> modified = new ArrayList<>();
+        int changes = 0;
+
+        boolean hasPrevious = previous.moveToNext();
+        boolean hasCurrent = current.moveToNext();
+
+        while(hasPrevious || hasCurrent) {
+
+            int order;
+
+            if(!hasPrevious) {
+                order = 1;
+            } else if(!hasCurrent) {
+                order = -1;
+            } else {
+                order = ResultCollector.comparePaths(previous.getPath(),current.getPath());
+            }
+
+            if(order < 0) {
+
+                if(++changes <= maxChanges) {
+                    removed.add(previous.getPath());
+                }
+
+                hasPrevious = previous.moveToNext();
+            } else if(order > 0) {
+
+                if(++changes <= maxChanges) {
+                    added.add(current.getPath());
+                }
+
+                hasCurrent = current.moveToNext();
+            } else {
+
+                if(previous.getSize() != current.getSize() || previous.getLastModified() != current.getLastModified()) {
+
+                    if(++changes <= maxChanges) {
+                        modified.add(current.getPath());
+                    }
+                }
+
+                hasPrevious = previous.moveToNext();
+                hasCurrent = current.moveToNext();
+            }
+        }
+
+        long generation = changes > 0 ? previousGeneration + 1 : previousGeneration;
+
+        if(changes > maxChanges) {
+            return new ScanChangeSet(generation,previousGeneration,new String[0],new String[0],new String[0],true);
+        }
+
+        return new ScanChangeSet(generation,previousGeneration,
+                added.toArray(new String[added.size()]),
+                removed.toArray(new String[removed.size()]),
+                modified.toArray(new String[modified.size()]));
+    }
+
+    /** @return generation of the results after the changes were applied */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /** @return generation of the results the changes are relative to. 0 if the query was never scanned before */
+    public long getPreviousGeneration() {
+        return previousGeneration;
+    }
+
+    /** @return paths of the files that were found but not part of the previous results */
+    @NonNull
+    public String[] getAdded() {
+        return added;
+    }
+
+    /** @return paths of the files that were part of the previous results but no longer found */
+    @NonNull
+    public String[] getRemoved() {
+        return removed;
+    }
+
+    /** @return paths of the files whose size or last modified time changed */
+    @NonNull
+    public String[] getModified() {
+        return modified;
+    }
+
+    /** @return true if there were more changes than could be kept. The added, removed and modified paths are
+     *  empty in that case and the full results should be used instead */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /** @return true if the results did not change */
+    public boolean isEmpty() {
+        return !truncated && added.length == 0 && removed.length == 0 && modified.length == 0;
+    }
+}
@@ -0,0 +1,65 @@
+package com.tonyostudio.library;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Traversal frontier of a scan that was saved to the FileExtSearchDatabase while the scan was
+ * running. The matched files found up to the checkpoint are saved next to it. A service that was
+ * killed during a scan resumes from the frontier instead of walking the watched directories again.
+ * */
+class ScanCheckpoint {
+
+    /** Checkpoints older than this many milliseconds are not resumed, their partial results would be too stale */
+    static final long MAX_AGE = 60 * 60 * 1000;
+
+    /** Watched directories the scan was started with, joined by new lines. A checkpoint is only
+     *  resumed if the watched directories did not change */
+    final String roots;
+
+    /** Time in milliseconds the checkpoint was saved */
+    final long savedAt;
+
+    /** Watched directories that were completely scanned */
+    final List<String> completedRoots = new ArrayList<>();
+
+    /** Watched directories that were being scanned, at most one per volume */
+    final List<String> currentRoots = new ArrayList<>();
+
+    /** Directories of the current roots that still need to be scanned */
+    final List<String> pendingDirs = new ArrayList<>();
+
+    ScanCheckpoint(String roots, long savedAt) {
+        this.roots = roots;
+        this.savedAt = savedAt;
+    }
+
+    /**
+     * Method used to check if a new scan can resume from this checkpoint.
+     * @param watchedDirectories watched directories of the new scan
+     * @param now current time in milliseconds
+     * @return true if the scan has the same watched directories and the checkpoint is not older than MAX_AGE
+     * or saved in the future
+     * */
+    boolean canResume(String[] watchedDirectories, long now) {
+
+        long age = now - savedAt;
+
+        return age >= 0 && age <= MAX_AGE && roots.equals(joinRoots(watchedDirectories));
+    }
+
+    /** Utility method used to create the roots key of a checkpoint from the watched directories */
+    static String joinRoots(String[] watchedDirectories) {
+
+        StringBuilder roots = new StringBuilder();
+
+        for (String watchedDirectory : watchedDirectories) {
+
+            if(watchedDirectory != null) {
+                roots.append(watchedDirectory).append('\n');
+            }
+        }
+
+        return roots.toString();
+    }
+}
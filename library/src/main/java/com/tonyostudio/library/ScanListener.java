@@ -0,0 +1,30 @@
+package com.tonyostudio.library;
+
+/**
+ * Listener that receives the matched files of a running scan of a FileExtSearchService as the
+ * watched directories are walked, instead of waiting for the results of the completed scan.
+ * Return it from FileExtSearchService.getScanListener when extending the service.
+ *
+ * The methods are called on the background thread of the service, the same thread that walks the
+ * watched directories. While a method runs, no further directories are handed to the worker threads,
+ * so a slow listener throttles the scan to its own pace instead of the matched files piling up in memory.
+ * */
+public interface ScanListener {
+
+    /**
+     * Method called for every matched file. Files matched before the checkpoint a scan was resumed
+     * from are reported again when the scan resumes. A file is reported once per scan.
+     * @param filePath absolute path of the file
+     * @param size size of the file in bytes
+     * @param lastModified last modified time of the file in milliseconds
+     * */
+    void onFileMatched(String filePath, long size, long lastModified);
+
+    /**
+     * Method called after the files of a directory were processed.
+     * @param dirPath absolute path of the directory
+     * @param matchedFiles number of files of the directory that matched by extension. Files that
+     *                     match by content type are reported through onFileMatched once their type was detected
+     * */
+    void onDirectoryScanned(String dirPath, int matchedFiles);
+}
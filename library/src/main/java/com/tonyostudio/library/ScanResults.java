@@ -0,0 +1,549 @@
+package com.tonyostudio.library;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Container used by the FileExtSearchService to hold the files matched by a scan.
+ * Each file is stored once, in the order it was added, together with its size and
+ * last modified time so that two scans can be compared with each other.
+ *
+ * Paths are not stored as Strings. Every directory is stored once as the id of its parent
+ * directory plus its name, and every file as the id of its directory plus its name. Names
+ * are kept as UTF-8 bytes in a single shared pool, so long prefixes like /storage/emulated/0
+ * are only held once no matter how many files are found below them. Paths are only
+ * materialized when they are requested. The files can be cleared without losing the
+ * directories, which lets a ResultCollector spill files to disk while a scan is still
+ * handing out directory ids. This class is not thread safe.
+ * */
+class ScanResults {
+
+    /** Value returned by addDirectory when the directory is already part of the container */
+    static final int NO_DIRECTORY = -1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    /** Pool holding the names of all directories */
+    private final NamePool directoryNamePool = new NamePool();
+
+    /** Pool holding the names of all files */
+    private final NamePool fileNamePool = new NamePool();
+
+    /** Id of the parent directory of each directory. Root directories have NO_DIRECTORY as parent */
+    private int[] directoryParents = new int[INITIAL_CAPACITY];
+
+    /** Offset of the name of each directory in the name pool. Root directories are named after their absolute path */
+    private int[] directoryNames = new int[INITIAL_CAPACITY];
+    private int directoryCount;
+
+    /** Maps the absolute path of each directory to its id. Directories are far less frequent than files */
+    private final Map<String,Integer> directoryIds = new HashMap<>();
+
+    /** Id of the directory of each file */
+    private int[] fileDirectories = new int[INITIAL_CAPACITY];
+
+    /** Offset of the name of each file in the name pool */
+    private int[] fileNames = new int[INITIAL_CAPACITY];
+
+    /** Size in bytes of each file */
+    private long[] sizes = new long[INITIAL_CAPACITY];
+
+    /** Last modified time in milliseconds of each file */
+    private long[] lastModified = new long[INITIAL_CAPACITY];
+    private int fileCount;
+
+    /** Open addressing hash table of file positions + 1, used to ignore duplicates and to look files up by path */
+    private int[] fileTable = new int[INITIAL_CAPACITY * 2];
+
+    /** Scratch buffer used to materialize paths */
+    private byte[] pathBuffer = new byte[256];
+
+    /**
+     * Method used to add a directory to the container. Files can only be added to a directory
+     * that is part of the container.
+     * @param parent id of the parent directory or NO_DIRECTORY for a root directory
+     * @param name name of the directory or the absolute path of a root directory
+     * @return the id of the new directory or NO_DIRECTORY if the directory was already added
+     * */
+    int addDirectory(int parent, String name) {
+
+        String path = parent == NO_DIRECTORY ? name : join(getDirectoryPath(parent),name);
+
+        if(directoryIds.containsKey(path)) {
+            return NO_DIRECTORY;
+        }
+
+        return createDirectory(parent,name,path);
+    }
+
+    /**
+     * Method used to add a matched file to a directory of the container. Files that were already added are ignored.
+     * @param directory id of the directory the file is located in
+     * @param name name of the file
+     * @param size file size in bytes
+     * @param modified last modified time in milliseconds
+     * @return true if the file was added, false if it was already part of the container
+     * */
+    boolean add(int directory, String name, long size, long modified) {
+
+        if(name == null || directory < 0 || directory >= directoryCount) {
+            return false;
+        }
+
+        int nameOffset = fileNamePool.append(name);
+        int slot = findSlot(directory,nameOffset);
+
+        if(fileTable[slot] != 0) {
+            // Already part of the container, drop the name that was just appended
+            fileNamePool.truncate(nameOffset);
+            return false;
+        }
+
+        if(fileCount == sizes.length) {
+            int capacity = fileCount * 2;
+            fileDirectories = grow(fileDirectories,capacity);
+            fileNames = grow(fileNames,capacity);
+            sizes = grow(sizes,capacity);
+            lastModified = grow(lastModified,capacity);
+        }
+
+        fileDirectories[fileCount] = directory;
+        fileNames[fileCount] = nameOffset;
+        sizes[fileCount] = size;
+        lastModified[fileCount] = modified;
+        fileTable[slot] = ++fileCount;
+
+        if(fileCount * 2 > fileTable.length) {
+            rehash();
+        }
+
+        return true;
+    }
+
+    /**
+     * Method used to add a matched file by its absolute path. The directory of the file is added
+     * as a root directory if needed. Prefer add(int, String, long, long) when the directory id is known.
+     * @param path absolute file path
+     * @param size file size in bytes
+     * @param modified last modified time in milliseconds
+     * @return true if the file was added, false if it was already part of the container
+     * */
+    boolean add(String path, long size, long modified) {
+
+        if(path == null) {
+            return false;
+        }
+
+        int separator = path.lastIndexOf('/');
+
+        if(separator < 0) {
+            return false;
+        }
+
+        String directoryPath = separator == 0 ? "/" : path.substring(0,separator);
+        Integer directory = directoryIds.get(directoryPath);
+
+        if(directory == null) {
+            directory = createDirectory(NO_DIRECTORY,directoryPath,directoryPath);
+        }
+
+        return add(directory,path.substring(separator + 1),size,modified);
+    }
+
+    /** @return number of files held in the container */
+    int size() {
+        return fileCount;
+    }
+
+    /** @param position position of the file
+     *  @return absolute path of the file at the position. The path is materialized on every call */
+    String getPath(int position) {
+
+        int length = writePath(fileDirectories[position],0);
+        length = writeName(fileNamePool,fileNames[position],length,true);
+
+        return new String(pathBuffer,0,length,UTF_8);
+    }
+
+    /** @param position position of the file
+     *  @return size in bytes of the file at the position */
+    long getSize(int position) {
+        return sizes[position];
+    }
+
+    /** @param position position of the file
+     *  @return last modified time in milliseconds of the file at the position */
+    long getLastModified(int position) {
+        return lastModified[position];
+    }
+
+    /** Method used to remove all files from the container. Directories and their ids are kept */
+    void clearFiles() {
+
+        fileCount = 0;
+        fileNamePool.truncate(0);
+        Arrays.fill(fileTable,0);
+    }
+
+    /** @return an estimate of the number of bytes used by the files currently held in the container. Unused
+     *  capacity kept by clearFiles and the directories, which are never cleared, are not counted */
+    long estimateFileMemoryUsage() {
+
+        // Entries of the parallel file arrays and the two table slots each file takes at the highest load
+        return (long) fileCount * (4 + 4 + 8 + 8 + 2 * 4) + fileNamePool.size();
+    }
+
+    /** @return an array of all the paths held by the container in the order they were added */
+    String[] toPathArray() {
+
+        String[] array = new String[fileCount];
+
+        for (int i = 0; i < fileCount; i++) {
+            array[i] = getPath(i);
+        }
+
+        return array;
+    }
+
+    /** @return a new comparison of the paths of the files held by the container. It must not be used after files were cleared */
+    PathOrder pathOrder() {
+        return new PathOrder();
+    }
+
+    /** Utility method used to register a new directory without checking for duplicates */
+    private int createDirectory(int parent, String name, String path) {
+
+        if(directoryCount == directoryParents.length) {
+            int capacity = directoryCount * 2;
+            directoryParents = grow(directoryParents,capacity);
+            directoryNames = grow(directoryNames,capacity);
+        }
+
+        int id = directoryCount++;
+        directoryParents[id] = parent;
+        directoryNames[id] = directoryNamePool.append(name);
+        directoryIds.put(path,id);
+
+        return id;
+    }
+
+    /** Utility method used to join a directory path and a name the same way paths are materialized */
+    private static String join(String directoryPath, String name) {
+
+        if(directoryPath.endsWith("/")) {
+            return directoryPath.concat(name);
+        }
+
+        return directoryPath + '/' + name;
+    }
+
+    /** Utility method used to materialize the absolute path of a directory */
+    private String getDirectoryPath(int directory) {
+        return new String(pathBuffer,0,writePath(directory,0),UTF_8);
+    }
+
+    /** Utility method used to write the absolute path of a directory into the path buffer.
+     *  @return the length of the path buffer content after the write */
+    private int writePath(int directory, int length) {
+
+        int parent = directoryParents[directory];
+
+        if(parent != NO_DIRECTORY) {
+            length = writePath(parent,length);
+        }
+
+        return writeName(directoryNamePool,directoryNames[directory],length,parent != NO_DIRECTORY);
+    }
+
+    /** Utility method used to write a name from a pool into the path buffer, optionally preceded by a separator.
+     *  @return the length of the path buffer content after the write */
+    private int writeName(NamePool pool, int offset, int length, boolean separate) {
+
+        int nameLength = pool.readLength(offset);
+
+        if(separate && (length == 0 || pathBuffer[length - 1] != '/')) {
+            ensurePathCapacity(length + 1);
+            pathBuffer[length++] = '/';
+        }
+
+        ensurePathCapacity(length + nameLength);
+        System.arraycopy(pool.bytes,pool.nameStart(offset),pathBuffer,length,nameLength);
+
+        return length + nameLength;
+    }
+
+    /** Utility method used to find the slot of a file in the file table. The slot is empty if the file is not part of the container */
+    private int findSlot(int directory, int nameOffset) {
+
+        int mask = fileTable.length - 1;
+        int slot = hash(directory,nameOffset) & mask;
+
+        while(fileTable[slot] != 0) {
+
+            int position = fileTable[slot] - 1;
+
+            if(fileDirectories[position] == directory && namesEqual(fileNames[position],nameOffset)) {
+                return slot;
+            }
+
+            slot = (slot + 1) & mask;
+        }
+
+        return slot;
+    }
+
+    /** Utility method used to double the size of the file table */
+    private void rehash() {
+
+        fileTable = new int[fileTable.length * 2];
+        int mask = fileTable.length - 1;
+
+        for (int position = 0; position < fileCount; position++) {
+
+            int slot = hash(fileDirectories[position],fileNames[position]) & mask;
+
+            while(fileTable[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+
+            fileTable[slot] = position + 1;
+        }
+    }
+
+    private int hash(int directory, int nameOffset) {
+
+        int start = fileNamePool.nameStart(nameOffset);
+        int end = start + fileNamePool.readLength(nameOffset);
+        byte[] bytes = fileNamePool.bytes;
+        int hash = directory;
+
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + bytes[i];
+        }
+
+        return hash ^ (hash >>> 16);
+    }
+
+    private boolean namesEqual(int first, int second) {
+
+        int length = fileNamePool.readLength(first);
+
+        if(length != fileNamePool.readLength(second)) {
+            return false;
+        }
+
+        int firstStart = fileNamePool.nameStart(first);
+        int secondStart = fileNamePool.nameStart(second);
+        byte[] bytes = fileNamePool.bytes;
+
+        for (int i = 0; i < length; i++) {
+
+            if(bytes[firstStart + i] != bytes[secondStart + i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /** Utility method used to encode a name to UTF-8 without going through the charset encoder for ASCII names */
+    private static byte[] encode(String name) {
+
+        int length = name.length();
+        byte[] bytes = new byte[length];
+
+        for (int i = 0; i < length; i++) {
+
+            char c = name.charAt(i);
+
+            if(c >= 0x80) {
+                return name.getBytes(UTF_8);
+            }
+
+            bytes[i] = (byte) c;
+        }
+
+        return bytes;
+    }
+
+    private void ensurePathCapacity(int capacity) {
+
+        if(capacity > pathBuffer.length) {
+
+            byte[] grown = new byte[Math.max(capacity,pathBuffer.length * 2)];
+            System.arraycopy(pathBuffer,0,grown,0,pathBuffer.length);
+            pathBuffer = grown;
+        }
+    }
+
+    /** Utility method used to grow the capacity of an array */
+    private static int[] grow(int[] array, int capacity) {
+
+        int[] grown = new int[capacity];
+        System.arraycopy(array,0,grown,0,array.length);
+        return grown;
+    }
+
+    /** Utility method used to grow the capacity of an array */
+    private static long[] grow(long[] array, int capacity) {
+
+        long[] grown = new long[capacity];
+        System.arraycopy(array,0,grown,0,array.length);
+        return grown;
+    }
+
+    /**
+     * Comparison of the paths of two files by code point, which is the byte order of their UTF-8 encoding.
+     * Files of the same directory are compared by their pooled name bytes. Files of different directories are
+     * compared byte by byte through the UTF-8 path of each directory, which is built once per directory the
+     * first time it is compared, so no path of a file is ever materialized.
+     * */
+    final class PathOrder {
+
+        /** UTF-8 path of each directory followed by a separator, null until the directory was compared */
+        private final byte[][] directoryPrefixes = new byte[directoryCount][];
+
+        private PathOrder() {
+        }
+
+        /** @param first position of the first file
+         *  @param second position of the second file
+         *  @return a negative number, zero or a positive number if the path of the first file sorts before,
+         *  equal to or after the path of the second file */
+        int compare(int first, int second) {
+
+            byte[] names = fileNamePool.bytes;
+            int firstStart = fileNamePool.nameStart(fileNames[first]);
+            int firstLength = fileNamePool.readLength(fileNames[first]);
+            int secondStart = fileNamePool.nameStart(fileNames[second]);
+            int secondLength = fileNamePool.readLength(fileNames[second]);
+
+            if(fileDirectories[first] == fileDirectories[second]) {
+                return compareBytes(names,firstStart,names,secondStart,Math.min(firstLength,secondLength),firstLength - secondLength);
+            }
+
+            byte[] firstPrefix = getPrefix(fileDirectories[first]);
+            byte[] secondPrefix = getPrefix(fileDirectories[second]);
+            int length = Math.min(firstPrefix.length + firstLength,secondPrefix.length + secondLength);
+
+            for (int i = 0; i < length; i++) {
+
+                int a = i < firstPrefix.length ? firstPrefix[i] : names[firstStart + i - firstPrefix.length];
+                int b = i < secondPrefix.length ? secondPrefix[i] : names[secondStart + i - secondPrefix.length];
+
+                if(a != b) {
+                    return (a & 0xFF) - (b & 0xFF);
+                }
+            }
+
+            return (firstPrefix.length + firstLength) - (secondPrefix.length + secondLength);
+        }
+
+        private byte[] getPrefix(int directory) {
+
+            byte[] prefix = directoryPrefixes[directory];
+
+            if(prefix == null) {
+
+                int length = writePath(directory,0);
+
+                if(length == 0 || pathBuffer[length - 1] != '/') {
+                    ensurePathCapacity(length + 1);
+                    pathBuffer[length++] = '/';
+                }
+
+                prefix = Arrays.copyOf(pathBuffer,length);
+                directoryPrefixes[directory] = prefix;
+            }
+
+            return prefix;
+        }
+    }
+
+    /** Utility method used to compare byte ranges as unsigned values.
+     *  @return the comparison of the first differing bytes or the tie if all compared bytes are equal */
+    private static int compareBytes(byte[] first, int firstStart, byte[] second, int secondStart, int length, int tie) {
+
+        for (int i = 0; i < length; i++) {
+
+            int a = first[firstStart + i] & 0xFF;
+            int b = second[secondStart + i] & 0xFF;
+
+            if(a != b) {
+                return a - b;
+            }
+        }
+
+        return tie;
+    }
+
+    /**
+     * Growable byte array holding UTF-8 encoded names. Each name is prefixed with its
+     * length, using one byte or two bytes for names longer than 127 bytes.
+     * */
+    private static final class NamePool {
+
+        private byte[] bytes = new byte[INITIAL_CAPACITY * 16];
+        private int size;
+
+        /** @return the offset of the appended name in the pool */
+        int append(String name) {
+
+            byte[] encoded = encode(name);
+            int offset = size;
+            int required = offset + lengthPrefixSize(encoded.length) + encoded.length;
+
+            if(required > bytes.length) {
+
+                byte[] grown = new byte[Math.max(required,bytes.length * 2)];
+                System.arraycopy(bytes,0,grown,0,size);
+                bytes = grown;
+            }
+
+            if(encoded.length < 0x80) {
+                bytes[offset] = (byte) encoded.length;
+            } else {
+                bytes[offset] = (byte) (0x80 | (encoded.length >>> 8));
+                bytes[offset + 1] = (byte) encoded.length;
+            }
+
+            System.arraycopy(encoded,0,bytes,offset + lengthPrefixSize(encoded.length),encoded.length);
+            size = required;
+
+            return offset;
+        }
+
+        /** Drops every name appended at or after the offset */
+        void truncate(int offset) {
+            size = offset;
+        }
+
+        int readLength(int offset) {
+
+            int first = bytes[offset] & 0xFF;
+
+            if(first < 0x80) {
+                return first;
+            }
+
+            return ((first & 0x7F) << 8) | (bytes[offset + 1] & 0xFF);
+        }
+
+        int nameStart(int offset) {
+            return offset + lengthPrefixSize(readLength(offset));
+        }
+
+        /** @return number of bytes used by the names */
+        int size() {
+            return size;
+        }
+
+        private static int lengthPrefixSize(int length) {
+            return length < 0x80 ? 1 : 2;
+        }
+    }
+}
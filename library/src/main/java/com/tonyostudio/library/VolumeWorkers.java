@@ -0,0 +1,122 @@
+package com.tonyostudio.library;
+
+import android.os.Process;
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Worker threads that list the directories of a single volume together with the number of listings
+ * the volume may run at the same time. The limit is adjusted after every WINDOW listings from the
+ * measured listing latency per entry: it grows by one while the volume keeps up with the listings
+ * it is given, and is halved once the latency rises well above the lowest latency seen, which is
+ * where a slow SD card or USB drive starts queueing requests. Fast internal storage therefore ends
+ * up with more parallel listings than slow removable storage. Worker threads run at background priority.
+ * This class is only accessed from the scanner thread, except for the workers running submitted tasks.
+ * */
+class VolumeWorkers {
+
+    static final int MIN_LIMIT = 1;
+    static final int MAX_LIMIT = 4;
+    static final int INITIAL_LIMIT = 2;
+
+    /** Number of listings the latency is averaged over before the limit is adjusted */
+    static final int WINDOW = 16;
+
+    /** Factor of the baseline latency above which the volume is considered congested */
+    private static final double CONGESTED = 2.0;
+
+    /** Factor of the baseline latency below which the volume is considered to keep up */
+    private static final double HEALTHY = 1.25;
+
+    /** Weight of a new window when the baseline drifts up, so a changed workload gets a new baseline over time */
+    private static final double BASELINE_DRIFT = 0.05;
+
+    /** Id of the volume or -1 if it is unknown */
+    final long device;
+
+    private final ExecutorService executor;
+    private int limit = INITIAL_LIMIT;
+
+    /** Lowest average latency in nanoseconds per entry seen so far. Negative until the first window completed */
+    private double baseline = -1;
+
+    private long windowNanos;
+    private long windowEntries;
+    private int windowListings;
+
+    /** Indicates if directories were waiting for a free slot during the current window */
+    private boolean saturated;
+
+    VolumeWorkers(final long device) {
+        this.device = device;
+        this.executor = Executors.newFixedThreadPool(MAX_LIMIT,new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                },"FileExtSearch-volume-" + device);
+            }
+        });
+    }
+
+    /** @return number of listings the volume may currently run at the same time */
+    int getLimit() {
+        return limit;
+    }
+
+    /** Method used to run a listing on one of the worker threads */
+    void execute(Runnable listing) {
+        executor.execute(listing);
+    }
+
+    /** Method used to record that directories were waiting because the limit was reached */
+    void markSaturated() {
+        saturated = true;
+    }
+
+    /**
+     * Method used to record a completed listing and adjust the limit at the end of a window.
+     * @param nanos time the listing took in nanoseconds, without time spent throttled
+     * @param entries number of entries in the directory
+     * */
+    void recordListing(long nanos, int entries) {
+
+        windowNanos += nanos;
+        windowEntries += entries + 1;
+
+        if(++windowListings < WINDOW) {
+            return;
+        }
+
+        double latency = (double) windowNanos / windowEntries;
+
+        if(baseline < 0 || latency < baseline) {
+            baseline = latency;
+        } else {
+            baseline += (latency - baseline) * BASELINE_DRIFT;
+        }
+
+        if(latency > baseline * CONGESTED) {
+            limit = Math.max(MIN_LIMIT,limit / 2);
+        } else if(saturated && latency <= baseline * HEALTHY) {
+            limit = Math.min(MAX_LIMIT,limit + 1);
+        }
+
+        windowNanos = 0;
+        windowEntries = 0;
+        windowListings = 0;
+        saturated = false;
+    }
+
+    /** Method used to stop the worker threads */
+    void shutdown() {
+        executor.shutdownNow();
+    }
+}
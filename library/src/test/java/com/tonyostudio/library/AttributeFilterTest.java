@@ -0,0 +1,137 @@
+package com.tonyostudio.library;
+
+import android.content.Intent;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of the size, age, hidden and readable predicates evaluated during the scan.
+ */
+public class AttributeFilterTest {
+
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+
+    private File dir;
+
+    @Before
+    public void createDir() throws Exception {
+        dir = TestDirs.create("filter-test-");
+    }
+
+    @After
+    public void deleteDir() throws Exception {
+        TestDirs.delete(dir);
+    }
+
+    @Test
+    public void fromIntent_withoutExtrasHasNoPredicates() throws Exception {
+
+        AttributeFilter filter = AttributeFilter.fromIntent(new ExtrasIntent());
+        StringBuilder key = new StringBuilder();
+        filter.appendKey(key);
+
+        assertEquals("",key.toString());
+        assertTrue(filter.acceptsName(".hidden"));
+        assertTrue(filter.accepts(read(TestDirs.createFile(dir,"empty",0))));
+    }
+
+    @Test
+    public void fromIntent_readsExtras() throws Exception {
+
+        ExtrasIntent intent = new ExtrasIntent();
+        intent.longs.put(FileExtSearchService.EXTRA_MIN_SIZE,10L);
+        intent.longs.put(FileExtSearchService.EXTRA_MAX_SIZE,100L);
+        intent.longs.put(FileExtSearchService.EXTRA_MAX_AGE,DAY);
+        intent.booleans.put(FileExtSearchService.EXTRA_INCLUDE_HIDDEN,false);
+        intent.booleans.put(FileExtSearchService.EXTRA_READABLE_ONLY,true);
+
+        AttributeFilter filter = AttributeFilter.fromIntent(intent);
+        StringBuilder key = new StringBuilder();
+        filter.appendKey(key);
+
+        assertEquals("|10,100," + DAY + ",false,true",key.toString());
+        assertFalse(filter.acceptsName(".hidden"));
+    }
+
+    @Test
+    public void acceptsName_hiddenOnlyWhenIncluded() throws Exception {
+
+        AttributeFilter visibleOnly = new AttributeFilter(AttributeFilter.UNSET,AttributeFilter.UNSET,AttributeFilter.UNSET,false,false);
+
+        assertFalse(visibleOnly.acceptsName(".nomedia"));
+        assertTrue(visibleOnly.acceptsName("a.nomedia"));
+    }
+
+    @Test
+    public void accepts_sizeOnlyMatchesRegularFilesInRange() throws Exception {
+
+        AttributeFilter filter = new AttributeFilter(10,100,AttributeFilter.UNSET,true,false);
+
+        assertFalse(filter.accepts(read(TestDirs.createFile(dir,"small",9))));
+        assertTrue(filter.accepts(read(TestDirs.createFile(dir,"min",10))));
+        assertTrue(filter.accepts(read(TestDirs.createFile(dir,"max",100))));
+        assertFalse(filter.accepts(read(TestDirs.createFile(dir,"large",101))));
+        assertFalse(filter.accepts(read(dir)));
+
+        AttributeFilter minOnly = new AttributeFilter(10,AttributeFilter.UNSET,AttributeFilter.UNSET,true,false);
+
+        assertTrue(minOnly.accepts(read(TestDirs.createFile(dir,"huge",100000))));
+    }
+
+    @Test
+    public void accepts_maxAge() throws Exception {
+
+        AttributeFilter filter = new AttributeFilter(AttributeFilter.UNSET,AttributeFilter.UNSET,DAY,true,false);
+        File recent = TestDirs.createFile(dir,"recent",1);
+        File old = TestDirs.createFile(dir,"old",1);
+
+        assertTrue(old.setLastModified(System.currentTimeMillis() - 2 * DAY));
+        assertTrue(filter.accepts(read(recent)));
+        assertFalse(filter.accepts(read(old)));
+
+        // Directories match age predicates, unlike size predicates
+        assertTrue(filter.accepts(read(dir)));
+    }
+
+    @Test
+    public void accepts_readableOnly() throws Exception {
+
+        AttributeFilter filter = new AttributeFilter(AttributeFilter.UNSET,AttributeFilter.UNSET,AttributeFilter.UNSET,true,true);
+        FileAttributes attributes = read(TestDirs.createFile(dir,"readable",1));
+
+        assertTrue(attributes.isReadable());
+        assertTrue(filter.accepts(attributes));
+    }
+
+    private static FileAttributes read(File file) {
+
+        FileAttributes attributes = new FileAttributes();
+        assertTrue(attributes.read(file));
+        return attributes;
+    }
+
+    /** Intent holding its extras in maps, as the extras of the intents of android.jar are not available in local tests */
+    private static final class ExtrasIntent extends Intent {
+
+        final Map<String,Long> longs = new HashMap<>();
+        final Map<String,Boolean> booleans = new HashMap<>();
+
+        @Override
+        public long getLongExtra(String name, long defaultValue) {
+            return longs.containsKey(name) ? longs.get(name) : defaultValue;
+        }
+
+        @Override
+        public boolean getBooleanExtra(String name, boolean defaultValue) {
+            return booleans.containsKey(name) ? booleans.get(name) : defaultValue;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.tonyostudio.library;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of the detection of file types during the scan and the cache of detected types.
+ */
+public class ContentSnifferTest {
+
+    private File dir;
+    private CacheDatabase database;
+    private ContentSniffer sniffer;
+
+    @Before
+    public void createSniffer() throws Exception {
+
+        dir = TestDirs.create("sniffer-test-");
+        database = new CacheDatabase();
+        sniffer = new ContentSniffer(new TreeSet<>(Collections.singleton("pdf")),database);
+    }
+
+    @After
+    public void shutdownSniffer() throws Exception {
+
+        sniffer.shutdown();
+        database.close();
+        TestDirs.delete(dir);
+    }
+
+    @Test
+    public void submit_loadsTheCacheOncePerDirectory() throws Exception {
+
+        ResultCollector collector = new ResultCollector(Long.MAX_VALUE,dir,"run-");
+        int first = collector.addDirectory(ScanResults.NO_DIRECTORY,new File(dir,"first").getAbsolutePath());
+        int second = collector.addDirectory(ScanResults.NO_DIRECTORY,new File(dir,"second").getAbsolutePath());
+
+        for (int i = 0; i < 20; i++) {
+            submit(first,writePdf("first/" + i + ".bin"));
+        }
+
+        for (int i = 0; i < 5; i++) {
+            submit(second,writePdf("second/" + i + ".bin"));
+        }
+
+        sniffer.awaitIdle();
+        sniffer.drainTo(collector,null);
+
+        assertEquals(Arrays.asList(new File(dir,"first").getAbsolutePath(),new File(dir,"second").getAbsolutePath()),database.loadedDirs);
+        assertEquals(25,collector.getCount());
+    }
+
+    @Test
+    public void submit_usesCachedTypesOfUnchangedFiles() throws Exception {
+
+        ResultCollector collector = new ResultCollector(Long.MAX_VALUE,dir,"run-");
+        int directory = collector.addDirectory(ScanResults.NO_DIRECTORY,new File(dir,"docs").getAbsolutePath());
+
+        // A cached pdf whose bytes no longer look like one is matched from the cache without being read
+        File cached = TestDirs.createFile(dir,"docs/cached.bin",100);
+        database.cache(cached,100,cached.lastModified(),"pdf");
+
+        // A file that changed since its type was cached is read again
+        File changed = TestDirs.createFile(dir,"docs/changed.bin",100);
+        database.cache(changed,50,changed.lastModified(),"pdf");
+
+        File read = writePdf("docs/read.bin");
+
+        submit(directory,cached);
+        submit(directory,changed);
+        submit(directory,read);
+        sniffer.awaitIdle();
+        sniffer.drainTo(collector,null);
+        sniffer.saveCache();
+
+        assertArrayEquals(new String[]{cached.getPath(),read.getPath()},collector.toPathArray());
+
+        Map<String,String> saved = new HashMap<>();
+
+        for (ContentSniffer.SniffedFile sniffedFile : database.savedFiles) {
+            saved.put(sniffedFile.file.getName(),sniffedFile.type);
+        }
+
+        assertEquals(2,saved.size());
+        assertEquals(ContentSniffer.UNKNOWN_TYPE,saved.get("changed.bin"));
+        assertEquals("pdf",saved.get("read.bin"));
+    }
+
+    @Test
+    public void normalizeTypes_lowerCasesAndDropsDots() throws Exception {
+
+        Set<String> types = ContentSniffer.normalizeTypes(new String[]{".JPG","jpg",null,"","Pdf"});
+
+        assertEquals(new TreeSet<>(Arrays.asList("jpg","pdf")),types);
+        assertNull(ContentSniffer.normalizeTypes(new String[]{null,"."}));
+    }
+
+    private void submit(int directory, File file) {
+        sniffer.submit(directory,file,file.length(),file.lastModified());
+    }
+
+    private File writePdf(String relativePath) throws Exception {
+
+        File file = TestDirs.createFile(dir,relativePath,0);
+        FileOutputStream output = new FileOutputStream(file);
+
+        try {
+            output.write("%PDF-1.4\n".getBytes("US-ASCII"));
+        } finally {
+            output.close();
+        }
+
+        return file;
+    }
+
+    /** Database holding the cached types in memory and recording the directories they were loaded for */
+    private static final class CacheDatabase extends FileExtSearchDatabase {
+
+        private final Map<String,Map<String,ContentSniffer.CachedType>> types = new HashMap<>();
+        final List<String> loadedDirs = Collections.synchronizedList(new ArrayList<String>());
+        final List<ContentSniffer.SniffedFile> savedFiles = new ArrayList<>();
+
+        CacheDatabase() {
+            super(null,"test");
+        }
+
+        void cache(File file, long size, long lastModified, String type) {
+
+            Map<String,ContentSniffer.CachedType> dirTypes = types.get(file.getParent());
+
+            if(dirTypes == null) {
+                dirTypes = new HashMap<>();
+                types.put(file.getParent(),dirTypes);
+            }
+
+            dirTypes.put(file.getName(),new ContentSniffer.CachedType(size,lastModified,type));
+        }
+
+        @Override
+        Map<String,ContentSniffer.CachedType> getContentTypes(String dirPath) {
+
+            loadedDirs.add(dirPath);
+            Map<String,ContentSniffer.CachedType> dirTypes = types.get(dirPath);
+
+            return dirTypes != null ? new HashMap<>(dirTypes) : new HashMap<String,ContentSniffer.CachedType>();
+        }
+
+        @Override
+        void saveContentTypes(List<ContentSniffer.SniffedFile> sniffedFiles) {
+            savedFiles.addAll(sniffedFiles);
+        }
+    }
+}
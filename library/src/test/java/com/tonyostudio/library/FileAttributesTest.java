@@ -0,0 +1,64 @@
+package com.tonyostudio.library;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of the attributes read once per listed entry. Local tests run the java.io.File code path.
+ */
+public class FileAttributesTest {
+
+    private File dir;
+
+    @Before
+    public void createDir() throws Exception {
+        dir = TestDirs.create("attributes-test-");
+    }
+
+    @After
+    public void deleteDir() throws Exception {
+        TestDirs.delete(dir);
+    }
+
+    @Test
+    public void read_regularFile() throws Exception {
+
+        FileAttributes attributes = new FileAttributes();
+
+        assertTrue(attributes.read(TestDirs.createFile(dir,"a.txt",42)));
+        assertTrue(attributes.isRegularFile());
+        assertFalse(attributes.isDirectory());
+        assertEquals(42,attributes.getSize());
+    }
+
+    @Test
+    public void read_directory() throws Exception {
+
+        FileAttributes attributes = new FileAttributes();
+
+        assertTrue(attributes.read(dir));
+        assertTrue(attributes.isDirectory());
+        assertFalse(attributes.isRegularFile());
+    }
+
+    @Test
+    public void read_missingFile() throws Exception {
+        assertFalse(new FileAttributes().read(new File(dir,"missing")));
+    }
+
+    @Test
+    public void getLastModified_truncatedToWholeSeconds() throws Exception {
+
+        File file = TestDirs.createFile(dir,"a.txt",1);
+        FileAttributes attributes = new FileAttributes();
+
+        assertTrue(file.setLastModified(1500000000123L));
+        assertTrue(attributes.read(file));
+        assertEquals(1500000000000L,attributes.getLastModified());
+    }
+}
@@ -0,0 +1,353 @@
+package com.tonyostudio.library;
+
+import android.content.Intent;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of the delivery of the saved results of a query while it is scanned again
+ * and of restoring the checkpoint of a scan that did not complete.
+ */
+public class FileExtSearchServiceTest {
+
+    private static final String QUERY = "pdf\n";
+
+    private File cacheDir;
+    private TestDatabase database;
+    private TestService service;
+
+    @Before
+    public void createService() throws Exception {
+
+        cacheDir = File.createTempFile("service-test-","");
+        assertTrue(cacheDir.delete());
+        assertTrue(cacheDir.mkdir());
+
+        database = new TestDatabase();
+        service = new TestService(cacheDir,database);
+        service.onCreate();
+    }
+
+    @After
+    public void deleteCacheDir() throws Exception {
+
+        database.close();
+
+        File[] files = cacheDir.listFiles();
+
+        if(files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+
+        //noinspection ResultOfMethodCallIgnored
+        cacheDir.delete();
+    }
+
+    @Test
+    public void deliverStaleResults_nothingBeforeFirstScan() throws Exception {
+
+        assertFalse(service.deliverStaleResults(QUERY,Long.MAX_VALUE,"run-"));
+        assertEquals(0,service.broadcasts);
+        assertFalse(service.staleDelivered);
+    }
+
+    @Test
+    public void deliverStaleResults_savedResultsUnderBudget() throws Exception {
+
+        database.save(new String[]{"/a/1.pdf","/a/2.pdf","/b/3.pdf"},System.currentTimeMillis() - 60000,4);
+
+        assertTrue(service.deliverStaleResults(QUERY,Long.MAX_VALUE,"run-"));
+        assertEquals(1,service.broadcasts);
+        assertTrue(service.staleDelivered);
+        assertArrayEquals(new String[]{"/a/1.pdf","/a/2.pdf","/b/3.pdf"},service.staleFiles);
+        assertTrue(service.staleAge >= 60000);
+        assertEquals(0,resultsFiles().length);
+    }
+
+    @Test
+    public void deliverStaleResults_savedResultsOverBudgetGoToResultsFile() throws Exception {
+
+        String[] saved = new String[500];
+
+        for (int i = 0; i < saved.length; i++) {
+            saved[i] = String.format("/storage/dir%d/file%04d.pdf",i % 3,i);
+        }
+
+        database.save(saved,System.currentTimeMillis(),7);
+
+        assertTrue(service.deliverStaleResults(QUERY,1024,"run-"));
+        assertEquals(1,service.broadcasts);
+        assertTrue(service.staleDelivered);
+        assertNull(service.staleFiles);
+
+        File[] resultsFiles = resultsFiles();
+
+        assertEquals(1,resultsFiles.length);
+        assertTrue(resultsFiles[0].getName().endsWith("-7.results"));
+
+        List<String> lines = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(resultsFiles[0]),"UTF-8"));
+
+        try {
+
+            String line;
+
+            while((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+
+        assertEquals(saved.length,lines.size());
+
+        for (int i = 1; i < lines.size(); i++) {
+            assertTrue(ResultCollector.comparePaths(lines.get(i - 1),lines.get(i)) < 0);
+        }
+
+        // The runs of the spilled stale results are deleted once they are delivered
+        File[] runs = cacheDir.listFiles();
+
+        for (File run : runs) {
+            assertFalse(run.getName().startsWith("run-"));
+        }
+    }
+
+    @Test
+    public void deliverStaleResults_resultsUnderBudgetDeleteOldResultsFiles() throws Exception {
+
+        String[] saved = new String[500];
+
+        for (int i = 0; i < saved.length; i++) {
+            saved[i] = String.format("/storage/file%04d.pdf",i);
+        }
+
+        database.save(saved,System.currentTimeMillis(),7);
+        assertTrue(service.deliverStaleResults(QUERY,1024,"run-"));
+        assertEquals(1,resultsFiles().length);
+
+        database.save(new String[]{"/storage/file0000.pdf"},System.currentTimeMillis(),8);
+        assertTrue(service.deliverStaleResults(QUERY,Long.MAX_VALUE,"run-"));
+
+        assertArrayEquals(new String[]{"/storage/file0000.pdf"},service.staleFiles);
+        assertEquals(0,resultsFiles().length);
+    }
+
+    @Test
+    public void restoreCheckpoint_addsSavedFiles() throws Exception {
+
+        String[] roots = {"/a","/b"};
+        ScanCheckpoint checkpoint = new ScanCheckpoint(ScanCheckpoint.joinRoots(roots),System.currentTimeMillis() - 1000);
+        checkpoint.pendingDirs.add("/a/x");
+        database.saveCheckpoint(checkpoint,new String[]{"/a/1.pdf","/a/2.pdf"});
+
+        ResultCollector collector = new ResultCollector(Long.MAX_VALUE,cacheDir,"run-");
+        final List<String> reported = new ArrayList<>();
+        ScanListener listener = new ScanListener() {
+            @Override
+            public void onFileMatched(String filePath, long size, long lastModified) {
+                reported.add(filePath);
+            }
+
+            @Override
+            public void onDirectoryScanned(String dirPath, int matchedFiles) {
+            }
+        };
+
+        assertSame(checkpoint,service.restoreCheckpoint(QUERY,roots,collector,listener));
+        assertArrayEquals(new String[]{"/a/1.pdf","/a/2.pdf"},collector.toPathArray());
+        assertEquals(Arrays.asList("/a/1.pdf","/a/2.pdf"),reported);
+        assertFalse(database.checkpointDeleted);
+
+        // Restored files are not saved again with the next checkpoint
+        assertFalse(collector.openSinceCheckpoint().moveToNext());
+    }
+
+    @Test
+    public void restoreCheckpoint_discardsOtherRoots() throws Exception {
+
+        database.saveCheckpoint(new ScanCheckpoint(ScanCheckpoint.joinRoots(new String[]{"/a"}),System.currentTimeMillis()),new String[]{"/a/1.pdf"});
+        ResultCollector collector = new ResultCollector(Long.MAX_VALUE,cacheDir,"run-");
+
+        assertNull(service.restoreCheckpoint(QUERY,new String[]{"/a","/b"},collector,null));
+        assertTrue(database.checkpointDeleted);
+        assertEquals(0,collector.getCount());
+    }
+
+    @Test
+    public void restoreCheckpoint_discardsExpiredCheckpoint() throws Exception {
+
+        String[] roots = {"/a"};
+        long savedAt = System.currentTimeMillis() - ScanCheckpoint.MAX_AGE - 60000;
+        database.saveCheckpoint(new ScanCheckpoint(ScanCheckpoint.joinRoots(roots),savedAt),new String[]{"/a/1.pdf"});
+        ResultCollector collector = new ResultCollector(Long.MAX_VALUE,cacheDir,"run-");
+
+        assertNull(service.restoreCheckpoint(QUERY,roots,collector,null));
+        assertTrue(database.checkpointDeleted);
+        assertEquals(0,collector.getCount());
+    }
+
+    /** @return the results files written to the cache dir */
+    private File[] resultsFiles() {
+
+        List<File> resultsFiles = new ArrayList<>();
+
+        for (File file : cacheDir.listFiles()) {
+
+            if(file.getName().endsWith(".results")) {
+                resultsFiles.add(file);
+            }
+        }
+
+        return resultsFiles.toArray(new File[resultsFiles.size()]);
+    }
+
+    /** Service writing to a temporary cache dir and recording what it delivered */
+    private static final class TestService extends FileExtSearchService {
+
+        private final File cacheDir;
+        private final FileExtSearchDatabase database;
+
+        int broadcasts;
+        boolean staleDelivered;
+        String[] staleFiles;
+        long staleAge;
+
+        TestService(File cacheDir, FileExtSearchDatabase database) {
+            this.cacheDir = cacheDir;
+            this.database = database;
+        }
+
+        @Override
+        FileExtSearchDatabase openDatabase() {
+            return database;
+        }
+
+        @Override
+        public File getCacheDir() {
+            return cacheDir;
+        }
+
+        @Override
+        public void sendBroadcast(Intent intent) {
+            broadcasts++;
+        }
+
+        @Override
+        public void onStaleResultsDelivered(String[] filePaths, long staleAge) {
+            this.staleDelivered = true;
+            this.staleFiles = filePaths;
+            this.staleAge = staleAge;
+        }
+    }
+
+    /** Database holding the saved results and checkpoint of a single query in memory */
+    private static final class TestDatabase extends FileExtSearchDatabase {
+
+        private String[] paths;
+        private long completedAt = -1;
+        private long generation;
+        private ScanCheckpoint checkpoint;
+        private String[] checkpointPaths;
+        boolean checkpointDeleted;
+
+        TestDatabase() {
+            super(null,"test");
+        }
+
+        void save(String[] paths, long completedAt, long generation) {
+            this.paths = paths.clone();
+            this.completedAt = completedAt;
+            this.generation = generation;
+            Arrays.sort(this.paths,ResultCollector.PATH_ORDER);
+        }
+
+        void saveCheckpoint(ScanCheckpoint checkpoint, String[] checkpointPaths) {
+            this.checkpoint = checkpoint;
+            this.checkpointPaths = checkpointPaths;
+        }
+
+        @Override
+        ScanCheckpoint getCheckpoint(String query) {
+            return QUERY.equals(query) ? checkpoint : null;
+        }
+
+        @Override
+        ResultCursor queryCheckpointResults(String query) {
+            return cursor(QUERY.equals(query) && checkpointPaths != null ? checkpointPaths : new String[0]);
+        }
+
+        @Override
+        void deleteCheckpoint(String query) {
+
+            if(QUERY.equals(query)) {
+                checkpoint = null;
+                checkpointPaths = null;
+                checkpointDeleted = true;
+            }
+        }
+
+        @Override
+        public long getLastScanTime(String query) {
+            return QUERY.equals(query) ? completedAt : -1;
+        }
+
+        @Override
+        public long getGeneration(String query) {
+            return QUERY.equals(query) ? generation : 0;
+        }
+
+        @Override
+        ResultCursor queryResultEntries(String query) {
+            return cursor(QUERY.equals(query) && paths != null ? paths : new String[0]);
+        }
+
+        /** @return a cursor over the rows, with the position of each row as its size and last modified time */
+        private static ResultCursor cursor(final String[] rows) {
+
+            return new ResultCursor() {
+
+                private int position = -1;
+
+                @Override
+                public boolean moveToNext() {
+                    return ++position < rows.length;
+                }
+
+                @Override
+                public String getPath() {
+                    return rows[position];
+                }
+
+                @Override
+                public long getSize() {
+                    return position;
+                }
+
+                @Override
+                public long getLastModified() {
+                    return position;
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+        }
+    }
+}
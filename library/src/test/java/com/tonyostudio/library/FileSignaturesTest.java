@@ -0,0 +1,84 @@
+package com.tonyostudio.library;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of the detection of file types from their first bytes.
+ */
+public class FileSignaturesTest {
+
+    @Test
+    public void detect_images() throws Exception {
+        assertEquals("jpg",FileSignatures.detect(header(0xFF,0xD8,0xFF,0xE0,0x00,0x10)));
+        assertEquals("png",FileSignatures.detect(header(0x89,'P','N','G',0x0D,0x0A,0x1A,0x0A)));
+        assertEquals("gif",FileSignatures.detect(header("GIF89a")));
+        assertEquals("webp",FileSignatures.detect(header("RIFF\0\0\0\0WEBPVP8 ")));
+        assertEquals("heic",FileSignatures.detect(header("\0\0\0\u0018ftypheic")));
+    }
+
+    @Test
+    public void detect_sharedPrefixes() throws Exception {
+        assertEquals("wav",FileSignatures.detect(header("RIFF\0\0\0\0WAVEfmt ")));
+        assertEquals("avi",FileSignatures.detect(header("RIFF\0\0\0\0AVI LIST")));
+        assertEquals("m4a",FileSignatures.detect(header("\0\0\0 ftypM4A ")));
+        assertEquals("3gp",FileSignatures.detect(header("\0\0\0 ftyp3gp4")));
+        assertEquals("mp4",FileSignatures.detect(header("\0\0\0 ftypisom")));
+    }
+
+    @Test
+    public void detect_documentsAndArchives() throws Exception {
+        assertEquals("pdf",FileSignatures.detect(header("%PDF-1.7\n")));
+        assertEquals("zip",FileSignatures.detect(header('P','K',0x03,0x04)));
+        assertEquals("gz",FileSignatures.detect(header(0x1F,0x8B,0x08)));
+        assertEquals("mp3",FileSignatures.detect(header("ID3\u0004")));
+    }
+
+    @Test
+    public void detect_unknownOrTooShort() throws Exception {
+        assertNull(FileSignatures.detect(header("hello world")));
+        assertNull(FileSignatures.detect(header(0xFF,0xD8)));
+        assertNull(FileSignatures.detect(header("RIFF\0\0\0\0WAV")));
+        assertNull(FileSignatures.detect(ByteBuffer.allocate(0)));
+    }
+
+    @Test
+    public void detect_onlyReadsUpToLimit() throws Exception {
+
+        ByteBuffer buffer = ByteBuffer.allocate(FileSignatures.HEADER_LENGTH);
+        buffer.put("%PDF-".getBytes("US-ASCII"));
+        buffer.flip();
+        buffer.limit(4);
+
+        assertNull(FileSignatures.detect(buffer));
+    }
+
+    /** Utility method used to get a header holding the chars of a string as bytes */
+    private static ByteBuffer header(String value) {
+
+        int[] values = new int[value.length()];
+
+        for (int i = 0; i < values.length; i++) {
+            values[i] = value.charAt(i);
+        }
+
+        return header(values);
+    }
+
+    /** Utility method used to get a header holding bytes */
+    private static ByteBuffer header(int... values) {
+
+        ByteBuffer buffer = ByteBuffer.allocate(values.length);
+
+        for (int value : values) {
+            buffer.put((byte) value);
+        }
+
+        buffer.flip();
+
+        return buffer;
+    }
+}
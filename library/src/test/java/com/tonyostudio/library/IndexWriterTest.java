@@ -0,0 +1,297 @@
+package com.tonyostudio.library;
+
+import android.support.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of the batches and chunks the writer thread commits its writes in. The transactions
+ * are recorded in memory instead of being run on a database.
+ */
+public class IndexWriterTest {
+
+    private final RecordingWriter writer = new RecordingWriter();
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @After
+    public void closeWriter() throws Exception {
+        release.countDown();
+        writer.close();
+    }
+
+    @Test
+    public void execute_commitsQueuedWritesTogether() throws Exception {
+
+        // The writer thread is busy with the first write while the others are queued
+        writer.execute(blockingWrite("a"));
+        writer.execute(write("b",1));
+        writer.execute(write("c",1));
+        release.countDown();
+        writer.flush();
+
+        assertEquals("a,b,c",writer.commits.get(0));
+        assertEquals(0,writer.rollbacks);
+    }
+
+    @Test
+    public void execute_commitsOnceBatchIsFull() throws Exception {
+
+        writer.execute(blockingWrite("a"));
+        writer.execute(write("b",IndexWriter.MAX_BATCH_ROWS));
+        writer.execute(write("c",1));
+        release.countDown();
+        writer.flush();
+
+        assertEquals("a,b",writer.commits.get(0));
+        assertTrue(writer.commits.get(1).startsWith("c"));
+    }
+
+    @Test
+    public void executeAndWait_failedWriteOnlyFailsItself() throws Exception {
+
+        writer.execute(blockingWrite("a"));
+
+        WaitingCaller failing = new WaitingCaller(new IndexWriter.Write() {
+            @Override
+            public int write(@NonNull IndexWriter indexWriter) throws IOException {
+                writer.pending.add("b");
+                throw new IOException("b failed");
+            }
+        },false);
+
+        WaitingCaller succeeding = new WaitingCaller(write("c",1),false);
+
+        failing.startAndAwaitQueued();
+        succeeding.startAndAwaitQueued();
+        release.countDown();
+        failing.join();
+        succeeding.join();
+
+        assertEquals("b failed",failing.failure.getMessage());
+        assertNull(succeeding.failure);
+
+        // The batch was rolled back and each write run again alone, so a and c are committed once and b never
+        assertEquals(Arrays.asList("a","c"),writer.committedRows());
+        assertEquals(2,writer.rollbacks);
+    }
+
+    @Test
+    public void executeInChunksAndWait_commitsInChunks() throws Exception {
+
+        writer.executeInChunksAndWait(chunkedWrite("r",IndexWriter.MAX_BATCH_ROWS * 5 / 2,-1));
+
+        assertEquals(3,writer.commits.size());
+        assertEquals(IndexWriter.MAX_BATCH_ROWS,writer.committedCounts.get(0).intValue());
+        assertEquals(IndexWriter.MAX_BATCH_ROWS,writer.committedCounts.get(1).intValue());
+        assertEquals(IndexWriter.MAX_BATCH_ROWS / 2,writer.committedCounts.get(2).intValue());
+    }
+
+    @Test
+    public void executeInChunksAndWait_runsOnItsOwn() throws Exception {
+
+        writer.execute(blockingWrite("a"));
+        writer.execute(write("b",1));
+
+        WaitingCaller chunked = new WaitingCaller(chunkedWrite("c",3,-1),true);
+        chunked.startAndAwaitQueued();
+
+        writer.execute(write("d",1));
+        release.countDown();
+        chunked.join();
+        writer.flush();
+
+        assertNull(chunked.failure);
+        assertEquals("a,b",writer.commits.get(0));
+        assertEquals("c,c,c",writer.commits.get(1));
+        assertTrue(writer.commits.get(2).startsWith("d"));
+    }
+
+    @Test
+    public void executeInChunksAndWait_failureKeepsCommittedChunks() throws Exception {
+
+        try {
+            writer.executeInChunksAndWait(chunkedWrite("r",IndexWriter.MAX_BATCH_ROWS * 2,IndexWriter.MAX_BATCH_ROWS + 10));
+            fail("The write should have failed");
+        } catch (IOException expected) {
+            // Failed after its first chunk
+        }
+
+        assertEquals(1,writer.commits.size());
+        assertEquals(IndexWriter.MAX_BATCH_ROWS,writer.committedRows().size());
+        assertEquals(1,writer.rollbacks);
+    }
+
+    @Test
+    public void commitIfFull_ignoredOutsideOfChunkedWrites() throws Exception {
+
+        writer.executeAndWait(chunkedWrite("r",IndexWriter.MAX_BATCH_ROWS * 2,-1));
+
+        assertEquals(1,writer.commits.size());
+        assertEquals(IndexWriter.MAX_BATCH_ROWS * 2,writer.committedRows().size());
+    }
+
+    /** @return a write of a single row that waits until the test releases it */
+    private IndexWriter.Write blockingWrite(final String row) {
+
+        return new IndexWriter.Write() {
+            @Override
+            public int write(@NonNull IndexWriter indexWriter) throws IOException {
+
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+
+                writer.pending.add(row);
+
+                return 1;
+            }
+        };
+    }
+
+    /** @return a write of a single row that reports a number of rows */
+    private IndexWriter.Write write(final String row, final int rows) {
+
+        return new IndexWriter.Write() {
+            @Override
+            public int write(@NonNull IndexWriter indexWriter) {
+                writer.pending.add(row);
+                return rows;
+            }
+        };
+    }
+
+    /** @return a write of rows that asks the writer to commit after each of them and fails before a row, -1 for none */
+    private IndexWriter.Write chunkedWrite(final String row, final int rows, final int failBefore) {
+
+        return new IndexWriter.Write() {
+            @Override
+            public int write(@NonNull IndexWriter indexWriter) throws IOException {
+
+                for (int i = 0; i < rows; i++) {
+
+                    if(i == failBefore) {
+                        throw new IOException("Failed at " + i);
+                    }
+
+                    writer.pending.add(row);
+                    indexWriter.commitIfFull(1);
+                }
+
+                return rows;
+            }
+        };
+    }
+
+    /** Writer recording the rows of its transactions instead of running them on a database */
+    private static final class RecordingWriter extends IndexWriter {
+
+        /** Rows written by the open transaction. Only accessed from the writer thread */
+        final List<String> pending = new ArrayList<>();
+
+        /** Rows of each committed transaction, joined by commas */
+        final List<String> commits = Collections.synchronizedList(new ArrayList<String>());
+
+        /** Number of rows of each committed transaction */
+        final List<Integer> committedCounts = Collections.synchronizedList(new ArrayList<Integer>());
+
+        volatile int rollbacks;
+
+        RecordingWriter() {
+            super(null);
+        }
+
+        @Override
+        void beginTransaction() {
+            pending.clear();
+        }
+
+        @Override
+        void endTransaction(boolean successful) {
+
+            // The flush marker of the test writes no rows
+            if(successful && !pending.isEmpty()) {
+
+                StringBuilder rows = new StringBuilder();
+
+                for (String row : pending) {
+
+                    if(rows.length() > 0) {
+                        rows.append(',');
+                    }
+
+                    rows.append(row);
+                }
+
+                commits.add(rows.toString());
+                committedCounts.add(pending.size());
+            } else if(!successful) {
+                rollbacks++;
+            }
+
+            pending.clear();
+        }
+
+        List<String> committedRows() {
+
+            List<String> rows = new ArrayList<>();
+
+            synchronized (commits) {
+                for (String commit : commits) {
+                    rows.addAll(Arrays.asList(commit.split(",")));
+                }
+            }
+
+            return rows;
+        }
+    }
+
+    /** Thread queueing a write and waiting for it, like a scan waiting for its results to be saved */
+    private final class WaitingCaller extends Thread {
+
+        private final IndexWriter.Write write;
+        private final boolean chunked;
+        volatile Throwable failure;
+
+        WaitingCaller(IndexWriter.Write write, boolean chunked) {
+            this.write = write;
+            this.chunked = chunked;
+        }
+
+        @Override
+        public void run() {
+
+            try {
+
+                if(chunked) {
+                    writer.executeInChunksAndWait(write);
+                } else {
+                    writer.executeAndWait(write);
+                }
+            } catch (Throwable t) {
+                failure = t;
+            }
+        }
+
+        /** Method used to start the thread and return once its write is queued and it waits for it */
+        void startAndAwaitQueued() throws InterruptedException {
+
+            start();
+
+            while(getState() != State.WAITING) {
+                Thread.sleep(1);
+            }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.tonyostudio.library;
+
+import org.junit.Test;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of the token bucket capping the entries read per second. The bucket runs on a fake
+ * clock whose sleeps advance its time, so the tests do not depend on the speed of the machine.
+ */
+public class IoThrottleTest {
+
+    private static final long MILLIS = 1000000L;
+
+    @Test
+    public void acquire_burstWithinOneSecondDoesNotWait() throws Exception {
+
+        FakeClock clock = new FakeClock();
+        IoThrottle throttle = new IoThrottle(1000,clock);
+
+        throttle.acquire(400);
+        throttle.acquire(600);
+
+        assertTrue(clock.sleeps.isEmpty());
+    }
+
+    @Test
+    public void acquire_waitsUntilTheDebtIsPaidOff() throws Exception {
+
+        FakeClock clock = new FakeClock();
+        IoThrottle throttle = new IoThrottle(1000,clock);
+
+        throttle.acquire(1000);
+        throttle.acquire(300);
+
+        assertEquals(1,clock.sleeps.size());
+        assertEquals(300 * MILLIS,(long) clock.sleeps.get(0));
+    }
+
+    @Test
+    public void acquire_refillsWithElapsedTime() throws Exception {
+
+        FakeClock clock = new FakeClock();
+        IoThrottle throttle = new IoThrottle(1000,clock);
+
+        throttle.acquire(1000);
+        clock.now += 200 * MILLIS;
+        throttle.acquire(200);
+
+        assertTrue(clock.sleeps.isEmpty());
+
+        clock.now += 100 * MILLIS;
+        throttle.acquire(150);
+
+        assertEquals(1,clock.sleeps.size());
+        assertEquals(50 * MILLIS,(long) clock.sleeps.get(0));
+    }
+
+    @Test
+    public void acquire_keepsAtMostOneSecondOfTokens() throws Exception {
+
+        FakeClock clock = new FakeClock();
+        IoThrottle throttle = new IoThrottle(1000,clock);
+
+        clock.now += 60000 * MILLIS;
+        throttle.acquire(1500);
+
+        assertEquals(1,clock.sleeps.size());
+        assertEquals(500 * MILLIS,(long) clock.sleeps.get(0));
+    }
+
+    @Test
+    public void acquire_interruptedWhileWaiting() throws Exception {
+
+        FakeClock clock = new FakeClock();
+        clock.interrupted = true;
+        IoThrottle throttle = new IoThrottle(10,clock);
+        throttle.acquire(10);
+
+        try {
+            throttle.acquire(100);
+            fail("expected InterruptedIOException");
+        } catch (InterruptedIOException expected) {
+            // The interrupt is kept for the caller
+            assertTrue(Thread.interrupted());
+        }
+    }
+
+    /** Clock whose time only moves when the test or a sleep moves it */
+    private static final class FakeClock implements IoThrottle.Clock {
+
+        final List<Long> sleeps = new ArrayList<>();
+        long now = 1000 * MILLIS;
+        boolean interrupted;
+
+        @Override
+        public long nanoTime() {
+            return now;
+        }
+
+        @Override
+        public void sleep(long nanos) throws InterruptedException {
+
+            if(interrupted) {
+                throw new InterruptedException();
+            }
+
+            sleeps.add(nanos);
+            now += nanos;
+        }
+    }
+}
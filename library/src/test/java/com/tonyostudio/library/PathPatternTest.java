@@ -0,0 +1,171 @@
+package com.tonyostudio.library;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of the glob patterns matched against paths relative to a watched directory.
+ */
+public class PathPatternTest {
+
+    @Test
+    public void compile_ignoresNullAndEmptyPatterns() throws Exception {
+        assertNull(PathPattern.compile(null));
+        assertNull(PathPattern.compile(new String[]{null,"","/"}));
+        assertNotNull(PathPattern.compile(new String[]{null,"*.pdf"}));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void compile_rejectsTooManySegments() throws Exception {
+
+        StringBuilder pattern = new StringBuilder();
+
+        for (int i = 0; i < 64; i++) {
+            pattern.append("d").append(i).append('/');
+        }
+
+        PathPattern.compile(new String[]{pattern.toString()});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void compile_rejectsParentSegments() throws Exception {
+        PathPattern.compile(new String[]{"*.pdf","../**/*.jpg"});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void compile_rejectsParentSegmentsInsideOfPattern() throws Exception {
+        PathPattern.compile(new String[]{"DCIM/../../Android/*"});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void compile_rejectsCurrentSegments() throws Exception {
+        PathPattern.compile(new String[]{"./Documents/*.pdf"});
+    }
+
+    @Test
+    public void compile_acceptsDotsInsideOfNames() throws Exception {
+
+        PathPattern pattern = PathPattern.compile(new String[]{".../*.txt","..hidden/.*","*.."});
+
+        assertTrue(matches(pattern,".../a.txt"));
+        assertTrue(matches(pattern,"..hidden/.nomedia"));
+        assertTrue(matches(pattern,"name.."));
+    }
+
+    @Test
+    public void accepts_literalPath() throws Exception {
+
+        PathPattern pattern = PathPattern.compile(new String[]{"Documents/report.pdf"});
+
+        assertTrue(matches(pattern,"Documents/report.pdf"));
+        assertTrue(matches(pattern,"/Documents//report.pdf/"));
+        assertFalse(matches(pattern,"Documents/other.pdf"));
+        assertFalse(matches(pattern,"Other/Documents/report.pdf"));
+        assertFalse(matches(pattern,"Documents"));
+    }
+
+    @Test
+    public void accepts_anyDirectories() throws Exception {
+
+        PathPattern pattern = PathPattern.compile(new String[]{"Download/**/*.pdf"});
+
+        assertTrue(matches(pattern,"Download/a.pdf"));
+        assertTrue(matches(pattern,"Download/x/y/z/a.pdf"));
+        assertFalse(matches(pattern,"a.pdf"));
+        assertFalse(matches(pattern,"Download/x/a.txt"));
+
+        PathPattern anywhere = PathPattern.compile(new String[]{"**/Camera/IMG_*.jpg"});
+
+        assertTrue(matches(anywhere,"Camera/IMG_1.jpg"));
+        assertTrue(matches(anywhere,"DCIM/Camera/IMG_1.jpg"));
+        assertFalse(matches(anywhere,"DCIM/Camera/VID_1.jpg"));
+    }
+
+    @Test
+    public void accepts_anyOfSeveralPatterns() throws Exception {
+
+        PathPattern pattern = PathPattern.compile(new String[]{"*.pdf","Music/*.mp3"});
+
+        assertTrue(matches(pattern,"a.pdf"));
+        assertTrue(matches(pattern,"Music/a.mp3"));
+        assertFalse(matches(pattern,"Music/a.pdf"));
+        assertFalse(matches(pattern,"a.mp3"));
+    }
+
+    @Test
+    public void accepts_nullState() throws Exception {
+        assertFalse(PathPattern.compile(new String[]{"*"}).accepts(null));
+    }
+
+    @Test
+    public void next_returnsNullWhenNothingBelowCanMatch() throws Exception {
+
+        PathPattern pattern = PathPattern.compile(new String[]{"Documents/*.pdf"});
+        long[] state = pattern.initialState();
+
+        assertNull(pattern.next(state,"Music"));
+
+        long[] documents = pattern.next(state,"Documents");
+
+        assertNotNull(documents);
+        assertTrue(pattern.canMatchBelow(documents));
+        assertFalse(pattern.accepts(documents));
+        assertFalse(pattern.canMatchBelow(pattern.next(documents,"a.pdf")));
+    }
+
+    @Test
+    public void stateFor_matchesStepwiseState() throws Exception {
+
+        PathPattern pattern = PathPattern.compile(new String[]{"a/**/c/*.txt"});
+        long[] state = pattern.next(pattern.next(pattern.next(pattern.initialState(),"a"),"b"),"c");
+
+        assertArrayEquals(state,pattern.stateFor("a/b/c"));
+        assertNull(pattern.stateFor("x/b/c"));
+    }
+
+    @Test
+    public void literalNames_onlyForLiteralSegments() throws Exception {
+
+        PathPattern pattern = PathPattern.compile(new String[]{"Documents/a.pdf","Documents/b.pdf","Music/*.mp3"});
+        long[] state = pattern.initialState();
+
+        assertArrayEquals(new String[]{"Documents","Music"},pattern.literalNames(state));
+        assertArrayEquals(new String[]{"a.pdf","b.pdf"},pattern.literalNames(pattern.next(state,"Documents")));
+        assertNull(pattern.literalNames(pattern.next(state,"Music")));
+
+        PathPattern anywhere = PathPattern.compile(new String[]{"**/a.pdf"});
+
+        assertNull(anywhere.literalNames(anywhere.initialState()));
+    }
+
+    @Test
+    public void matchSegment_wildcards() throws Exception {
+
+        assertTrue(PathPattern.matchSegment("*","anything"));
+        assertTrue(PathPattern.matchSegment("*",""));
+        assertTrue(PathPattern.matchSegment("IMG_*.jpg","IMG_0001.jpg"));
+        assertTrue(PathPattern.matchSegment("*a*b*","xxaxxbxx"));
+        assertFalse(PathPattern.matchSegment("*a*b*","xxbxxaxx"));
+        assertTrue(PathPattern.matchSegment("?.txt","a.txt"));
+        assertFalse(PathPattern.matchSegment("?.txt","ab.txt"));
+    }
+
+    @Test
+    public void matchSegment_characterClasses() throws Exception {
+
+        assertTrue(PathPattern.matchSegment("[abc].txt","b.txt"));
+        assertFalse(PathPattern.matchSegment("[abc].txt","d.txt"));
+        assertTrue(PathPattern.matchSegment("[a-z]1","q1"));
+        assertFalse(PathPattern.matchSegment("[a-z]1","Q1"));
+        assertTrue(PathPattern.matchSegment("[!a-z]1","Q1"));
+        assertFalse(PathPattern.matchSegment("[!a-z]1","q1"));
+        assertTrue(PathPattern.matchSegment("[]]","]"));
+        assertTrue(PathPattern.matchSegment("a[b","a[b"));
+    }
+
+    /** Utility method used to match a path one segment at a time, like the scanner does */
+    private static boolean matches(PathPattern pattern, String relativePath) {
+        return pattern.accepts(pattern.stateFor(relativePath));
+    }
+}
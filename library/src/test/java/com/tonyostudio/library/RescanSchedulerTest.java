@@ -0,0 +1,351 @@
+package com.tonyostudio.library;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of the rescan intervals learned from the changes of subtrees.
+ */
+public class RescanSchedulerTest {
+
+    private static final long HOUR = 60 * 60 * 1000;
+    private static final String QUERY = "pdf\n";
+    private static final String[] PDF = {".pdf"};
+
+    private File dir;
+    private String root;
+    private StatsDatabase database;
+
+    @Before
+    public void createTree() throws Exception {
+
+        dir = TestDirs.create("rescan-test-");
+        TestDirs.createFile(dir,"root/a/1.pdf",1);
+        TestDirs.createFile(dir,"root/b/2.pdf",2);
+        TestDirs.createFile(dir,"root/b/c/3.pdf",3);
+
+        root = new File(dir,"root").getAbsolutePath();
+        database = new StatsDatabase();
+    }
+
+    @After
+    public void deleteTree() throws Exception {
+        database.close();
+        TestDirs.delete(dir);
+    }
+
+    @Test
+    public void scan_skipsSubtreeThatIsNotDueAndCarriesItsFilesForward() throws Exception {
+
+        scan(false,null);
+
+        // Only a is due, so the watched directory is walked and b is carried forward
+        long now = System.currentTimeMillis();
+        RescanScheduler.DirStats a = database.stats.get(root + "/a");
+        database.stats.put(a.path,stats(a.path,a.signature,RescanScheduler.MIN_INTERVAL,now - 2 * RescanScheduler.MIN_INTERVAL));
+
+        TestDirs.createFile(dir,"root/a/4.pdf",4);
+        assertTrue(new File(dir,"root/b/2.pdf").delete());
+
+        RescanScheduler scheduler = scan(true,null);
+
+        assertArrayEquals(new String[]{root + "/a/1.pdf",root + "/a/4.pdf",root + "/b/2.pdf",root + "/b/c/3.pdf"},
+                database.results);
+        assertEquals(Arrays.asList(root,root + "/a"),database.updatedPaths());
+        assertTrue(database.removed.isEmpty());
+
+        // The watched directory changed through a, the skipped subtrees keep their statistics
+        assertEquals(RescanScheduler.MIN_INTERVAL,database.stats.get(root).interval);
+        assertEquals(RescanScheduler.MIN_INTERVAL,database.stats.get(root + "/a").interval);
+        assertTrue(database.stats.containsKey(root + "/b/c"));
+        assertEquals(RescanScheduler.MIN_INTERVAL,scheduler.getNextRescanDelay());
+    }
+
+    @Test
+    public void save_removesSubtreesThatNoLongerExist() throws Exception {
+
+        scan(false,null);
+        database.stats.put("/elsewhere",stats("/elsewhere",1,HOUR,System.currentTimeMillis()));
+        TestDirs.delete(new File(dir,"root/b/c"));
+
+        scan(false,null);
+
+        assertEquals(Collections.singletonList(root + "/b/c"),database.removed);
+        assertEquals(Arrays.asList(root,root + "/a",root + "/b"),database.updatedPaths());
+        assertTrue(database.stats.containsKey("/elsewhere"));
+    }
+
+    @Test
+    public void save_clampsIntervals() throws Exception {
+
+        scan(false,null);
+
+        long visitedAt = System.currentTimeMillis() - RescanScheduler.MAX_INTERVAL;
+        setInterval(root,HOUR,visitedAt);
+        setInterval(root + "/a",RescanScheduler.MAX_INTERVAL,visitedAt);
+        setInterval(root + "/b",RescanScheduler.MIN_INTERVAL,visitedAt);
+        setInterval(root + "/b/c",2 * HOUR,visitedAt);
+
+        TestDirs.createFile(dir,"root/b/5.pdf",5);
+        TestDirs.createFile(dir,"root/d/6.pdf",6);
+
+        scan(true,null);
+
+        assertEquals(HOUR / 2,database.stats.get(root).interval);
+        assertEquals(RescanScheduler.MAX_INTERVAL,database.stats.get(root + "/a").interval);
+        assertEquals(RescanScheduler.MIN_INTERVAL,database.stats.get(root + "/b").interval);
+        assertEquals(3 * HOUR,database.stats.get(root + "/b/c").interval);
+        assertEquals(RescanScheduler.MIN_INTERVAL,database.stats.get(root + "/d").interval);
+    }
+
+    @Test
+    public void scan_doesNotTrackResumedDirectories() throws Exception {
+
+        scan(false,null);
+        Map<String,RescanScheduler.DirStats> saved = new HashMap<>(database.stats);
+
+        // The watched directory was listed before the checkpoint, b was still pending
+        ScanCheckpoint checkpoint = new ScanCheckpoint(ScanCheckpoint.joinRoots(new String[]{root}),System.currentTimeMillis());
+        checkpoint.currentRoots.add(root);
+        checkpoint.pendingDirs.add(root + "/b");
+        TestDirs.createFile(dir,"root/b/c/7.pdf",7);
+
+        scan(false,checkpoint);
+
+        assertArrayEquals(new String[]{root + "/b/2.pdf",root + "/b/c/3.pdf",root + "/b/c/7.pdf"},database.results);
+        assertTrue(database.updatedPaths().isEmpty());
+        assertTrue(database.removed.isEmpty());
+        assertEquals(saved.keySet(),database.stats.keySet());
+        assertEquals(saved.get(root + "/b").signature,database.stats.get(root + "/b").signature);
+    }
+
+    @Test
+    public void nextInterval_newSubtreeStartsAtMinimum() throws Exception {
+        assertEquals(RescanScheduler.MIN_INTERVAL,RescanScheduler.nextInterval(null,42));
+    }
+
+    @Test
+    public void nextInterval_growsWhileUnchanged() throws Exception {
+
+        long interval = RescanScheduler.nextInterval(stats("/a",7,2 * HOUR,0),7);
+
+        assertEquals(3 * HOUR,interval);
+        assertEquals(RescanScheduler.MAX_INTERVAL,RescanScheduler.nextInterval(stats("/a",7,RescanScheduler.MAX_INTERVAL,0),7));
+    }
+
+    @Test
+    public void nextInterval_halvesWhenChanged() throws Exception {
+
+        assertEquals(HOUR,RescanScheduler.nextInterval(stats("/a",7,2 * HOUR,0),8));
+        assertEquals(RescanScheduler.MIN_INTERVAL,RescanScheduler.nextInterval(stats("/a",7,RescanScheduler.MIN_INTERVAL,0),8));
+    }
+
+    @Test
+    public void nextInterval_unchangedSubtreeReachesMaximum() throws Exception {
+
+        long interval = RescanScheduler.MIN_INTERVAL;
+        int visits = 0;
+
+        while(interval < RescanScheduler.MAX_INTERVAL) {
+            interval = RescanScheduler.nextInterval(stats("/a",7,interval,0),7);
+            visits++;
+        }
+
+        assertEquals(RescanScheduler.MAX_INTERVAL,interval);
+        assertTrue(visits < 20);
+    }
+
+    @Test
+    public void dueTimes_propagatedToTrackedAncestors() throws Exception {
+
+        Map<String,RescanScheduler.DirStats> stats = new HashMap<>();
+        put(stats,stats("/storage",1,10 * HOUR,0));
+        put(stats,stats("/storage/a",1,10 * HOUR,0));
+        put(stats,stats("/storage/a/x",1,HOUR,0));
+        put(stats,stats("/storage/b",1,5 * HOUR,0));
+
+        Map<String,Long> dueAt = RescanScheduler.dueTimes(stats);
+
+        assertEquals(Long.valueOf(HOUR),dueAt.get("/storage"));
+        assertEquals(Long.valueOf(HOUR),dueAt.get("/storage/a"));
+        assertEquals(Long.valueOf(HOUR),dueAt.get("/storage/a/x"));
+        assertEquals(Long.valueOf(5 * HOUR),dueAt.get("/storage/b"));
+        assertFalse(dueAt.containsKey("/"));
+        assertEquals(4,dueAt.size());
+    }
+
+    @Test
+    public void nextRescanDelay_earliestOfSavedAndKept() throws Exception {
+
+        long now = 100 * HOUR;
+        List<RescanScheduler.DirStats> updated = Collections.singletonList(stats("/a",1,4 * HOUR,now));
+        List<RescanScheduler.DirStats> previous = Arrays.asList(
+                stats("/a",1,HOUR,now - 2 * HOUR),
+                stats("/b",1,3 * HOUR,now - HOUR),
+                stats("/c",1,HOUR,now - 2 * HOUR));
+
+        // The old due time of /a was replaced and /c was removed, so the skipped /b is due first
+        long delay = RescanScheduler.nextRescanDelay(now,updated,Collections.singletonList("/c"),previous);
+
+        assertEquals(2 * HOUR,delay);
+    }
+
+    @Test
+    public void nextRescanDelay_atLeastMinimum() throws Exception {
+
+        long now = 100 * HOUR;
+        List<RescanScheduler.DirStats> previous = Collections.singletonList(stats("/b",1,HOUR,now - 2 * HOUR));
+
+        assertEquals(RescanScheduler.MIN_INTERVAL,RescanScheduler.nextRescanDelay(now,
+                Collections.<RescanScheduler.DirStats>emptyList(),Collections.<String>emptyList(),previous));
+        assertEquals(RescanScheduler.MAX_INTERVAL,RescanScheduler.nextRescanDelay(now,
+                Collections.<RescanScheduler.DirStats>emptyList(),Collections.<String>emptyList(),
+                Collections.<RescanScheduler.DirStats>emptyList()));
+    }
+
+    private static RescanScheduler.DirStats stats(String path, long signature, long interval, long visitedAt) {
+        return new RescanScheduler.DirStats(path,signature,interval,visitedAt);
+    }
+
+    private static void put(Map<String,RescanScheduler.DirStats> stats, RescanScheduler.DirStats subtree) {
+        stats.put(subtree.path,subtree);
+    }
+
+    /** Method used to scan the tree like the service does with adaptive rescans and save its results and statistics */
+    private RescanScheduler scan(boolean scheduledRescan, ScanCheckpoint resumeFrom) throws Exception {
+
+        RescanScheduler scheduler = new RescanScheduler(database,QUERY,scheduledRescan);
+        ResultCollector collector = new ResultCollector(Long.MAX_VALUE,dir,"run-");
+        AttributeFilter noFilter = new AttributeFilter(AttributeFilter.UNSET,AttributeFilter.UNSET,AttributeFilter.UNSET,true,false);
+
+        try {
+            new DirectoryScanner(PDF,null,noFilter,collector,null,null,null,null,scheduler).scan(new String[]{root},resumeFrom);
+            database.saveResults(collector);
+        } finally {
+            collector.close();
+        }
+
+        scheduler.save();
+
+        return scheduler;
+    }
+
+    private void setInterval(String path, long interval, long visitedAt) {
+        database.stats.put(path,stats(path,database.stats.get(path).signature,interval,visitedAt));
+    }
+
+    /** Database holding the saved results and statistics of a single query in memory */
+    private static final class StatsDatabase extends FileExtSearchDatabase {
+
+        final Map<String,RescanScheduler.DirStats> stats = new HashMap<>();
+        String[] results = new String[0];
+        long[] sizes = new long[0];
+        List<RescanScheduler.DirStats> updated = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+
+        StatsDatabase() {
+            super(null,"test");
+        }
+
+        void saveResults(ResultCollector collector) throws Exception {
+
+            results = collector.toPathArray();
+            sizes = new long[results.length];
+            ResultCursor cursor = collector.open();
+
+            try {
+                for (int i = 0; cursor.moveToNext(); i++) {
+                    sizes[i] = cursor.getSize();
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        List<String> updatedPaths() {
+
+            List<String> paths = new ArrayList<>();
+
+            for (RescanScheduler.DirStats subtree : updated) {
+                paths.add(subtree.path);
+            }
+
+            Collections.sort(paths);
+
+            return paths;
+        }
+
+        @Override
+        Map<String,RescanScheduler.DirStats> getDirStats(String query) {
+            return QUERY.equals(query) ? new HashMap<>(stats) : new HashMap<String,RescanScheduler.DirStats>();
+        }
+
+        @Override
+        void saveDirStats(String query, List<RescanScheduler.DirStats> updated, List<String> removed) {
+
+            this.updated = updated;
+            this.removed = removed;
+
+            for (RescanScheduler.DirStats subtree : updated) {
+                stats.put(subtree.path,subtree);
+            }
+
+            for (String path : removed) {
+                stats.remove(path);
+            }
+        }
+
+        @Override
+        ResultCursor queryResultEntriesBelow(String query, String dirPath) {
+
+            final List<Integer> below = new ArrayList<>();
+
+            for (int i = 0; i < results.length; i++) {
+
+                if(results[i].startsWith(dirPath + "/")) {
+                    below.add(i);
+                }
+            }
+
+            return new ResultCursor() {
+
+                private int position = -1;
+
+                @Override
+                public boolean moveToNext() {
+                    return ++position < below.size();
+                }
+
+                @Override
+                public String getPath() {
+                    return results[below.get(position)];
+                }
+
+                @Override
+                public long getSize() {
+                    return sizes[below.get(position)];
+                }
+
+                @Override
+                public long getLastModified() {
+                    return 0;
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package com.tonyostudio.library;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of the collector that spills scan results to sorted run files.
+ */
+public class ResultCollectorTest {
+
+    private static final String RUN_PREFIX = "collector-test-";
+
+    private File spillDir;
+
+    @Before
+    public void createSpillDir() throws Exception {
+
+        spillDir = File.createTempFile(RUN_PREFIX,"");
+        assertTrue(spillDir.delete());
+        assertTrue(spillDir.mkdir());
+    }
+
+    @After
+    public void deleteSpillDir() throws Exception {
+
+        File[] files = spillDir.listFiles();
+
+        if(files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+
+        //noinspection ResultOfMethodCallIgnored
+        spillDir.delete();
+    }
+
+    @Test
+    public void open_sortsInMemoryFilesByPath() throws Exception {
+
+        ResultCollector collector = new ResultCollector(Long.MAX_VALUE,spillDir,RUN_PREFIX);
+        collector.add("/b/z",1,1);
+        collector.add("/a/y",2,2);
+        collector.add("/b/a",3,3);
+
+        assertFalse(collector.hasSpilled());
+        assertArrayEquals(new String[]{"/a/y","/b/a","/b/z"},collector.toPathArray());
+    }
+
+    @Test
+    public void open_mergesRunsInPathOrder() throws Exception {
+
+        ResultCollector collector = new ResultCollector(1,spillDir,RUN_PREFIX);
+        String[] paths = {"/d/4","/a/1","/c/3","/b/2","/a/0"};
+
+        for (int i = 0; i < paths.length; i++) {
+            collector.add(paths[i],i,i * 10);
+            collector.spillIfNeeded();
+        }
+
+        assertTrue(collector.hasSpilled());
+
+        ResultCursor cursor = collector.open();
+        List<String> merged = new ArrayList<>();
+
+        try {
+
+            while(cursor.moveToNext()) {
+
+                merged.add(cursor.getPath());
+                int index = Arrays.asList(paths).indexOf(cursor.getPath());
+
+                assertEquals(index,cursor.getSize());
+                assertEquals(index * 10,cursor.getLastModified());
+            }
+        } finally {
+            cursor.close();
+        }
+
+        assertEquals(Arrays.asList("/a/0","/a/1","/b/2","/c/3","/d/4"),merged);
+    }
+
+    @Test
+    public void open_returnsDuplicatePathsOnce() throws Exception {
+
+        ResultCollector collector = new ResultCollector(1,spillDir,RUN_PREFIX);
+        collector.add("/a",1,1);
+        collector.spillIfNeeded();
+        collector.add("/a",1,1);
+        collector.add("/b",1,1);
+
+        assertArrayEquals(new String[]{"/a","/b"},collector.toPathArray());
+    }
+
+    @Test
+    public void spillIfNeeded_onlyWhenOverBudget() throws Exception {
+
+        ResultCollector collector = new ResultCollector(20 * 1024,spillDir,RUN_PREFIX);
+        int root = collector.addDirectory(ScanResults.NO_DIRECTORY,"/storage");
+        int spills = 0;
+
+        for (int i = 0; i < 5000; i++) {
+
+            collector.add(root,"file" + i,i,i);
+
+            boolean needsSpill = collector.needsSpill();
+            collector.spillIfNeeded();
+
+            if(needsSpill) {
+                spills++;
+
+                // Spilled files no longer count against the budget
+                assertFalse(collector.needsSpill());
+            }
+        }
+
+        assertTrue(spills > 1);
+        assertTrue(spills < 50);
+        assertEquals(spills,runFiles().length);
+        assertEquals(5000,collector.toPathArray().length);
+    }
+
+    @Test
+    public void writePaths_writesOnePathPerLine() throws Exception {
+
+        ResultCollector collector = new ResultCollector(1,spillDir,RUN_PREFIX);
+        collector.add("/b",1,1);
+        collector.spillIfNeeded();
+        collector.add("/a",1,1);
+
+        File file = new File(spillDir,"paths.txt");
+
+        assertEquals(2,collector.writePaths(file));
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file),"UTF-8"));
+
+        try {
+            assertEquals("/a",reader.readLine());
+            assertEquals("/b",reader.readLine());
+            assertNull(reader.readLine());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void close_deletesRuns() throws Exception {
+
+        ResultCollector collector = new ResultCollector(1,spillDir,RUN_PREFIX);
+        collector.add("/a",1,1);
+        collector.spillIfNeeded();
+
+        assertEquals(1,runFiles().length);
+
+        collector.close();
+
+        assertEquals(0,runFiles().length);
+    }
+
+    @Test
+    public void addAll_spillsOverBudget() throws Exception {
+
+        ResultCollector source = new ResultCollector(Long.MAX_VALUE,spillDir,RUN_PREFIX);
+
+        for (int i = 0; i < 2000; i++) {
+            source.add("/storage/dir" + (i % 7) + "/file" + i,i,i);
+        }
+
+        ResultCollector collector = new ResultCollector(4 * 1024,spillDir,RUN_PREFIX);
+        ResultCursor cursor = source.open();
+
+        try {
+            collector.addAll(cursor);
+        } finally {
+            cursor.close();
+        }
+
+        assertTrue(collector.hasSpilled());
+        assertArrayEquals(source.toPathArray(),collector.toPathArray());
+    }
+
+    @Test
+    public void sort_matchesComparePaths() throws Exception {
+
+        // Separators, names that are prefixes of directories, multi byte characters and surrogate pairs
+        String[] paths = {"/a/b/c","/a/b~","/a/b.txt","/a/b","/a/B","/a/\u00e9","/a/\ufffd","/a/\ud83d\ude00","/ab/c","/a/b/a",
+                "/a/bc/d","/","/z","/a/b/\u00e9/x"};
+        ScanResults results = new ScanResults();
+
+        for (int i = 0; i < paths.length; i++) {
+            results.add(paths[i],i,i);
+        }
+
+        int root = results.addDirectory(ScanResults.NO_DIRECTORY,"/nested");
+        int child = results.addDirectory(root,"child");
+        results.add(child,"file",0,0);
+        results.add(root,"child.txt",0,0);
+        results.add(root,"child0",0,0);
+
+        String[] sorted = new String[results.size()];
+        int[] positions = ResultCollector.sort(results);
+
+        for (int i = 0; i < positions.length; i++) {
+            sorted[i] = results.getPath(positions[i]);
+        }
+
+        String[] expected = results.toPathArray();
+        Arrays.sort(expected,ResultCollector.PATH_ORDER);
+
+        assertArrayEquals(expected,sorted);
+    }
+
+    @Test
+    public void sort_doesNotMaterializePaths() throws Exception {
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        ScanResults results = new ScanResults();
+        int directory = results.addDirectory(ScanResults.NO_DIRECTORY,"/storage/emulated/0/Android/data/com.example.app/files");
+        int count = 50000;
+
+        for (int i = count; i > 0; i--) {
+            results.add(directory,"document-with-a-long-descriptive-name-" + i + ".pdf",i,i);
+        }
+
+        ResultCollector.sort(results);
+
+        long before = threads.getThreadAllocatedBytes(threadId);
+        ResultCollector.sort(results);
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        // The positions and the scratch array take 8 bytes per file, materialized paths would take over 100
+        assertTrue("Sort allocated " + allocated + " bytes",allocated < count * 16L + 64 * 1024);
+    }
+
+    @Test
+    public void comparePaths_byCodePoint() throws Exception {
+
+        assertTrue(ResultCollector.comparePaths("/a","/b") < 0);
+        assertTrue(ResultCollector.comparePaths("/a","/a/b") < 0);
+        assertEquals(0,ResultCollector.comparePaths("/a","/a"));
+
+        // U+1F600 is encoded as a surrogate pair, which must sort after U+FFFD like its UTF-8 bytes do
+        assertTrue(ResultCollector.comparePaths("/\ud83d\ude00","/\ufffd") > 0);
+    }
+
+    /** @return the run files currently in the spill directory */
+    private File[] runFiles() {
+
+        File[] files = spillDir.listFiles();
+        List<File> runs = new ArrayList<>();
+
+        for (File file : files) {
+
+            if(file.getName().startsWith(RUN_PREFIX)) {
+                runs.add(file);
+            }
+        }
+
+        return runs.toArray(new File[runs.size()]);
+    }
+}
@@ -0,0 +1,83 @@
+package com.tonyostudio.library;
+
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of the changes computed between the results of two scans.
+ */
+public class ScanChangeSetTest {
+
+    @Test
+    public void compute_addedRemovedAndModified() throws Exception {
+
+        ScanChangeSet changeSet = ScanChangeSet.compute(
+                cursor(new String[]{"/a","/b","/c","/e"},new long[]{1,1,1,1}),
+                cursor(new String[]{"/b","/c","/d","/e"},new long[]{1,2,1,1}),5,100);
+
+        assertArrayEquals(new String[]{"/d"},changeSet.getAdded());
+        assertArrayEquals(new String[]{"/a"},changeSet.getRemoved());
+        assertArrayEquals(new String[]{"/c"},changeSet.getModified());
+        assertEquals(6,changeSet.getGeneration());
+        assertEquals(5,changeSet.getPreviousGeneration());
+        assertFalse(changeSet.isTruncated());
+        assertFalse(changeSet.isEmpty());
+    }
+
+    @Test
+    public void compute_unchangedKeepsGeneration() throws Exception {
+
+        ScanChangeSet changeSet = ScanChangeSet.compute(
+                cursor(new String[]{"/a","/b"},new long[]{1,1}),
+                cursor(new String[]{"/a","/b"},new long[]{1,1}),5,100);
+
+        assertEquals(5,changeSet.getGeneration());
+        assertTrue(changeSet.isEmpty());
+    }
+
+    @Test
+    public void compute_fromNothing() throws Exception {
+
+        ScanChangeSet changeSet = ScanChangeSet.compute(cursor(new String[0],new long[0]),
+                cursor(new String[]{"/a","/b"},new long[]{1,1}),0,100);
+
+        assertArrayEquals(new String[]{"/a","/b"},changeSet.getAdded());
+        assertEquals(0,changeSet.getRemoved().length);
+        assertEquals(1,changeSet.getGeneration());
+    }
+
+    @Test
+    public void compute_truncatesPastMaxChanges() throws Exception {
+
+        ScanChangeSet changeSet = ScanChangeSet.compute(cursor(new String[]{"/a"},new long[]{1}),
+                cursor(new String[]{"/b","/c","/d"},new long[]{1,1,1}),2,3);
+
+        assertTrue(changeSet.isTruncated());
+        assertFalse(changeSet.isEmpty());
+        assertEquals(0,changeSet.getAdded().length);
+        assertEquals(0,changeSet.getRemoved().length);
+        assertEquals(0,changeSet.getModified().length);
+        assertEquals(3,changeSet.getGeneration());
+
+        ScanChangeSet atLimit = ScanChangeSet.compute(cursor(new String[]{"/a"},new long[]{1}),
+                cursor(new String[]{"/b","/c"},new long[]{1,1}),2,3);
+
+        assertFalse(atLimit.isTruncated());
+        assertArrayEquals(new String[]{"/b","/c"},atLimit.getAdded());
+    }
+
+    /** Utility method used to get a sorted cursor over files with the same last modified time */
+    private static ResultCursor cursor(String[] paths, long[] sizes) throws Exception {
+
+        ResultCollector collector = new ResultCollector(Long.MAX_VALUE,new File(System.getProperty("java.io.tmpdir")),"test-");
+
+        for (int i = 0; i < paths.length; i++) {
+            collector.add(paths[i],sizes[i],1000);
+        }
+
+        return collector.open();
+    }
+}
@@ -0,0 +1,223 @@
+package com.tonyostudio.library;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of saving the frontier of a running scan and resuming a scan from it.
+ */
+public class ScanCheckpointTest {
+
+    private static final String[] TXT = {".txt"};
+
+    private File dir;
+
+    @Before
+    public void createTree() throws Exception {
+
+        dir = TestDirs.create("checkpoint-test-");
+
+        for (int i = 0; i < 6; i++) {
+            for (int j = 0; j < 5; j++) {
+                TestDirs.createFile(dir,"root/d" + i + "/sub" + j + "/f.txt",1);
+            }
+            TestDirs.createFile(dir,"root/d" + i + "/f" + i + ".txt",1);
+            TestDirs.createFile(dir,"root/d" + i + "/f" + i + ".bin",1);
+        }
+
+        TestDirs.createFile(dir,"other/a.txt",1);
+    }
+
+    @After
+    public void deleteTree() throws Exception {
+        TestDirs.delete(dir);
+    }
+
+    @Test
+    public void canResume_sameRootsWithinMaxAge() throws Exception {
+
+        ScanCheckpoint checkpoint = new ScanCheckpoint(ScanCheckpoint.joinRoots(new String[]{"/a","/b"}),1000);
+
+        assertTrue(checkpoint.canResume(new String[]{"/a",null,"/b"},1000));
+        assertTrue(checkpoint.canResume(new String[]{"/a","/b"},1000 + ScanCheckpoint.MAX_AGE));
+    }
+
+    @Test
+    public void canResume_rejectsOtherRoots() throws Exception {
+
+        ScanCheckpoint checkpoint = new ScanCheckpoint(ScanCheckpoint.joinRoots(new String[]{"/a","/b"}),1000);
+
+        assertFalse(checkpoint.canResume(new String[]{"/a"},1000));
+        assertFalse(checkpoint.canResume(new String[]{"/a","/b","/c"},1000));
+        assertFalse(checkpoint.canResume(new String[]{"/a","/bb"},1000));
+    }
+
+    @Test
+    public void canResume_rejectsExpiredAndFutureCheckpoints() throws Exception {
+
+        ScanCheckpoint checkpoint = new ScanCheckpoint(ScanCheckpoint.joinRoots(new String[]{"/a"}),1000);
+
+        assertFalse(checkpoint.canResume(new String[]{"/a"},1001 + ScanCheckpoint.MAX_AGE));
+        assertFalse(checkpoint.canResume(new String[]{"/a"},999));
+    }
+
+    @Test
+    public void scan_savesFilesOnceAcrossCheckpoints() throws Exception {
+
+        String[] roots = watchedDirectories();
+        ResultCollector collector = new ResultCollector(1,dir,"run-");
+        SavingCheckpointer checkpointer = new SavingCheckpointer(Integer.MAX_VALUE);
+
+        try {
+            new DirectoryScanner(TXT,null,noFilter(),collector,checkpointer,null,null,null,null).scan(roots,null);
+        } finally {
+            collector.close();
+        }
+
+        // Every directory with a match spills the collector, which saves a checkpoint right before
+        assertTrue(checkpointer.checkpoints.size() > 10);
+        assertEquals(37,checkpointer.savedFiles.size());
+        assertEquals(37,distinct(checkpointer.savedFiles).size());
+
+        ScanCheckpoint last = checkpointer.checkpoints.get(checkpointer.checkpoints.size() - 1);
+
+        assertEquals(ScanCheckpoint.joinRoots(roots),last.roots);
+        assertEquals(1,last.currentRoots.size());
+    }
+
+    @Test
+    public void scan_resumesFromCheckpointWithTheSameResults() throws Exception {
+
+        String[] roots = watchedDirectories();
+        ResultCollector fullCollector = new ResultCollector(Long.MAX_VALUE,dir,"run-");
+        new DirectoryScanner(TXT,null,noFilter(),fullCollector,null,null,null,null,null).scan(roots,null);
+        String[] expected = fullCollector.toPathArray();
+
+        // The service is killed while it saves its fifth checkpoint
+        ResultCollector killedCollector = new ResultCollector(1,dir,"run-");
+        SavingCheckpointer checkpointer = new SavingCheckpointer(4);
+
+        try {
+            new DirectoryScanner(TXT,null,noFilter(),killedCollector,checkpointer,null,null,null,null).scan(roots,null);
+            fail("The scan should have been killed");
+        } catch (IOException expectedFailure) {
+            // Killed
+        } finally {
+            killedCollector.close();
+        }
+
+        ScanCheckpoint checkpoint = checkpointer.checkpoints.get(checkpointer.checkpoints.size() - 1);
+
+        assertFalse(checkpoint.pendingDirs.isEmpty());
+        assertTrue(checkpointer.savedFiles.size() < expected.length);
+
+        // A new service restores the saved files and resumes from the last checkpoint
+        ResultCollector resumedCollector = new ResultCollector(Long.MAX_VALUE,dir,"run-");
+
+        for (String savedFile : checkpointer.savedFiles) {
+            resumedCollector.add(savedFile,1,0);
+        }
+
+        resumedCollector.markCheckpoint();
+
+        final List<String> foundAgain = new ArrayList<>();
+        ScanListener listener = new ScanListener() {
+            @Override
+            public void onFileMatched(String filePath, long size, long lastModified) {
+                foundAgain.add(filePath);
+            }
+
+            @Override
+            public void onDirectoryScanned(String dirPath, int matchedFiles) {
+            }
+        };
+
+        new DirectoryScanner(TXT,null,noFilter(),resumedCollector,null,null,null,listener,null).scan(roots,checkpoint);
+
+        assertArrayEquals(expected,resumedCollector.toPathArray());
+
+        // Directories completed before the checkpoint are not scanned again
+        assertEquals(expected.length,checkpointer.savedFiles.size() + foundAgain.size());
+
+        for (String path : foundAgain) {
+            assertFalse(checkpointer.savedFiles.contains(path));
+        }
+    }
+
+    @Test
+    public void scan_resumesWithoutCompletedRoots() throws Exception {
+
+        String[] roots = watchedDirectories();
+        ScanCheckpoint checkpoint = new ScanCheckpoint(ScanCheckpoint.joinRoots(roots),System.currentTimeMillis());
+        checkpoint.completedRoots.add(roots[0]);
+
+        ResultCollector collector = new ResultCollector(Long.MAX_VALUE,dir,"run-");
+        new DirectoryScanner(TXT,null,noFilter(),collector,null,null,null,null,null).scan(roots,checkpoint);
+
+        assertArrayEquals(new String[]{new File(dir,"other/a.txt").getAbsolutePath()},collector.toPathArray());
+    }
+
+    private String[] watchedDirectories() {
+        return new String[]{new File(dir,"root").getAbsolutePath(),new File(dir,"other").getAbsolutePath()};
+    }
+
+    private static AttributeFilter noFilter() {
+        return new AttributeFilter(AttributeFilter.UNSET,AttributeFilter.UNSET,AttributeFilter.UNSET,true,false);
+    }
+
+    private static List<String> distinct(List<String> paths) {
+
+        List<String> distinct = new ArrayList<>();
+
+        for (String path : paths) {
+
+            if(!distinct.contains(path)) {
+                distinct.add(path);
+            }
+        }
+
+        return distinct;
+    }
+
+    /** Checkpointer that keeps the checkpoints and saved files in memory, like the database does,
+     *  and fails once a number of checkpoints were saved, like a service that is killed */
+    private static final class SavingCheckpointer implements DirectoryScanner.Checkpointer {
+
+        private final int maxCheckpoints;
+        final List<ScanCheckpoint> checkpoints = new ArrayList<>();
+        final List<String> savedFiles = new ArrayList<>();
+
+        SavingCheckpointer(int maxCheckpoints) {
+            this.maxCheckpoints = maxCheckpoints;
+        }
+
+        @Override
+        public void saveCheckpoint(ScanCheckpoint checkpoint, ResultCollector collector) throws IOException {
+
+            if(checkpoints.size() == maxCheckpoints) {
+                throw new IOException("Killed");
+            }
+
+            ResultCursor newFiles = collector.openSinceCheckpoint();
+
+            try {
+                while(newFiles.moveToNext()) {
+                    savedFiles.add(newFiles.getPath());
+                }
+            } finally {
+                newFiles.close();
+            }
+
+            collector.markCheckpoint();
+            checkpoints.add(checkpoint);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.tonyostudio.library;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of the order the matched files are streamed to a ScanListener in and of the
+ * backpressure a busy listener puts on the scan.
+ */
+public class ScanListenerTest {
+
+    private static final String[] TXT = {".txt"};
+
+    private File dir;
+
+    @Before
+    public void createDir() throws Exception {
+        dir = TestDirs.create("listener-test-");
+    }
+
+    @After
+    public void deleteDir() throws Exception {
+        TestDirs.delete(dir);
+    }
+
+    @Test
+    public void scan_reportsFilesBeforeTheirDirectory() throws Exception {
+
+        for (int i = 0; i < 4; i++) {
+            TestDirs.createFile(dir,"root/d" + i + "/a.txt",1);
+            TestDirs.createFile(dir,"root/d" + i + "/b.txt",1);
+            TestDirs.createFile(dir,"root/d" + i + "/c.bin",1);
+            TestDirs.createFile(dir,"root/d" + i + "/sub/d.txt",1);
+        }
+
+        RecordingListener listener = new RecordingListener();
+        ResultCollector collector = new ResultCollector(Long.MAX_VALUE,dir,"run-");
+        new DirectoryScanner(TXT,null,noFilter(),collector,null,null,null,listener,null)
+                .scan(new String[]{new File(dir,"root").getAbsolutePath()},null);
+
+        List<String> files = new ArrayList<>();
+        int pending = 0;
+
+        for (String event : listener.events) {
+
+            if(event.startsWith("file ")) {
+
+                String path = event.substring(5);
+
+                assertFalse("Reported twice: " + path,files.contains(path));
+                files.add(path);
+                pending++;
+            } else {
+
+                // Every file is reported before the directory it is located in and counted by it
+                String[] parts = event.split(" ");
+
+                assertEquals(pending,Integer.parseInt(parts[2]));
+
+                for (int i = files.size() - pending; i < files.size(); i++) {
+                    assertEquals(parts[1],new File(files.get(i)).getParent());
+                }
+
+                pending = 0;
+            }
+        }
+
+        assertEquals(0,pending);
+        assertEquals(12,files.size());
+
+        Collections.sort(files,ResultCollector.PATH_ORDER);
+        assertArrayEquals(collector.toPathArray(),files.toArray(new String[files.size()]));
+
+        // Listeners are called on the thread that scans
+        assertEquals(Collections.singleton(Thread.currentThread()),listener.threads);
+    }
+
+    @Test
+    public void scan_busyListenerHoldsBackTheWorkers() throws Exception {
+
+        for (int i = 0; i < 10; i++) {
+            TestDirs.createFile(dir,"root/d" + i + "/a.txt",1);
+        }
+
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch released = new CountDownLatch(1);
+        final RecordingListener listener = new RecordingListener() {
+            @Override
+            public void onFileMatched(String filePath, long size, long lastModified) {
+
+                super.onFileMatched(filePath,size,lastModified);
+
+                if(blocked.getCount() > 0) {
+
+                    blocked.countDown();
+
+                    try {
+                        released.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        };
+
+        final ResultCollector collector = new ResultCollector(Long.MAX_VALUE,dir,"run-");
+        final String[] roots = {new File(dir,"root").getAbsolutePath()};
+        final Throwable[] failure = new Throwable[1];
+        Thread scanThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+
+                try {
+                    new DirectoryScanner(TXT,null,noFilter(),collector,null,null,null,listener,null).scan(roots,null);
+                } catch (Throwable e) {
+                    failure[0] = e;
+                }
+            }
+        });
+
+        scanThread.start();
+        assertTrue(blocked.await(10,TimeUnit.SECONDS));
+
+        // Only the first listings were handed to the workers while the listener is busy, so every other
+        // directory is listed after the files below were created
+        for (int i = 0; i < 10; i++) {
+            TestDirs.createFile(dir,"root/d" + i + "/late.txt",1);
+        }
+
+        released.countDown();
+        scanThread.join(10000);
+
+        assertFalse(scanThread.isAlive());
+        assertNull(failure[0]);
+
+        int lateFiles = collector.toPathArray().length - 10;
+
+        assertTrue("Found " + lateFiles + " late files",lateFiles >= 10 - VolumeWorkers.INITIAL_LIMIT);
+    }
+
+    private static AttributeFilter noFilter() {
+        return new AttributeFilter(AttributeFilter.UNSET,AttributeFilter.UNSET,AttributeFilter.UNSET,true,false);
+    }
+
+    /** Listener recording every call in order together with the threads it was called on */
+    private static class RecordingListener implements ScanListener {
+
+        final List<String> events = new ArrayList<>();
+        final Set<Thread> threads = new HashSet<>();
+
+        @Override
+        public void onFileMatched(String filePath, long size, long lastModified) {
+            events.add("file " + filePath);
+            threads.add(Thread.currentThread());
+        }
+
+        @Override
+        public void onDirectoryScanned(String dirPath, int matchedFiles) {
+            events.add("dir " + dirPath + " " + matchedFiles);
+            threads.add(Thread.currentThread());
+        }
+    }
+}
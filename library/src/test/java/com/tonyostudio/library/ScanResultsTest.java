@@ -0,0 +1,84 @@
+package com.tonyostudio.library;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of the container holding the files matched by a scan.
+ */
+public class ScanResultsTest {
+
+    @Test
+    public void add_materializesPathsInAddedOrder() throws Exception {
+
+        ScanResults results = new ScanResults();
+        int root = results.addDirectory(ScanResults.NO_DIRECTORY,"/storage/emulated/0");
+        int music = results.addDirectory(root,"Music");
+
+        assertTrue(results.add(music,"b.mp3",10,100));
+        assertTrue(results.add(root,"a.pdf",20,200));
+        assertTrue(results.add("/sdcard/\u00e9t\u00e9.pdf",30,300));
+
+        assertArrayEquals(new String[]{"/storage/emulated/0/Music/b.mp3","/storage/emulated/0/a.pdf","/sdcard/\u00e9t\u00e9.pdf"},
+                results.toPathArray());
+        assertEquals(10,results.getSize(0));
+        assertEquals(200,results.getLastModified(1));
+    }
+
+    @Test
+    public void add_ignoresDuplicates() throws Exception {
+
+        ScanResults results = new ScanResults();
+        int root = results.addDirectory(ScanResults.NO_DIRECTORY,"/");
+
+        assertEquals(ScanResults.NO_DIRECTORY,results.addDirectory(ScanResults.NO_DIRECTORY,"/"));
+        assertTrue(results.add(root,"a.pdf",1,1));
+        assertFalse(results.add(root,"a.pdf",2,2));
+        assertFalse(results.add("/a.pdf",3,3));
+        assertFalse(results.add(root,null,1,1));
+        assertFalse(results.add(42,"b.pdf",1,1));
+
+        assertArrayEquals(new String[]{"/a.pdf"},results.toPathArray());
+        assertEquals(1,results.getSize(0));
+    }
+
+    @Test
+    public void add_manyFiles() throws Exception {
+
+        ScanResults results = new ScanResults();
+        int root = results.addDirectory(ScanResults.NO_DIRECTORY,"/data");
+
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(results.add(root,"file" + i,i,i));
+        }
+
+        for (int i = 0; i < 10000; i += 999) {
+            assertFalse(results.add(root,"file" + i,i,i));
+        }
+
+        assertEquals(10000,results.size());
+        assertEquals("/data/file9999",results.getPath(9999));
+    }
+
+    @Test
+    public void clearFiles_keepsDirectoriesAndFreesBudget() throws Exception {
+
+        ScanResults results = new ScanResults();
+        int root = results.addDirectory(ScanResults.NO_DIRECTORY,"/data");
+
+        for (int i = 0; i < 1000; i++) {
+            results.add(root,"file" + i,i,i);
+        }
+
+        assertTrue(results.estimateFileMemoryUsage() > 0);
+
+        results.clearFiles();
+
+        assertEquals(0,results.size());
+        assertEquals(0,results.estimateFileMemoryUsage());
+        assertEquals(ScanResults.NO_DIRECTORY,results.addDirectory(ScanResults.NO_DIRECTORY,"/data"));
+        assertTrue(results.add(root,"file0",1,1));
+        assertEquals("/data/file0",results.getPath(0));
+    }
+}
@@ -0,0 +1,66 @@
+package com.tonyostudio.library;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Utility methods used by the local unit tests to build directory trees in the temporary directory.
+ */
+final class TestDirs {
+
+    private TestDirs() {
+    }
+
+    /** @return a new empty directory in the temporary directory */
+    static File create(String prefix) throws IOException {
+
+        File dir = File.createTempFile(prefix,"");
+
+        if(!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Could not create " + dir);
+        }
+
+        return dir;
+    }
+
+    /** Method used to create a file and its parent directories
+     * @param dir directory the path is relative to
+     * @param relativePath path of the file
+     * @param size number of bytes written to the file
+     * @return the created file */
+    static File createFile(File dir, String relativePath, int size) throws IOException {
+
+        File file = new File(dir,relativePath);
+        File parent = file.getParentFile();
+
+        if(!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Could not create " + parent);
+        }
+
+        FileOutputStream output = new FileOutputStream(file);
+
+        try {
+            output.write(new byte[size]);
+        } finally {
+            output.close();
+        }
+
+        return file;
+    }
+
+    /** Method used to delete a file or a directory with everything below it */
+    static void delete(File file) {
+
+        File[] children = file.listFiles();
+
+        if(children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+}
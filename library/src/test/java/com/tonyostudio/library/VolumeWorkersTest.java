@@ -0,0 +1,96 @@
+package com.tonyostudio.library;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests of the adaptive number of parallel listings per volume.
+ */
+public class VolumeWorkersTest {
+
+    private VolumeWorkers workers;
+
+    @Before
+    public void createWorkers() throws Exception {
+        workers = new VolumeWorkers(1);
+    }
+
+    @After
+    public void shutdownWorkers() throws Exception {
+        workers.shutdown();
+    }
+
+    @Test
+    public void recordListing_growsWhileSaturatedAndKeepingUp() throws Exception {
+
+        int initialLimit = workers.getLimit();
+
+        recordWindow(1000,true);
+        assertEquals(initialLimit + 1,workers.getLimit());
+
+        for (int i = 0; i < VolumeWorkers.MAX_LIMIT; i++) {
+            recordWindow(1000,true);
+        }
+
+        assertEquals(VolumeWorkers.MAX_LIMIT,workers.getLimit());
+    }
+
+    @Test
+    public void recordListing_keepsLimitWhenNotSaturated() throws Exception {
+
+        int initialLimit = workers.getLimit();
+
+        recordWindow(1000,false);
+        recordWindow(1000,false);
+
+        assertEquals(initialLimit,workers.getLimit());
+    }
+
+    @Test
+    public void recordListing_halvesWhenCongested() throws Exception {
+
+        for (int i = 0; i < VolumeWorkers.MAX_LIMIT; i++) {
+            recordWindow(1000,true);
+        }
+
+        recordWindow(3000,true);
+        assertEquals(VolumeWorkers.MAX_LIMIT / 2,workers.getLimit());
+
+        for (int i = 0; i < VolumeWorkers.MAX_LIMIT; i++) {
+            recordWindow(10000,true);
+        }
+
+        assertEquals(VolumeWorkers.MIN_LIMIT,workers.getLimit());
+    }
+
+    @Test
+    public void recordListing_onlyAdjustsAtTheEndOfAWindow() throws Exception {
+
+        int initialLimit = workers.getLimit();
+        workers.markSaturated();
+
+        for (int i = 0; i < VolumeWorkers.WINDOW - 1; i++) {
+            workers.recordListing(1000,0);
+        }
+
+        assertEquals(initialLimit,workers.getLimit());
+
+        workers.recordListing(1000,0);
+        assertEquals(initialLimit + 1,workers.getLimit());
+    }
+
+    /** Utility method used to record a full window of listings with the same latency per entry */
+    private void recordWindow(long nanosPerEntry, boolean saturated) {
+
+        if(saturated) {
+            workers.markSaturated();
+        }
+
+        for (int i = 0; i < VolumeWorkers.WINDOW; i++) {
+            workers.recordListing(nanosPerEntry * 10,9);
+        }
+    }
+}